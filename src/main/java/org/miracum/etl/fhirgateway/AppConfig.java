@@ -15,6 +15,7 @@ import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.ConnectionPool;
@@ -28,6 +29,7 @@ import okio.BufferedSink;
 import okio.GzipSink;
 import okio.Okio;
 import org.miracum.etl.fhirgateway.config.FhirClientTimeoutConfig;
+import org.miracum.etl.fhirgateway.resilience.UpstreamGuards;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -64,7 +66,8 @@ public class AppConfig {
       @Value("${features.use-load-balancer-optimized-connection-pool}")
           boolean useLoadBalancerConnectionPool,
       @Value("${features.use-fhir-client-request-compression}") boolean useRequestCompression,
-      FhirClientTimeoutConfig timeoutConfig) {
+      FhirClientTimeoutConfig timeoutConfig,
+      Optional<UpstreamGuards> upstreamGuards) {
     var fhirContext = FhirContext.forR4();
 
     var connectionPool = new ConnectionPool();
@@ -87,6 +90,8 @@ public class AppConfig {
       clientBuilder.addInterceptor(new GzipRequestInterceptor());
     }
 
+    upstreamGuards.ifPresent(guards -> clientBuilder.addInterceptor(guards.okHttpInterceptor()));
+
     var okHttpFactory = new OkHttpRestfulClientFactory(fhirContext);
     okHttpFactory.setHttpClient(clientBuilder.build());
 
@@ -111,14 +116,21 @@ public class AppConfig {
   }
 
   @Bean
-  public RestTemplate restTemplate(RestTemplateBuilder builder) {
+  public RestTemplate restTemplate(
+      RestTemplateBuilder builder, Optional<UpstreamGuards> upstreamGuards) {
+    if (upstreamGuards.isPresent()) {
+      builder = builder.additionalInterceptors(upstreamGuards.get().restTemplateInterceptor());
+    }
     return builder.build();
   }
 
   @Bean
   @Primary
   @Qualifier("restRetryTemplate")
-  public RetryTemplate retryTemplate(@Value("${services.kafka.enabled}") boolean isKafkaEnabled) {
+  public RetryTemplate retryTemplate(
+      @Value("${services.kafka.enabled}") boolean isKafkaEnabled,
+      @Value("${services.kafka.retry-topics.enabled}") boolean isRetryTopicsEnabled,
+      @Value("${services.kafka.retry-topics.in-thread-attempts}") int inThreadAttempts) {
     var retryTemplate = new RetryTemplate();
 
     var backOffPolicy = new ExponentialRandomBackOffPolicy();
@@ -136,7 +148,7 @@ public class AppConfig {
     retryableExceptions.put(ResourceVersionConflictException.class, false);
     retryableExceptions.put(InternalErrorException.class, true);
 
-    var maxAttempts = isKafkaEnabled ? Integer.MAX_VALUE : 5;
+    var maxAttempts = maxAttempts(isKafkaEnabled, isRetryTopicsEnabled, inThreadAttempts);
 
     retryTemplate.setRetryPolicy(new SimpleRetryPolicy(maxAttempts, retryableExceptions));
 
@@ -160,14 +172,16 @@ public class AppConfig {
   @Qualifier("databaseRetryTemplate")
   @ConditionalOnExpression("${services.psql.enabled}")
   public RetryTemplate databaseRetryTemplate(
-      @Value("${services.kafka.enabled}") boolean isKafkaEnabled) {
+      @Value("${services.kafka.enabled}") boolean isKafkaEnabled,
+      @Value("${services.kafka.retry-topics.enabled}") boolean isRetryTopicsEnabled,
+      @Value("${services.kafka.retry-topics.in-thread-attempts}") int inThreadAttempts) {
     var retryTemplate = new RetryTemplate();
 
     var backOffPolicy = new ExponentialRandomBackOffPolicy();
     backOffPolicy.setInitialInterval(5_000); // 5 seconds
     backOffPolicy.setMaxInterval(300_000); // 5 minutes
 
-    var maxAttempts = isKafkaEnabled ? Integer.MAX_VALUE : 5;
+    var maxAttempts = maxAttempts(isKafkaEnabled, isRetryTopicsEnabled, inThreadAttempts);
 
     retryTemplate.setRetryPolicy(new SimpleRetryPolicy(maxAttempts));
 
@@ -189,6 +203,18 @@ public class AppConfig {
     return retryTemplate;
   }
 
+  /**
+   * Records consumed from Kafka are retried until they succeed, unless failed records are retried
+   * using retry topics. In that case, they are only retried a few times within the listener thread.
+   */
+  private static int maxAttempts(
+      boolean isKafkaEnabled, boolean isRetryTopicsEnabled, int inThreadAttempts) {
+    if (!isKafkaEnabled) {
+      return 5;
+    }
+    return isRetryTopicsEnabled ? inThreadAttempts : Integer.MAX_VALUE;
+  }
+
   @Bean
   @Qualifier("kafkaRetryTemplate")
   @ConditionalOnExpression("${services.kafka.store-from-api.enabled}")
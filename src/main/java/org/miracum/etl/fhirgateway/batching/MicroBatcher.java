@@ -0,0 +1,235 @@
+package org.miracum.etl.fhirgateway.batching;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers items submitted by many callers and hands them to a flush action in batches. A batch is
+ * flushed once it holds at least {@code maxBatchSize} items or the oldest submission has waited
+ * for {@code linger}, whichever happens first. The future returned for a submission only completes
+ * once the batch containing it has been flushed successfully, so callers can defer acknowledging
+ * their input until then.
+ *
+ * @param <T> the type of the batched items
+ */
+public class MicroBatcher<T> implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(MicroBatcher.class);
+
+  private static final Duration POLL_INTERVAL = Duration.ofMillis(100);
+
+  private final String name;
+  private final int maxBatchSize;
+  private final Duration linger;
+  private final Consumer<List<T>> flushAction;
+  private final BlockingQueue<Submission<T>> queue;
+  private final Thread worker;
+  private final Semaphore flushPermits;
+  private final Optional<ExecutorService> flushExecutor;
+  private final DistributionSummary flushSizeSummary;
+  private final Timer waitTimer;
+  private final Counter flushErrorsCounter;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param name identifies the batcher in metrics, logs and the name of its worker thread
+   * @param maxBatchSize number of items after which a batch is flushed without waiting
+   * @param linger maximum time a submission waits for further submissions before being flushed
+   * @param queueCapacity maximum number of pending submissions. Further calls to {@link #submit}
+   *     block until there is room in the queue again.
+   * @param flushAction invoked from a single worker thread with all items of a batch, in
+   *     submission order
+   */
+  public MicroBatcher(
+      String name,
+      int maxBatchSize,
+      Duration linger,
+      int queueCapacity,
+      Consumer<List<T>> flushAction) {
+    this(name, maxBatchSize, linger, queueCapacity, 1, flushAction);
+  }
+
+  /**
+   * Creates a batcher which may flush several batches at the same time. The flush action must be
+   * safe to invoke concurrently, and batches are no longer guaranteed to be flushed in order.
+   *
+   * @param maxConcurrentFlushes maximum number of batches flushed at the same time. Once reached,
+   *     further batches are gathered until a flush finishes.
+   */
+  public MicroBatcher(
+      String name,
+      int maxBatchSize,
+      Duration linger,
+      int queueCapacity,
+      int maxConcurrentFlushes,
+      Consumer<List<T>> flushAction) {
+    if (maxBatchSize < 1 || queueCapacity < 1 || maxConcurrentFlushes < 1) {
+      throw new IllegalArgumentException(
+          "The maximum batch size, queue capacity and concurrent flushes must be at least 1");
+    }
+
+    this.name = name;
+    this.maxBatchSize = maxBatchSize;
+    this.linger = linger;
+    this.flushAction = flushAction;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.flushPermits = new Semaphore(maxConcurrentFlushes);
+    this.flushExecutor =
+        maxConcurrentFlushes > 1
+            ? Optional.of(Executors.newVirtualThreadPerTaskExecutor())
+            : Optional.empty();
+
+    this.flushSizeSummary =
+        DistributionSummary.builder("fhirgateway.batching.flush.size")
+            .description("Number of items written by a single flush")
+            .tag("batcher", name)
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+    this.waitTimer =
+        Timer.builder("fhirgateway.batching.wait.duration")
+            .description("Time from submitting items until the batch containing them was flushed")
+            .tag("batcher", name)
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(10))
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+    this.flushErrorsCounter =
+        Counter.builder("fhirgateway.batching.flush.errors.total")
+            .description("Number of batches whose flush failed")
+            .tag("batcher", name)
+            .register(Metrics.globalRegistry);
+    Gauge.builder("fhirgateway.batching.queue.size", queue, BlockingQueue::size)
+        .description("Number of submissions waiting to be flushed")
+        .tag("batcher", name)
+        .register(Metrics.globalRegistry);
+
+    this.worker = Thread.ofPlatform().name("batcher-" + name).daemon().start(this::run);
+  }
+
+  /**
+   * Adds the items to the next batch, blocking while the queue is full.
+   *
+   * @return a future completed once all items have been flushed, or completed exceptionally with
+   *     the cause if the flush failed, including any {@link Error} thrown by the flush action.
+   */
+  public CompletableFuture<Void> submit(List<T> items) throws InterruptedException {
+    if (!running) {
+      throw new IllegalStateException("The batcher " + name + " has already been closed");
+    }
+
+    var submission = new Submission<>(items, System.nanoTime(), new CompletableFuture<Void>());
+    queue.put(submission);
+    return submission.future();
+  }
+
+  /** Flushes all pending submissions and stops the worker thread. */
+  @Override
+  public void close() throws InterruptedException {
+    running = false;
+    worker.join();
+    flushExecutor.ifPresent(ExecutorService::close);
+    // fail anything submitted concurrently to closing the batcher after the worker stopped
+    failPending(new IllegalStateException("The batcher " + name + " has been closed"));
+  }
+
+  private void run() {
+    while (running || !queue.isEmpty()) {
+      try {
+        var first = queue.poll(POLL_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
+        if (first == null) {
+          continue;
+        }
+
+        var batch = new ArrayList<Submission<T>>();
+        batch.add(first);
+        var size = first.items().size();
+
+        var deadline = first.submittedAt() + linger.toNanos();
+        while (size < maxBatchSize) {
+          var remaining = deadline - System.nanoTime();
+          var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          size += next.items().size();
+        }
+
+        if (flushExecutor.isPresent()) {
+          flushPermits.acquire();
+          var batchSize = size;
+          flushExecutor
+              .get()
+              .execute(
+                  () -> {
+                    try {
+                      flush(batch, batchSize);
+                    } finally {
+                      flushPermits.release();
+                    }
+                  });
+        } else {
+          flush(batch, size);
+        }
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        failPending(exc);
+        return;
+      }
+    }
+  }
+
+  private void flush(List<Submission<T>> batch, int size) {
+    var items = new ArrayList<T>(size);
+    batch.forEach(submission -> items.addAll(submission.items()));
+
+    flushSizeSummary.record(size);
+    try {
+      flushAction.accept(items);
+    } catch (Throwable exc) {
+      // catching errors as well keeps the worker alive and makes sure no caller waits forever
+      log.error(
+          "Flushing batch of {} from {} failed",
+          kv("batchSize", size),
+          kv("submissionCount", batch.size()),
+          exc);
+      flushErrorsCounter.increment();
+      batch.forEach(submission -> submission.future().completeExceptionally(exc));
+      return;
+    }
+
+    var now = System.nanoTime();
+    for (var submission : batch) {
+      waitTimer.record(now - submission.submittedAt(), TimeUnit.NANOSECONDS);
+      submission.future().complete(null);
+    }
+  }
+
+  private void failPending(Exception cause) {
+    running = false;
+    var pending = new ArrayList<Submission<T>>();
+    queue.drainTo(pending);
+    pending.forEach(submission -> submission.future().completeExceptionally(cause));
+  }
+
+  private record Submission<T>(List<T> items, long submittedAt, CompletableFuture<Void> future) {}
+}
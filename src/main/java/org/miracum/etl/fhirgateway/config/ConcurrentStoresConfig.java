@@ -0,0 +1,11 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Saves each bundle to all stores at the same time. A zero {@code timeout} waits for the stores
+ * without a limit, so their own retries decide when saving the bundle fails.
+ */
+@ConfigurationProperties(prefix = "services.pipeline.concurrent-stores")
+public record ConcurrentStoresConfig(boolean enabled, Duration timeout) {}
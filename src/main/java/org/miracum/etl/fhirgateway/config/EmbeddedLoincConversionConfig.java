@@ -0,0 +1,7 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.loinc.conversions.embedded")
+public record EmbeddedLoincConversionConfig(String tableFile, Duration reloadCheckInterval) {}
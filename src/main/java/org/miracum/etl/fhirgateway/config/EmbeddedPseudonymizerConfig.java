@@ -0,0 +1,6 @@
+package org.miracum.etl.fhirgateway.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.pseudonymizer.embedded")
+public record EmbeddedPseudonymizerConfig(String rulesFile) {}
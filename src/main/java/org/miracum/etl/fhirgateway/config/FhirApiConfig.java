@@ -0,0 +1,42 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+@ConfigurationProperties(prefix = "services.api")
+public record FhirApiConfig(
+    DataSize maxRequestSize, BulkImport bulkImport, Async async, ReturnPreference defaultReturn) {
+
+  /**
+   * What a successful request is answered with, unless the client asks for something else using
+   * the {@code Prefer: return=...} header.
+   */
+  public enum ReturnPreference {
+    /** The processed bundle. */
+    REPRESENTATION,
+    /** No body at all. */
+    MINIMAL,
+    /** An OperationOutcome summarizing the number of processed entries. */
+    OPERATION_OUTCOME
+  }
+
+  /**
+   * Resources sent to the NDJSON import endpoint are processed in bundles of {@code bundleSize},
+   * at most {@code maxConcurrency} of them at the same time.
+   */
+  public record BulkImport(int bundleSize, int maxConcurrency, int maxReportedErrors) {}
+
+  /**
+   * If enabled, requests are accepted once validated and processed by {@code workers} threads in
+   * the background. At most {@code queueCapacity} requests wait for a worker, further ones are
+   * rejected. The outcome of each request can be polled for {@code jobRetention} after it was
+   * accepted.
+   */
+  public record Async(
+      boolean enabled,
+      int workers,
+      int queueCapacity,
+      Duration jobRetention,
+      int maxRetainedJobs) {}
+}
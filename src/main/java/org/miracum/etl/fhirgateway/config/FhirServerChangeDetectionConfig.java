@@ -0,0 +1,11 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.nio.file.Path;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * If enabled, a hash of each resource sent to the FHIR server is kept in {@code indexFile}, and
+ * PUT entries whose resource did not change since it was last sent are left out of the bundles.
+ */
+@ConfigurationProperties(prefix = "services.fhir-server.change-detection")
+public record FhirServerChangeDetectionConfig(boolean enabled, Path indexFile) {}
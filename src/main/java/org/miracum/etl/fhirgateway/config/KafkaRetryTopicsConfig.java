@@ -0,0 +1,15 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Records which could not be processed are published to one retry topic per entry of {@code
+ * delays} and processed again once the delay has passed, before finally being published to the
+ * DLQ. While enabled, downstream calls are only retried {@code inThreadAttempts} times within the
+ * listener thread.
+ */
+@ConfigurationProperties(prefix = "services.kafka.retry-topics")
+public record KafkaRetryTopicsConfig(
+    boolean enabled, List<Duration> delays, int inThreadAttempts, Duration sendTimeout) {}
@@ -0,0 +1,8 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.loinc.conversions.cache")
+public record LoincConversionCacheConfig(
+    boolean enabled, long maxSize, Duration expireAfterWrite, String warmupFile) {}
@@ -0,0 +1,7 @@
+package org.miracum.etl.fhirgateway.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.loinc.conversions.parallel")
+public record ParallelHarmonizationConfig(
+    boolean enabled, int maxConcurrencyPerBundle, int maxConcurrency) {}
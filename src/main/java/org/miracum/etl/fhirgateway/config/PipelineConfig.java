@@ -0,0 +1,15 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.pipeline")
+public record PipelineConfig(List<String> stageOrder, Pipelining pipelining) {
+
+  /**
+   * If enabled, bundles processed in batch mode are handed from stage to stage, each stage
+   * processing up to {@code workersPerStage} bundles at the same time. At most {@code maxInFlight}
+   * bundles are queued or being processed across all stages.
+   */
+  public record Pipelining(boolean enabled, int workersPerStage, int maxInFlight) {}
+}
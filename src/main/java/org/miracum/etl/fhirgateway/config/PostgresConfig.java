@@ -0,0 +1,30 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.psql")
+public record PostgresConfig(boolean enabled, InsertMode insertMode, WriteBehind writeBehind) {
+
+  public enum InsertMode {
+    /** One {@code INSERT ... ON CONFLICT} statement per resource, sent as a JDBC batch. */
+    BATCH,
+    /**
+     * Streams all resources into a temporary staging table using {@code COPY} and merges them
+     * into the resources table with a single upsert.
+     */
+    COPY
+  }
+
+  /**
+   * Gathers the writes of many bundles and stores them together once {@code maxBatchSize}
+   * resources are pending or the oldest bundle waited for {@code linger}. A bundle fails if the
+   * batch containing it was not flushed within {@code flushTimeout}.
+   */
+  public record WriteBehind(
+      boolean enabled,
+      int maxBatchSize,
+      Duration linger,
+      int queueCapacity,
+      Duration flushTimeout) {}
+}
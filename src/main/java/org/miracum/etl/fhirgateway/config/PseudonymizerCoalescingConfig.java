@@ -0,0 +1,12 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "services.pseudonymizer.coalescing")
+public record PseudonymizerCoalescingConfig(
+    boolean enabled,
+    int maxBatchSize,
+    Duration linger,
+    int queueCapacity,
+    int maxConcurrentRequests) {}
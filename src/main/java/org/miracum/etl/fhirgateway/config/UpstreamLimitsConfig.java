@@ -0,0 +1,28 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Limits the calls in flight to each downstream service. The limit starts at {@code initialLimit}
+ * and is increased by one per limit's worth of fast, successful calls. Whenever a call fails or
+ * takes longer than {@code latencyThreshold}, it is multiplied by {@code backoffRatio}, but never
+ * goes below {@code minLimit} or above {@code maxLimit}.
+ */
+@ConfigurationProperties(prefix = "services.upstream-limits")
+public record UpstreamLimitsConfig(
+    boolean enabled,
+    int initialLimit,
+    int minLimit,
+    int maxLimit,
+    double backoffRatio,
+    Duration latencyThreshold,
+    CircuitBreaker circuitBreaker) {
+
+  /**
+   * The circuit opens after {@code failureThreshold} consecutive failed calls, rejecting all calls
+   * for {@code openDuration}. Afterwards, a single call is let through to probe the service, closing
+   * the circuit if it succeeds.
+   */
+  public record CircuitBreaker(int failureThreshold, Duration openDuration) {}
+}
@@ -0,0 +1,25 @@
+package org.miracum.etl.fhirgateway.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * If enabled, bundles sent to the FHIR API are appended to a log of segment files of up to {@code
+ * segmentSize} in {@code directory} and acknowledged once written to disk. They are processed from
+ * there in order, retrying each bundle with exponential backoff from {@code retryBackoff} up to
+ * {@code maxRetryBackoff}. After {@code maxAttempts} attempts, or never if 0, the bundle is moved to
+ * the {@code dead-letter} subdirectory instead. Bundles which can never succeed, like ones rejected
+ * by the FHIR server, are moved there right away. Requests are rejected while the unprocessed
+ * bundles take up more than {@code maxSize}.
+ */
+@ConfigurationProperties(prefix = "services.api.write-ahead-queue")
+public record WriteAheadQueueConfig(
+    boolean enabled,
+    Path directory,
+    DataSize segmentSize,
+    DataSize maxSize,
+    Duration retryBackoff,
+    Duration maxRetryBackoff,
+    int maxAttempts) {}
@@ -0,0 +1,163 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the processing of API requests in the background, so the request thread can be released as
+ * soon as the request has been validated. Requests are queued for a fixed number of workers, and
+ * rejected once the queue is full instead of piling up while a downstream service is slow.
+ *
+ * <p>Jobs which are still queued or running are kept until they are done, while the outcomes of
+ * done jobs are evicted after their retention or once too many are kept. With several workers,
+ * requests touching the same resource may be stored in a different order than they were accepted.
+ */
+@Component
+@ConditionalOnExpression("${services.api.async.enabled}")
+public class AsyncRequestExecutor {
+  private static final Logger log = LoggerFactory.getLogger(AsyncRequestExecutor.class);
+
+  private static final Timer WAIT_TIMER =
+      Timer.builder("fhirgateway.api.async.wait.duration")
+          .description("Time an accepted request waited in the queue before being processed")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final Counter REJECTED_COUNTER =
+      Counter.builder("fhirgateway.api.async.rejected.total")
+          .description("Number of requests rejected because the queue was full")
+          .register(Metrics.globalRegistry);
+
+  private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED
+  }
+
+  /**
+   * The state of an accepted request. Holds an OperationOutcome summarizing the processed entries
+   * once completed, or the error message if the processing failed.
+   */
+  public record Job(
+      String id, Status status, @Nullable OperationOutcome result, @Nullable String errorMessage) {}
+
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Job> pendingJobs = new ConcurrentHashMap<>();
+  private final Cache<String, Job> jobs;
+
+  public AsyncRequestExecutor(FhirApiConfig config) {
+    var async = config.async();
+    this.executor =
+        new ThreadPoolExecutor(
+            async.workers(),
+            async.workers(),
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(async.queueCapacity()),
+            Thread.ofPlatform().name("api-async-", 0).daemon().factory(),
+            new ThreadPoolExecutor.AbortPolicy());
+    this.jobs =
+        Caffeine.newBuilder()
+            .expireAfterWrite(async.jobRetention())
+            .maximumSize(async.maxRetainedJobs())
+            .build();
+
+    Gauge.builder("fhirgateway.api.async.queue.size", executor, e -> e.getQueue().size())
+        .description("Number of accepted requests waiting for a worker")
+        .register(Metrics.globalRegistry);
+
+    log.info(
+        "Processing API requests asynchronously using {} and {}",
+        kv("workers", async.workers()),
+        kv("queueCapacity", async.queueCapacity()));
+  }
+
+  /**
+   * Queues the work for processing.
+   *
+   * @return the id of the job to poll for the outcome, or empty if the queue is full
+   */
+  public Optional<String> submit(Supplier<Bundle> work) {
+    var id = UUID.randomUUID().toString();
+    pendingJobs.put(id, new Job(id, Status.QUEUED, null, null));
+
+    var mdc = MDC.getCopyOfContextMap();
+    var waitSample = Timer.start();
+    try {
+      executor.execute(
+          () -> {
+            waitSample.stop(WAIT_TIMER);
+            if (mdc != null) {
+              MDC.setContextMap(mdc);
+            }
+            try {
+              pendingJobs.put(id, new Job(id, Status.RUNNING, null, null));
+              // keeps only a summary, not the processed resources
+              var result = PreferredResponses.summarize(work.get());
+              jobs.put(id, new Job(id, Status.COMPLETED, result, null));
+            } catch (RuntimeException exc) {
+              log.error("Failed to process request asynchronously {}", kv("jobId", id), exc);
+              jobs.put(id, new Job(id, Status.FAILED, null, String.valueOf(exc.getMessage())));
+            } finally {
+              pendingJobs.remove(id);
+              MDC.clear();
+            }
+          });
+    } catch (RejectedExecutionException exc) {
+      pendingJobs.remove(id);
+      REJECTED_COUNTER.increment();
+      log.warn("Rejected request, the queue is full");
+      return Optional.empty();
+    }
+
+    return Optional.of(id);
+  }
+
+  /** Returns the job, or empty if there is none with this id or it has expired. */
+  public Optional<Job> getJob(String id) {
+    var pending = pendingJobs.get(id);
+    if (pending != null) {
+      return Optional.of(pending);
+    }
+    return Optional.ofNullable(jobs.getIfPresent(id));
+  }
+
+  @PreDestroy
+  void close() throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+      log.warn(
+          "Stopped waiting for queued requests to complete after {}",
+          kv("timeout", SHUTDOWN_TIMEOUT));
+      executor.shutdownNow();
+    }
+  }
+}
@@ -2,19 +2,28 @@ package org.miracum.etl.fhirgateway.controllers;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.Resource;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.processors.NdjsonBulkImporter;
 import org.miracum.etl.fhirgateway.processors.ResourcePipeline;
+import org.miracum.etl.fhirgateway.queue.WriteAheadQueue;
 import org.miracum.etl.fhirgateway.stores.KafkaFhirResourceRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,10 +37,12 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 @RestController
 @RequestMapping(
@@ -41,28 +52,35 @@ import org.springframework.web.bind.annotation.RestController;
 public class FhirController {
   private static final Logger log = LoggerFactory.getLogger(FhirController.class);
 
-  private final IParser fhirParser;
   private final ResourcePipeline pipeline;
   private final Optional<KafkaFhirResourceRepository> kafkaStore;
+  private final NdjsonBulkImporter bulkImporter;
+  private final Optional<AsyncRequestExecutor> asyncExecutor;
+  private final Optional<WriteAheadQueue> writeAheadQueue;
+  private final FhirApiConfig.ReturnPreference defaultReturn;
 
   @Autowired
   public FhirController(
-      FhirContext fhirContext,
       ResourcePipeline pipeline,
-      Optional<KafkaFhirResourceRepository> kafkaStore) {
-    this.fhirParser = fhirContext.newJsonParser();
+      Optional<KafkaFhirResourceRepository> kafkaStore,
+      NdjsonBulkImporter bulkImporter,
+      Optional<AsyncRequestExecutor> asyncExecutor,
+      Optional<WriteAheadQueue> writeAheadQueue,
+      FhirApiConfig config) {
     this.pipeline = pipeline;
     this.kafkaStore = kafkaStore;
+    this.bulkImporter = bulkImporter;
+    this.asyncExecutor = asyncExecutor;
+    this.writeAheadQueue = writeAheadQueue;
+    this.defaultReturn = config.defaultReturn();
   }
 
+  // request and response bodies are parsed and encoded by the FhirResourceHttpMessageConverter
   @PostMapping
-  public ResponseEntity<String> postFhirRoot(@RequestBody String body) {
-    if (body == null) {
-      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-    }
-
-    var resource = fhirParser.parseResource(body);
-
+  public ResponseEntity<Resource> postFhirRoot(
+      @RequestBody Resource resource,
+      @RequestHeader(value = PreferredResponses.PREFER_HEADER, required = false) @Nullable
+          String prefer) {
     if (resource instanceof Bundle bundle) {
       log.debug("Got bundle of size {}", kv("bundleSize", bundle.getEntry().size()));
 
@@ -71,18 +89,26 @@ public class FhirController {
         return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
       }
 
-      var processed = pipeline.process(bundle);
-      if (kafkaStore.isPresent()) {
-        this.kafkaStore.get().save(processed);
-      }
-
-      return ResponseEntity.ok(fhirParser.encodeResourceToString(processed));
+      return respond(bundle, true, () -> processAndSave(bundle), prefer);
     } else {
       log.error("Received a non-Bundle resource on the base endpoint");
       return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
   }
 
+  /**
+   * Imports newline-delimited FHIR resources. The body is streamed, so it is not subject to the
+   * maximum request size. Responds with an OperationOutcome listing the lines which failed.
+   */
+  @PostMapping(
+      value = "/$import",
+      consumes = {"application/fhir+ndjson", "application/ndjson", "application/x-ndjson"})
+  public ResponseEntity<OperationOutcome> importNdjson(InputStream body)
+      throws IOException, InterruptedException {
+    var reader = new InputStreamReader(body, StandardCharsets.UTF_8);
+    return ResponseEntity.ok(bulkImporter.importNdjson(reader));
+  }
+
   @GetMapping(value = "/metadata")
   public Object getCapabilities() throws IOException {
     var resource = new ClassPathResource("/static/fhir-metadata.json");
@@ -92,19 +118,27 @@ public class FhirController {
   }
 
   @PostMapping(value = {"/{resourceType}", "/{resourceType}/{id}"})
-  public ResponseEntity<String> postResource(@RequestBody String body) {
-    return handlePostPutResource(body, RequestMethod.POST);
+  public ResponseEntity<Resource> postResource(
+      @RequestBody Resource resource,
+      @RequestHeader(value = PreferredResponses.PREFER_HEADER, required = false) @Nullable
+          String prefer) {
+    return handlePostPutResource(resource, RequestMethod.POST, prefer);
   }
 
   @PutMapping(value = {"/{resourceType}", "/{resourceType}/{id}"})
-  public ResponseEntity<String> putResource(@RequestBody String body) {
-    return handlePostPutResource(body, RequestMethod.PUT);
+  public ResponseEntity<Resource> putResource(
+      @RequestBody Resource resource,
+      @RequestHeader(value = PreferredResponses.PREFER_HEADER, required = false) @Nullable
+          String prefer) {
+    return handlePostPutResource(resource, RequestMethod.PUT, prefer);
   }
 
   @DeleteMapping(value = {"/{resourceType}/{id}"})
-  public ResponseEntity<String> deleteResource(
+  public ResponseEntity<Resource> deleteResource(
       @PathVariable(value = "resourceType") String resourceType,
-      @PathVariable(value = "id") String resourceId) {
+      @PathVariable(value = "id") String resourceId,
+      @RequestHeader(value = PreferredResponses.PREFER_HEADER, required = false) @Nullable
+          String prefer) {
 
     if (Strings.isNullOrEmpty(resourceId) || Strings.isNullOrEmpty(resourceType)) {
       log.error("resourceId or resourceType is empty.");
@@ -118,19 +152,39 @@ public class FhirController {
     bundle.setId(UUID.randomUUID().toString());
     bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl(resourceUrl);
 
-    var processed = pipeline.process(bundle);
-    return ResponseEntity.ok(fhirParser.encodeResourceToString(processed));
+    return respond(bundle, false, () -> pipeline.process(bundle), prefer);
   }
 
-  private ResponseEntity<String> handlePostPutResource(String body, RequestMethod method) {
-    if (body == null) {
-      log.debug("Request body is empty");
-      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+  /**
+   * Polls the outcome of a request accepted in async mode. Responds with 202 while it is still
+   * being processed, and with an OperationOutcome summarizing the processed entries once completed.
+   */
+  @GetMapping(value = "/$async-status/{jobId}")
+  public ResponseEntity<Resource> getAsyncStatus(@PathVariable(value = "jobId") String jobId) {
+    var job = asyncExecutor.flatMap(executor -> executor.getJob(jobId));
+    if (job.isEmpty()) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
 
-    var httpMethodMap = Map.of(RequestMethod.POST, HTTPVerb.POST, RequestMethod.PUT, HTTPVerb.PUT);
+    return switch (job.get().status()) {
+      case QUEUED, RUNNING ->
+          ResponseEntity.accepted().header("X-Progress", job.get().status().name()).build();
+      case COMPLETED -> ResponseEntity.ok(job.get().result());
+      case FAILED -> {
+        var outcome = new OperationOutcome();
+        outcome
+            .addIssue()
+            .setSeverity(IssueSeverity.ERROR)
+            .setCode(IssueType.EXCEPTION)
+            .setDiagnostics(job.get().errorMessage());
+        yield ResponseEntity.internalServerError().body(outcome);
+      }
+    };
+  }
 
-    var resource = (Resource) fhirParser.parseResource(body);
+  private ResponseEntity<Resource> handlePostPutResource(
+      Resource resource, RequestMethod method, @Nullable String prefer) {
+    var httpMethodMap = Map.of(RequestMethod.POST, HTTPVerb.POST, RequestMethod.PUT, HTTPVerb.PUT);
 
     Bundle bundle;
     if (resource instanceof Bundle b) {
@@ -148,10 +202,50 @@ public class FhirController {
           .setUrl(resource.getId());
     }
 
+    return respond(bundle, true, () -> processAndSave(bundle), prefer);
+  }
+
+  private Bundle processAndSave(Bundle bundle) {
     var processed = pipeline.process(bundle);
     if (kafkaStore.isPresent()) {
       this.kafkaStore.get().save(processed);
     }
-    return ResponseEntity.ok(fhirParser.encodeResourceToString(processed));
+    return processed;
+  }
+
+  /**
+   * Runs the processing on the request thread and responds with its result, in the form asked for
+   * by the {@code Prefer} header, see {@link PreferredResponses}. In async mode, it is queued
+   * instead, responding with 202 and the URL to poll for the outcome, or with 429 if the queue is
+   * full. If the write-ahead queue is enabled, the bundle is appended to it, responding with 202
+   * once it is on disk, or with 503 if the queue is full.
+   *
+   * @param isSaveToKafka whether the processed bundle is sent to the Kafka store, if enabled
+   */
+  private ResponseEntity<Resource> respond(
+      Bundle bundle, boolean isSaveToKafka, Supplier<Bundle> processing, @Nullable String prefer) {
+    if (writeAheadQueue.isPresent()) {
+      if (!writeAheadQueue.get().offer(bundle, isSaveToKafka)) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+      }
+      return ResponseEntity.accepted().build();
+    }
+
+    if (asyncExecutor.isEmpty()) {
+      return PreferredResponses.of(
+          processing.get(), PreferredResponses.parse(prefer), defaultReturn);
+    }
+
+    var jobId = asyncExecutor.get().submit(processing);
+    if (jobId.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+    }
+
+    var statusUrl =
+        ServletUriComponentsBuilder.fromCurrentContextPath()
+            .path("/fhir/$async-status/{jobId}")
+            .buildAndExpand(jobId.get())
+            .toUri();
+    return ResponseEntity.accepted().header("Content-Location", statusUrl.toString()).build();
   }
 }
@@ -0,0 +1,141 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.serialization.EncodedResources;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.PayloadTooLargeException;
+
+/**
+ * Reads FHIR resources directly from the request body and writes them directly to the response
+ * body, so neither the request nor the response ever has to be held in memory as a whole string.
+ * Resources already encoded for the stores are written using that encoding instead.
+ * Requests larger than {@code services.api.max-request-size} are rejected with 413.
+ *
+ * <p>Request bodies are read as JSON whatever their content type, just like before the converter
+ * was introduced, while responses are only written as JSON.
+ */
+@Component
+public class FhirResourceHttpMessageConverter extends AbstractHttpMessageConverter<IBaseResource> {
+
+  private final FhirContext fhirContext;
+  private final long maxRequestSizeBytes;
+
+  public FhirResourceHttpMessageConverter(FhirContext fhirContext, FhirApiConfig config) {
+    super(
+        StandardCharsets.UTF_8,
+        MediaType.APPLICATION_JSON,
+        MediaType.parseMediaType("application/fhir+json"));
+    this.fhirContext = fhirContext;
+    this.maxRequestSizeBytes = config.maxRequestSize().toBytes();
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return IBaseResource.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  public boolean canRead(Class<?> clazz, @Nullable MediaType mediaType) {
+    return supports(clazz);
+  }
+
+  @Override
+  protected IBaseResource readInternal(
+      Class<? extends IBaseResource> clazz, HttpInputMessage inputMessage) throws IOException {
+    var contentLength = inputMessage.getHeaders().getContentLength();
+    if (contentLength > maxRequestSizeBytes) {
+      throw new PayloadTooLargeException(null);
+    }
+
+    var body = new SizeLimitedInputStream(inputMessage.getBody(), maxRequestSizeBytes);
+    var reader = new InputStreamReader(body, charsetOf(inputMessage.getHeaders().getContentType()));
+    IBaseResource resource;
+    try {
+      // parsers are not thread-safe, but cheap to create
+      resource = fhirContext.newJsonParser().parseResource(reader);
+    } catch (DataFormatException exc) {
+      throw new HttpMessageNotReadableException(
+          "Failed to parse the FHIR resource: " + exc.getMessage(), exc, inputMessage);
+    }
+
+    if (!clazz.isInstance(resource)) {
+      throw new HttpMessageNotReadableException(
+          "Expected a " + clazz.getSimpleName() + " but got a " + resource.fhirType(),
+          inputMessage);
+    }
+    return resource;
+  }
+
+  @Override
+  protected void writeInternal(IBaseResource resource, HttpOutputMessage outputMessage)
+      throws IOException {
+    var charset = charsetOf(outputMessage.getHeaders().getContentType());
+    // a processed bundle was usually already encoded for the stores
+    var cached = EncodedResources.cached(resource);
+    if (cached.isPresent() && StandardCharsets.UTF_8.equals(charset)) {
+      outputMessage.getBody().write(cached.get().bytes());
+      return;
+    }
+
+    var writer = new OutputStreamWriter(outputMessage.getBody(), charset);
+    fhirContext.newJsonParser().encodeResourceToWriter(resource, writer);
+    writer.flush();
+  }
+
+  private static Charset charsetOf(@Nullable MediaType contentType) {
+    var charset = contentType == null ? null : contentType.getCharset();
+    return charset == null ? StandardCharsets.UTF_8 : charset;
+  }
+
+  /** Fails once more than the allowed number of bytes were read, e.g. for chunked requests. */
+  private static final class SizeLimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long readBytes;
+
+    SizeLimitedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      var b = super.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      var n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    private void count(int n) {
+      readBytes += n;
+      if (readBytes > maxBytes) {
+        throw new PayloadTooLargeException(null);
+      }
+    }
+  }
+}
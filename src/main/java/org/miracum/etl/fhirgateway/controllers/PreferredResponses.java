@@ -0,0 +1,115 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Resource;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.ReturnPreference;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Builds the response to a successfully processed request as asked for by the {@code Prefer}
+ * header, see <a href="https://hl7.org/fhir/R4/http.html#ops">FHIR RESTful API</a>. Anything but
+ * the processed bundle itself spares encoding and sending a body as large as the request. A
+ * preference taken from the header is confirmed using the {@code Preference-Applied} header.
+ */
+final class PreferredResponses {
+  static final String PREFER_HEADER = "Prefer";
+  static final String PREFERENCE_APPLIED_HEADER = "Preference-Applied";
+
+  private static final String RETURN_PREFIX = "return=";
+
+  private PreferredResponses() {}
+
+  /**
+   * Returns the preference requested by the {@code return} token of the header, or empty if there
+   * is none or its value is unknown.
+   */
+  static Optional<ReturnPreference> parse(@Nullable String preferHeader) {
+    if (preferHeader == null) {
+      return Optional.empty();
+    }
+
+    for (var token : preferHeader.split("[,;]")) {
+      var trimmed = token.trim();
+      if (!trimmed.regionMatches(true, 0, RETURN_PREFIX, 0, RETURN_PREFIX.length())) {
+        continue;
+      }
+      var value = trimmed.substring(RETURN_PREFIX.length()).replace("\"", "").trim();
+      switch (value.toLowerCase(Locale.ROOT)) {
+        case "minimal" -> {
+          return Optional.of(ReturnPreference.MINIMAL);
+        }
+        case "representation" -> {
+          return Optional.of(ReturnPreference.REPRESENTATION);
+        }
+        case "operationoutcome" -> {
+          return Optional.of(ReturnPreference.OPERATION_OUTCOME);
+        }
+        default -> {
+          return Optional.empty();
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Responds as requested, or using the default preference if the request didn't ask for a
+   * supported one.
+   */
+  static ResponseEntity<Resource> of(
+      Bundle processed, Optional<ReturnPreference> requested, ReturnPreference defaultReturn) {
+    var response = ResponseEntity.ok();
+    if (requested.isPresent()) {
+      response.header(PREFERENCE_APPLIED_HEADER, RETURN_PREFIX + tokenOf(requested.get()));
+    }
+
+    return switch (requested.orElse(defaultReturn)) {
+      case REPRESENTATION -> response.body(processed);
+      case MINIMAL -> response.build();
+      case OPERATION_OUTCOME -> response.body(summarize(processed));
+    };
+  }
+
+  private static String tokenOf(ReturnPreference preference) {
+    return switch (preference) {
+      case REPRESENTATION -> "representation";
+      case MINIMAL -> "minimal";
+      case OPERATION_OUTCOME -> "OperationOutcome";
+    };
+  }
+
+  /** Counts the entries by request method, e.g. "Processed 3 entries (1 DELETE, 2 PUT)". */
+  static OperationOutcome summarize(Bundle processed) {
+    Map<String, Integer> countsByMethod = new TreeMap<>();
+    for (var entry : processed.getEntry()) {
+      var method = entry.getRequest().hasMethod() ? entry.getRequest().getMethod().toCode() : "-";
+      countsByMethod.merge(method, 1, Integer::sum);
+    }
+
+    var size = processed.getEntry().size();
+    var diagnostics = "Processed " + size + (size == 1 ? " entry" : " entries");
+    if (!countsByMethod.isEmpty()) {
+      diagnostics +=
+          countsByMethod.entrySet().stream()
+              .map(count -> count.getValue() + " " + count.getKey())
+              .collect(Collectors.joining(", ", " (", ")"));
+    }
+
+    var outcome = new OperationOutcome();
+    outcome
+        .addIssue()
+        .setSeverity(IssueSeverity.INFORMATION)
+        .setCode(IssueType.INFORMATIONAL)
+        .setDiagnostics(diagnostics);
+    return outcome;
+  }
+}
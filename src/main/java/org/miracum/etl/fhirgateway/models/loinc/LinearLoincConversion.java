@@ -0,0 +1,31 @@
+package org.miracum.etl.fhirgateway.models.loinc;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A conversion of a LOINC-coded value into the harmonized LOINC code and unit which can be applied
+ * locally as {@code value * factor + offset}.
+ */
+public record LinearLoincConversion(
+    String loinc, String unit, @Nullable String display, BigDecimal factor, BigDecimal offset) {
+
+  public LinearLoincConversion(
+      String loinc, String unit, @Nullable String display, BigDecimal factor) {
+    this(loinc, unit, display, factor, BigDecimal.ZERO);
+  }
+
+  public LoincConversion apply(BigDecimal value) {
+    var converted =
+        value
+            .multiply(factor, MathContext.DECIMAL64)
+            .add(offset, MathContext.DECIMAL64)
+            .stripTrailingZeros();
+    var conversion = new LoincConversion().setLoinc(loinc).setUnit(unit).setValue(converted);
+    if (display != null) {
+      conversion.setDisplay(display);
+    }
+    return conversion;
+  }
+}
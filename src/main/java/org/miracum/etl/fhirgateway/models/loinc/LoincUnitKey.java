@@ -0,0 +1,4 @@
+package org.miracum.etl.fhirgateway.models.loinc;
+
+/** Identifies a conversion by the source LOINC code and the UCUM unit code of the value. */
+public record LoincUnitKey(String loinc, String unit) {}
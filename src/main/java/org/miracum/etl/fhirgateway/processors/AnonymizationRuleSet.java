@@ -0,0 +1,269 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.jspecify.annotations.Nullable;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Reads the rule set of the embedded pseudonymizer from the YAML format used by the
+ * de-identification service, e.g. {@code deploy/anonymization.yaml}. Only a subset of that format
+ * is supported:
+ *
+ * <ul>
+ *   <li>the methods {@code cryptoHash}, {@code redact}, {@code dateShift} and {@code keep}
+ *   <li>paths starting with a resource type, {@code Resource}, {@code DomainResource} or {@code
+ *       nodesByType('Type')}, followed by child names, each optionally filtered using {@code
+ *       where(child = 'value')}
+ * </ul>
+ *
+ * Any rule set using something else is rejected, so it can't silently be applied incompletely.
+ */
+final class AnonymizationRuleSet {
+
+  private static final Set<String> SUPPORTED_RULE_KEYS = Set.of("path", "method");
+  private static final Set<String> ABSTRACT_RESOURCE_TYPES = Set.of("Resource", "DomainResource");
+  private static final Pattern NODES_BY_TYPE_PATTERN =
+      Pattern.compile("nodesByType\\('([A-Za-z]+)'\\)");
+  private static final Pattern TYPE_PATTERN = Pattern.compile("[A-Z][A-Za-z]*");
+  private static final Pattern CHILD_PATTERN = Pattern.compile("[a-z][A-Za-z0-9]*");
+  private static final Pattern WHERE_PATTERN =
+      Pattern.compile("where\\(\\s*([a-z][A-Za-z0-9]*)\\s*=\\s*'([^']*)'\\s*\\)");
+
+  enum Method {
+    CRYPTO_HASH("cryptoHash"),
+    REDACT("redact"),
+    DATE_SHIFT("dateShift"),
+    KEEP("keep");
+
+    private final String yamlName;
+
+    Method(String yamlName) {
+      this.yamlName = yamlName;
+    }
+
+    static Method parse(String name) {
+      for (var method : values()) {
+        if (method.yamlName.equals(name)) {
+          return method;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported anonymization method '" + name + "'");
+    }
+  }
+
+  enum DateShiftScope {
+    RESOURCE,
+    FILE,
+    FOLDER
+  }
+
+  sealed interface Step permits Child, Where {}
+
+  /** Navigates to all children with the given name. */
+  record Child(String name) implements Step {}
+
+  /** Keeps only the nodes having a child with the given primitive value. */
+  record Where(String child, String value) implements Step {}
+
+  /**
+   * A single rule. Its path starts at every resource of {@code resourceType}, or at any resource if
+   * that is null. If {@code nodeType} is set, it starts at all nodes of that type within the
+   * resource instead.
+   */
+  record Rule(
+      String path,
+      Method method,
+      @Nullable String resourceType,
+      @Nullable String nodeType,
+      List<Step> steps) {}
+
+  private final List<Rule> rules;
+  private final String cryptoHashKey;
+  private final String dateShiftKey;
+  private final DateShiftScope dateShiftScope;
+
+  private AnonymizationRuleSet(
+      List<Rule> rules, String cryptoHashKey, String dateShiftKey, DateShiftScope dateShiftScope) {
+    this.rules = rules;
+    this.cryptoHashKey = cryptoHashKey;
+    this.dateShiftKey = dateShiftKey;
+    this.dateShiftScope = dateShiftScope;
+  }
+
+  List<Rule> rules() {
+    return rules;
+  }
+
+  String cryptoHashKey() {
+    return cryptoHashKey;
+  }
+
+  String dateShiftKey() {
+    return dateShiftKey;
+  }
+
+  DateShiftScope dateShiftScope() {
+    return dateShiftScope;
+  }
+
+  static AnonymizationRuleSet read(Path path, FhirContext fhirContext) throws IOException {
+    var yaml = Files.readString(path, StandardCharsets.UTF_8);
+    try {
+      return parse(yaml, fhirContext);
+    } catch (IllegalArgumentException exc) {
+      throw new IOException("Unsupported anonymization rule set in " + path, exc);
+    }
+  }
+
+  static AnonymizationRuleSet parse(String yaml, FhirContext fhirContext) {
+    Object loaded = new Yaml(new SafeConstructor(new LoaderOptions())).load(yaml);
+    if (!(loaded instanceof Map<?, ?> document)) {
+      throw new IllegalArgumentException("The rule set must be a YAML mapping");
+    }
+
+    var fhirVersion = document.get("fhirVersion");
+    if (fhirVersion != null && !"R4".equals(fhirVersion.toString())) {
+      throw new IllegalArgumentException("Unsupported FHIR version " + fhirVersion);
+    }
+
+    var parameters = document.get("parameters") instanceof Map<?, ?> p ? p : Map.of();
+
+    var rules = new ArrayList<Rule>();
+    if (document.get("fhirPathRules") instanceof List<?> ruleList) {
+      for (var entry : ruleList) {
+        if (!(entry instanceof Map<?, ?> rule)) {
+          throw new IllegalArgumentException("Each rule must be a YAML mapping");
+        }
+        rules.add(parseRule(rule, fhirContext));
+      }
+    }
+
+    var hasRedactRule = rules.stream().anyMatch(rule -> rule.method() == Method.REDACT);
+    for (var partialRedact :
+        List.of(
+            "enablePartialAgesForRedact",
+            "enablePartialDatesForRedact",
+            "enablePartialZipCodesForRedact")) {
+      if (hasRedactRule && Boolean.TRUE.equals(parameters.get(partialRedact))) {
+        throw new IllegalArgumentException(
+            "Partial redaction is not supported, " + partialRedact + " must be disabled");
+      }
+    }
+
+    var dateShiftKey = stringParameter(parameters, "dateShiftKey");
+    if (dateShiftKey.isEmpty()
+        && rules.stream().anyMatch(rule -> rule.method() == Method.DATE_SHIFT)) {
+      throw new IllegalArgumentException("The dateShift method requires a dateShiftKey");
+    }
+
+    var cryptoHashKey = stringParameter(parameters, "cryptoHashKey");
+    if (cryptoHashKey.isEmpty()
+        && rules.stream().anyMatch(rule -> rule.method() == Method.CRYPTO_HASH)) {
+      throw new IllegalArgumentException("The cryptoHash method requires a cryptoHashKey");
+    }
+
+    var scope = stringParameter(parameters, "dateShiftScope");
+    var dateShiftScope =
+        scope.isEmpty()
+            ? DateShiftScope.RESOURCE
+            : DateShiftScope.valueOf(scope.toUpperCase(Locale.ROOT));
+
+    return new AnonymizationRuleSet(
+        List.copyOf(rules), cryptoHashKey, dateShiftKey, dateShiftScope);
+  }
+
+  private static String stringParameter(Map<?, ?> parameters, String name) {
+    var value = parameters.get(name);
+    return value == null ? "" : value.toString();
+  }
+
+  private static Rule parseRule(Map<?, ?> rule, FhirContext fhirContext) {
+    for (var key : rule.keySet()) {
+      if (!SUPPORTED_RULE_KEYS.contains(String.valueOf(key))) {
+        throw new IllegalArgumentException("Unsupported rule setting '" + key + "' in " + rule);
+      }
+    }
+
+    if (!(rule.get("path") instanceof String path)
+        || !(rule.get("method") instanceof String name)) {
+      throw new IllegalArgumentException("Each rule requires a path and a method: " + rule);
+    }
+
+    var method = Method.parse(name);
+    var segments = splitPath(path);
+
+    String resourceType = null;
+    String nodeType = null;
+    var first = segments.getFirst();
+    var nodesByType = NODES_BY_TYPE_PATTERN.matcher(first);
+    if (nodesByType.matches()) {
+      nodeType = nodesByType.group(1);
+      if (fhirContext.getElementDefinition(nodeType) == null) {
+        throw new IllegalArgumentException("Unknown type '" + nodeType + "' in path " + path);
+      }
+    } else if (TYPE_PATTERN.matcher(first).matches()) {
+      if (!ABSTRACT_RESOURCE_TYPES.contains(first)) {
+        if (!fhirContext.getResourceTypes().contains(first)) {
+          throw new IllegalArgumentException("Unknown resource type '" + first + "' in " + path);
+        }
+        resourceType = first;
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported start of path " + path);
+    }
+
+    var steps = new ArrayList<Step>();
+    for (var segment : segments.subList(1, segments.size())) {
+      var where = WHERE_PATTERN.matcher(segment);
+      if (where.matches()) {
+        steps.add(new Where(where.group(1), where.group(2)));
+      } else if (CHILD_PATTERN.matcher(segment).matches()) {
+        steps.add(new Child(segment));
+      } else {
+        throw new IllegalArgumentException(
+            "Unsupported expression '" + segment + "' in path " + path);
+      }
+    }
+
+    return new Rule(path, method, resourceType, nodeType, List.copyOf(steps));
+  }
+
+  /** Splits the path at each dot which is not part of a function argument. */
+  private static List<String> splitPath(String path) {
+    var segments = new ArrayList<String>();
+    var depth = 0;
+    var inLiteral = false;
+    var start = 0;
+    for (var i = 0; i < path.length(); i++) {
+      var c = path.charAt(i);
+      if (c == '\'') {
+        inLiteral = !inLiteral;
+      } else if (!inLiteral && c == '(') {
+        depth++;
+      } else if (!inLiteral && c == ')') {
+        depth--;
+      } else if (!inLiteral && depth == 0 && c == '.') {
+        segments.add(path.substring(start, i).trim());
+        start = i + 1;
+      }
+    }
+    segments.add(path.substring(start).trim());
+
+    if (segments.stream().anyMatch(String::isEmpty) || depth != 0 || inLiteral) {
+      throw new IllegalArgumentException("Malformed path " + path);
+    }
+    return segments;
+  }
+}
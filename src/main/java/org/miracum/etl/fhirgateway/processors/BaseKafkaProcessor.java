@@ -2,7 +2,25 @@ package org.miracum.etl.fhirgateway.processors;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
@@ -10,20 +28,128 @@ import org.hl7.fhir.r4.model.Resource;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.kafka.support.KafkaNull;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 
 public abstract class BaseKafkaProcessor {
 
+  static final int DEFAULT_MAX_BATCH_BUNDLE_SIZE = 100;
+
+  private static final DistributionSummary BATCH_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.kafka.batch.size")
+          .description("Number of records received in a single batch")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final DistributionSummary BATCH_BUNDLE_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.kafka.batch.bundle.size")
+          .description("Number of records merged into a single bundle during batch processing")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final DistributionSummary BATCH_LANE_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.kafka.batch.lane.size")
+          .description("Number of records of a batch assigned to a single lane")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final Counter BATCH_FALLBACK_COUNTER =
+      Counter.builder("fhirgateway.kafka.batch.fallbacks.total")
+          .description("Number of merged bundles that had to be re-processed record by record")
+          .register(Metrics.globalRegistry);
+
   protected final Logger LOG = LoggerFactory.getLogger(this.getClass());
 
   private final ResourcePipeline pipeline;
+  private final int maxBatchBundleSize;
+  private final int laneCount;
+  private final Optional<RetryTopicPublisher> retryTopics;
 
   protected BaseKafkaProcessor(ResourcePipeline pipeline) {
+    this(pipeline, DEFAULT_MAX_BATCH_BUNDLE_SIZE);
+  }
+
+  protected BaseKafkaProcessor(ResourcePipeline pipeline, int maxBatchBundleSize) {
+    this(pipeline, maxBatchBundleSize, 1);
+  }
+
+  /**
+   * @param laneCount number of lanes the records of a batch are spread across by their key. The
+   *     lanes are processed concurrently, while the records within each lane are processed in
+   *     order.
+   */
+  protected BaseKafkaProcessor(ResourcePipeline pipeline, int maxBatchBundleSize, int laneCount) {
+    this(pipeline, maxBatchBundleSize, laneCount, Optional.empty());
+  }
+
+  /**
+   * @param retryTopics if present, records which could not be processed are published to the
+   *     first retry topic instead of failing the listener
+   */
+  protected BaseKafkaProcessor(
+      ResourcePipeline pipeline,
+      int maxBatchBundleSize,
+      int laneCount,
+      Optional<RetryTopicPublisher> retryTopics) {
+    if (maxBatchBundleSize < 1) {
+      throw new IllegalArgumentException("The maximum batch bundle size must be at least 1");
+    }
+    if (laneCount < 1) {
+      throw new IllegalArgumentException("The number of lanes must be at least 1");
+    }
     this.pipeline = pipeline;
+    this.maxBatchBundleSize = maxBatchBundleSize;
+    this.laneCount = laneCount;
+    this.retryTopics = retryTopics;
+  }
+
+  /**
+   * Processes the record, publishing it to the first retry topic if that fails and retry topics
+   * are enabled. A record is published there right away if an earlier one of the same key is still
+   * waiting to be retried.
+   */
+  @Nullable
+  protected Bundle processOrRetry(Message<?> message) {
+    if (retryTopics.isEmpty()) {
+      return process(message);
+    }
+
+    var publisher = retryTopics.get();
+    if (publisher.isPending(message)) {
+      publisher.defer(message);
+      return null;
+    }
+
+    try {
+      return process(message);
+    } catch (RuntimeException exc) {
+      publisher.publish(message, 0, exc);
+      return null;
+    }
+  }
+
+  /** Returns whether an earlier record of the same key is waiting in a retry topic. */
+  private boolean isRetryPending(Message<?> message) {
+    return retryTopics.isPresent() && retryTopics.get().isPending(message);
+  }
+
+  /**
+   * Processes a record consumed from a retry topic, handing the result on just like for records
+   * consumed from the input topic.
+   */
+  public void reprocess(Message<?> message) {
+    var processed = process(message);
+    if (processed != null) {
+      forward(message, processed);
+    }
   }
 
+  /**
+   * Invoked with each record successfully processed by {@link #reprocess}. Does nothing by default.
+   */
+  protected void forward(Message<?> message, Bundle processed) {}
+
   @Nullable
   public Bundle process(Message<?> message) {
     var incomingTopic = message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC);
@@ -50,18 +176,450 @@ public abstract class BaseKafkaProcessor {
     if (resource instanceof Bundle b) {
       bundle = b;
     } else {
-      bundle = new Bundle();
-      bundle.setType(BundleType.TRANSACTION);
-      bundle.setId(UUID.randomUUID().toString());
-      bundle
-          .addEntry()
-          .setResource(resource)
-          .setFullUrl(resource.getId())
-          .getRequest()
-          .setMethod(HTTPVerb.PUT)
-          .setUrl(resource.getId());
+      bundle = newTransactionBundle();
+      addPutEntry(bundle, resource);
     }
 
     return pipeline.process(bundle);
   }
+
+  /**
+   * Processes all records of a single poll. Consecutive single-resource records are merged into
+   * transaction bundles of at most {@code maxBatchBundleSize} entries so the pipeline runs once
+   * per merged bundle instead of once per record. Records which already contain a bundle are
+   * processed on their own.
+   *
+   * @param messages the records of the batch, in offset order
+   * @param onProcessed invoked for every successfully processed record with a bundle containing
+   *     only that record's processed entries
+   * @throws BatchListenerFailedException carrying the index of the first record that could not be
+   *     processed, so all preceding records are committed and the failed one can be retried or
+   *     routed to the DLQ.
+   */
+  public void processBatch(List<Message<?>> messages, BiConsumer<Message<?>, Bundle> onProcessed) {
+    BATCH_SIZE_SUMMARY.record(messages.size());
+
+    if (laneCount > 1) {
+      processLanes(messages, onProcessed);
+      return;
+    }
+
+    processRecords(messages, IntStream.range(0, messages.size()).boxed().toList(), onProcessed);
+  }
+
+  /**
+   * Spreads the records across the lanes by the hash of their key and processes the lanes
+   * concurrently. All records with the same key end up in the same lane, so updates to the same
+   * resource are still processed in offset order. {@code onProcessed} may be invoked concurrently
+   * from different lanes.
+   *
+   * <p>Each lane stops at its first failure. Any other exception than a {@link
+   * BatchListenerFailedException} is attributed to the first record of the lane which was not
+   * emitted yet. Once all lanes are done, the failure with the lowest index is thrown, so only the
+   * contiguous range of records preceding it is committed. Records after it which were already
+   * processed by other lanes are redelivered and processed again, which is safe since all store
+   * writes are idempotent upserts.
+   */
+  private void processLanes(List<Message<?>> messages, BiConsumer<Message<?>, Bundle> onProcessed) {
+    var lanes = new ArrayList<List<Integer>>(laneCount);
+    for (var i = 0; i < laneCount; i++) {
+      lanes.add(new ArrayList<>());
+    }
+    for (var i = 0; i < messages.size(); i++) {
+      lanes.get(laneOf(messages.get(i))).add(i);
+    }
+
+    var failures = new ConcurrentLinkedQueue<BatchListenerFailedException>();
+    var mdc = MDC.getCopyOfContextMap();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (var lane : lanes) {
+        if (lane.isEmpty()) {
+          continue;
+        }
+        BATCH_LANE_SIZE_SUMMARY.record(lane.size());
+        executor.execute(
+            () -> {
+              if (mdc != null) {
+                MDC.setContextMap(mdc);
+              }
+              var emitted = Collections.newSetFromMap(new IdentityHashMap<Message<?>, Boolean>());
+              try {
+                processRecords(
+                    messages,
+                    lane,
+                    (message, processed) -> {
+                      onProcessed.accept(message, processed);
+                      emitted.add(message);
+                    });
+              } catch (BatchListenerFailedException exc) {
+                failures.add(exc);
+              } catch (RuntimeException exc) {
+                var index =
+                    lane.stream()
+                        .filter(i -> !emitted.contains(messages.get(i)))
+                        .findFirst()
+                        .orElse(lane.getLast());
+                failures.add(
+                    new BatchListenerFailedException(
+                        "Failed to process record " + index + " of the batch", exc, index));
+              } finally {
+                MDC.clear();
+              }
+            });
+      }
+    }
+
+    var firstFailure =
+        failures.stream().min(Comparator.comparingInt(BatchListenerFailedException::getIndex));
+    if (firstFailure.isPresent()) {
+      failures.stream()
+          .filter(failure -> failure != firstFailure.get())
+          .forEach(failure -> firstFailure.get().addSuppressed(failure));
+      throw firstFailure.get();
+    }
+  }
+
+  /**
+   * Returns the lane of the record, determined by its key. Records without a key are assigned by
+   * their resource id instead.
+   */
+  private int laneOf(Message<?> message) {
+    var key = message.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+    if (key == null && message.getPayload() instanceof Resource resource) {
+      key = resource.getId();
+    }
+
+    int hash;
+    if (key instanceof byte[] bytes) {
+      hash = Arrays.hashCode(bytes);
+    } else {
+      hash = key == null ? 0 : key.hashCode();
+    }
+    return Math.floorMod(hash, laneCount);
+  }
+
+  /** Processes the records at the given indices of the batch in order. */
+  private void processRecords(
+      List<Message<?>> messages,
+      List<Integer> indices,
+      BiConsumer<Message<?>, Bundle> onProcessed) {
+    var chunks = new ArrayList<List<Integer>>();
+    var chunk = new ArrayList<Integer>();
+    var chunkIds = new HashSet<String>();
+
+    for (var i : indices) {
+      var payload = messages.get(i).getPayload();
+
+      if (payload instanceof KafkaNull) {
+        LOG.debug("Ignoring message with a null payload at {} of the batch", kv("index", i));
+        continue;
+      }
+
+      if (isRetryPending(messages.get(i))) {
+        retryTopics.get().defer(messages.get(i));
+        continue;
+      }
+
+      var resource = (Resource) payload;
+      var isBundle = resource instanceof Bundle;
+
+      // a transaction must not contain the same resource twice, so a repeated id starts a new
+      // bundle. This also keeps the original ordering of updates to the same resource.
+      if (isBundle || chunk.size() >= maxBatchBundleSize || chunkIds.contains(resource.getId())) {
+        if (!chunk.isEmpty()) {
+          chunks.add(chunk);
+        }
+        chunk = new ArrayList<>();
+        chunkIds.clear();
+      }
+
+      if (isBundle) {
+        chunks.add(List.of(i));
+      } else {
+        chunk.add(i);
+        chunkIds.add(resource.getId());
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+
+    if (pipeline.isPipelined()) {
+      processChunksPipelined(messages, chunks, onProcessed);
+    } else if (pipeline.defersWrites()) {
+      processChunksGathered(messages, chunks, onProcessed);
+    } else {
+      chunks.forEach(c -> processChunk(messages, c, onProcessed));
+    }
+  }
+
+  /**
+   * Submits all chunks to a pipelined run first, so the pipeline stages can work on several of them
+   * at the same time, and then emits the results in order. Once a chunk fails, it and all following
+   * ones are processed again one after the other, just like without pipelining. The run guarantees
+   * none of them were saved after the failed one, so this can't reorder any updates.
+   */
+  private void processChunksPipelined(
+      List<Message<?>> messages,
+      List<List<Integer>> chunks,
+      BiConsumer<Message<?>, Bundle> onProcessed) {
+    var run = pipeline.newPipelinedRun();
+    var futures = new ArrayList<CompletableFuture<Bundle>>(chunks.size());
+    try {
+      for (var chunk : chunks) {
+        futures.add(run.submit(toBundle(messages, chunk)));
+      }
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while submitting the batch", exc);
+    }
+
+    for (var i = 0; i < chunks.size(); i++) {
+      var chunk = chunks.get(i);
+      Bundle processed;
+      try {
+        processed = futures.get(i).join();
+      } catch (CompletionException | CancellationException exc) {
+        LOG.warn(
+            "Pipelined processing of {} failed. Processing it and all following ones one after"
+                + " the other.",
+            kv("chunkIndex", i),
+            exc);
+        BATCH_FALLBACK_COUNTER.increment();
+        chunks.subList(i, chunks.size()).forEach(c -> processChunk(messages, c, onProcessed));
+        return;
+      }
+
+      if (chunk.size() == 1) {
+        emit(messages, chunk.getFirst(), processed, onProcessed);
+      } else if (!emitEntries(messages, chunk, processed, onProcessed)) {
+        // this chunk was saved, so the following ones may be saved concurrently. Wait for them
+        // before processing them again, so their saves can't overtake the repeated ones.
+        var remaining = futures.subList(i + 1, futures.size()).toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(remaining).handle((result, exc) -> null).join();
+        BATCH_FALLBACK_COUNTER.increment();
+        chunks.subList(i, chunks.size()).forEach(c -> processChunk(messages, c, onProcessed));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Processes all chunks without waiting for stores which gather the writes of several bundles, so
+   * the writes of the whole batch are stored together, and then emits the results in order once
+   * they have been saved. Once a chunk fails, all following ones are waited for and processed again
+   * one after the other, just like without gathering. They may have been saved already, which is
+   * safe since each store applies the writes in order and all of them are idempotent upserts.
+   */
+  private void processChunksGathered(
+      List<Message<?>> messages,
+      List<List<Integer>> chunks,
+      BiConsumer<Message<?>, Bundle> onProcessed) {
+    var futures = new ArrayList<CompletableFuture<Bundle>>(chunks.size());
+    for (var chunk : chunks) {
+      var future = pipeline.processDeferred(toBundle(messages, chunk));
+      futures.add(future);
+      // the chunk could not be processed at all, so don't save any of the following ones
+      if (future.isCompletedExceptionally()) {
+        break;
+      }
+    }
+
+    for (var i = 0; i < futures.size(); i++) {
+      var chunk = chunks.get(i);
+      Bundle processed = null;
+      try {
+        processed = futures.get(i).join();
+      } catch (CompletionException | CancellationException exc) {
+        LOG.warn(
+            "Gathered processing of {} failed. Processing it and all following ones one after"
+                + " the other.",
+            kv("chunkIndex", i),
+            exc);
+      }
+
+      if (processed != null && chunk.size() == 1) {
+        emit(messages, chunk.getFirst(), processed, onProcessed);
+      } else if (processed == null || !emitEntries(messages, chunk, processed, onProcessed)) {
+        var remaining = futures.subList(i + 1, futures.size()).toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(remaining).handle((result, exc) -> null).join();
+        BATCH_FALLBACK_COUNTER.increment();
+        chunks.subList(i, chunks.size()).forEach(c -> processChunk(messages, c, onProcessed));
+        return;
+      }
+    }
+  }
+
+  private void processChunk(
+      List<Message<?>> messages, List<Integer> chunk, BiConsumer<Message<?>, Bundle> onProcessed) {
+    // an earlier record of the chunk may have been published to a retry topic in the meantime
+    if (chunk.size() == 1 || chunk.stream().map(messages::get).anyMatch(this::isRetryPending)) {
+      chunk.forEach(index -> processRecord(messages, index, onProcessed));
+      return;
+    }
+
+    var bundle = toBundle(messages, chunk);
+
+    LOG.debug(
+        "Processing merged {} containing {}",
+        kv("bundleId", bundle.getId()),
+        kv("bundleSize", chunk.size()));
+
+    Bundle processed;
+    try {
+      processed = pipeline.process(bundle);
+    } catch (RuntimeException exc) {
+      LOG.warn(
+          "Processing merged bundle of {} failed. Falling back to processing each record.",
+          kv("bundleSize", chunk.size()),
+          exc);
+      BATCH_FALLBACK_COUNTER.increment();
+      chunk.forEach(index -> processRecord(messages, index, onProcessed));
+      return;
+    }
+
+    if (!emitEntries(messages, chunk, processed, onProcessed)) {
+      BATCH_FALLBACK_COUNTER.increment();
+      chunk.forEach(index -> processRecord(messages, index, onProcessed));
+    }
+  }
+
+  /**
+   * Returns the bundle of a single-bundle record as it is, or merges the records of the chunk into
+   * a transaction bundle.
+   */
+  private static Bundle toBundle(List<Message<?>> messages, List<Integer> chunk) {
+    if (chunk.size() == 1 && messages.get(chunk.getFirst()).getPayload() instanceof Bundle b) {
+      return b;
+    }
+
+    var bundle = newTransactionBundle();
+    for (var index : chunk) {
+      addPutEntry(bundle, (Resource) messages.get(index).getPayload());
+    }
+
+    if (chunk.size() > 1) {
+      BATCH_BUNDLE_SIZE_SUMMARY.record(chunk.size());
+    }
+    return bundle;
+  }
+
+  /**
+   * Emits each entry of the processed merged bundle for its originating record.
+   *
+   * @return false if the entries can't be mapped back to the records, so nothing was emitted
+   */
+  private boolean emitEntries(
+      List<Message<?>> messages,
+      List<Integer> chunk,
+      Bundle processed,
+      BiConsumer<Message<?>, Bundle> onProcessed) {
+    // the pipeline stages keep the entry order intact, so entries can be mapped back to their
+    // originating records by position. Should that ever not hold, the records are re-processed
+    // on their own. This is safe since all store writes are idempotent upserts.
+    if (processed.getEntry().size() != chunk.size()) {
+      LOG.warn(
+          "Processed bundle contains {} but {} were expected. Falling back to processing each"
+              + " record.",
+          kv("actualSize", processed.getEntry().size()),
+          kv("expectedSize", chunk.size()));
+      return false;
+    }
+
+    for (var i = 0; i < chunk.size(); i++) {
+      var single = new Bundle();
+      single.setType(processed.getType());
+      single.setId(UUID.randomUUID().toString());
+      single.addEntry(processed.getEntry().get(i));
+      emit(messages, chunk.get(i), single, onProcessed);
+    }
+    return true;
+  }
+
+  private void processRecord(
+      List<Message<?>> messages, int index, BiConsumer<Message<?>, Bundle> onProcessed) {
+    if (isRetryPending(messages.get(index))) {
+      retryTopics.get().defer(messages.get(index));
+      return;
+    }
+
+    Bundle processed;
+    try {
+      processed = process(messages.get(index));
+    } catch (RuntimeException exc) {
+      if (retryTopics.isPresent()) {
+        retryTopics.get().publish(messages.get(index), 0, exc);
+        return;
+      }
+      throw new BatchListenerFailedException(
+          "Failed to process record " + index + " of the batch", exc, index);
+    }
+
+    if (processed != null) {
+      emit(messages, index, processed, onProcessed);
+    }
+  }
+
+  private static void emit(
+      List<Message<?>> messages,
+      int index,
+      Bundle processed,
+      BiConsumer<Message<?>, Bundle> onProcessed) {
+    try {
+      onProcessed.accept(messages.get(index), processed);
+    } catch (RuntimeException exc) {
+      throw new BatchListenerFailedException(
+          "Failed to handle the processed record " + index + " of the batch", exc, index);
+    }
+  }
+
+  /**
+   * Splits a batch message as delivered by the binder in batch mode into one message per record,
+   * carrying over each record's topic, key, partition and offset.
+   */
+  protected static List<Message<?>> splitBatch(Message<? extends List<?>> batch) {
+    var headers = batch.getHeaders();
+    var payloads = batch.getPayload();
+    var topics = headers.get(KafkaHeaders.RECEIVED_TOPIC, List.class);
+    var keys = headers.get(KafkaHeaders.RECEIVED_KEY, List.class);
+    var partitions = headers.get(KafkaHeaders.RECEIVED_PARTITION, List.class);
+    var offsets = headers.get(KafkaHeaders.OFFSET, List.class);
+
+    var messages = new ArrayList<Message<?>>(payloads.size());
+    for (var i = 0; i < payloads.size(); i++) {
+      Object payload = payloads.get(i);
+      var builder = MessageBuilder.withPayload(payload == null ? KafkaNull.INSTANCE : payload);
+      if (topics != null) {
+        builder.setHeader(KafkaHeaders.RECEIVED_TOPIC, topics.get(i));
+      }
+      if (keys != null) {
+        builder.setHeader(KafkaHeaders.RECEIVED_KEY, keys.get(i));
+      }
+      if (partitions != null && offsets != null) {
+        builder
+            .setHeader(KafkaHeaders.RECEIVED_PARTITION, partitions.get(i))
+            .setHeader(KafkaHeaders.OFFSET, offsets.get(i));
+      }
+      messages.add(builder.build());
+    }
+    return messages;
+  }
+
+  private static Bundle newTransactionBundle() {
+    var bundle = new Bundle();
+    bundle.setType(BundleType.TRANSACTION);
+    bundle.setId(UUID.randomUUID().toString());
+    return bundle;
+  }
+
+  private static void addPutEntry(Bundle bundle, Resource resource) {
+    bundle
+        .addEntry()
+        .setResource(resource)
+        .setFullUrl(resource.getId())
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl(resource.getId());
+  }
 }
@@ -0,0 +1,135 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Quantity;
+import org.miracum.etl.fhirgateway.config.EmbeddedLoincConversionConfig;
+import org.miracum.etl.fhirgateway.models.loinc.LinearLoincConversion;
+import org.miracum.etl.fhirgateway.models.loinc.LoincConversion;
+import org.miracum.etl.fhirgateway.models.loinc.LoincUnitKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * Converts LOINC-coded quantities in-process using a conversion table read from a local file
+ * instead of calling the conversion service. The file is checked for modifications at most once
+ * per {@code reloadCheckInterval} and re-read if it changed.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.loinc.conversions.enabled} and '${services.loinc.conversions.mode}' == 'embedded'")
+public class EmbeddedLoincConverter {
+  private static final Logger log = LoggerFactory.getLogger(EmbeddedLoincConverter.class);
+
+  private static final Timer CONVERSION_DURATION_TIMER =
+      Timer.builder("fhirgateway.loinc.embedded.conversion.duration")
+          .description("Time taken to convert a single quantity using the embedded table")
+          .minimumExpectedValue(Duration.ofNanos(100))
+          .maximumExpectedValue(Duration.ofMillis(10))
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final Timer RELOAD_DURATION_TIMER =
+      Timer.builder("fhirgateway.loinc.embedded.reload.duration")
+          .description("Time taken to load the embedded LOINC conversion table")
+          .register(Metrics.globalRegistry);
+  private static final Counter RELOAD_ERRORS_COUNTER =
+      Counter.builder("fhirgateway.loinc.embedded.reload.errors.total")
+          .description("Number of failed attempts to reload the LOINC conversion table")
+          .register(Metrics.globalRegistry);
+
+  private final Path tableFile;
+  private final long reloadCheckIntervalNanos;
+
+  private volatile Map<LoincUnitKey, LinearLoincConversion> table;
+  private volatile FileTime loadedModificationTime;
+  private volatile long lastReloadCheckNanos;
+
+  public EmbeddedLoincConverter(EmbeddedLoincConversionConfig config) throws IOException {
+    if (StringUtils.isBlank(config.tableFile())) {
+      throw new IllegalArgumentException(
+          "services.loinc.conversions.embedded.table-file must be set in embedded mode");
+    }
+
+    this.tableFile = Path.of(config.tableFile());
+    this.reloadCheckIntervalNanos = config.reloadCheckInterval().toNanos();
+    this.loadedModificationTime = Files.getLastModifiedTime(tableFile);
+    this.table = load(tableFile);
+    this.lastReloadCheckNanos = System.nanoTime();
+
+    Gauge.builder("fhirgateway.loinc.embedded.table.size", this, c -> c.table.size())
+        .description("Number of conversions in the embedded LOINC conversion table")
+        .register(Metrics.globalRegistry);
+  }
+
+  public Optional<LoincConversion> convert(String loinc, Quantity input) {
+    var start = System.nanoTime();
+    try {
+      if (start - lastReloadCheckNanos >= reloadCheckIntervalNanos) {
+        reloadIfModified();
+      }
+
+      if (!input.hasValue()) {
+        return Optional.empty();
+      }
+
+      return Optional.ofNullable(table.get(new LoincUnitKey(loinc, input.getCode())))
+          .map(conversion -> conversion.apply(input.getValue()));
+    } finally {
+      CONVERSION_DURATION_TIMER.record(Duration.ofNanos(System.nanoTime() - start));
+    }
+  }
+
+  private synchronized void reloadIfModified() {
+    var now = System.nanoTime();
+    if (now - lastReloadCheckNanos < reloadCheckIntervalNanos) {
+      // another thread has just checked
+      return;
+    }
+    lastReloadCheckNanos = now;
+
+    try {
+      var modificationTime = Files.getLastModifiedTime(tableFile);
+      if (modificationTime.equals(loadedModificationTime)) {
+        return;
+      }
+
+      table = load(tableFile);
+      loadedModificationTime = modificationTime;
+    } catch (IOException exc) {
+      RELOAD_ERRORS_COUNTER.increment();
+      log.error(
+          "Failed to reload the LOINC conversion table from {}. Keeping the previous table.",
+          kv("tableFile", tableFile),
+          exc);
+    }
+  }
+
+  private static Map<LoincUnitKey, LinearLoincConversion> load(Path tableFile)
+      throws IOException {
+    var sample = Timer.start();
+    try {
+      var loaded = LoincConversionTable.read(tableFile);
+      log.info(
+          "Loaded LOINC conversion table from {} with {}",
+          kv("tableFile", tableFile),
+          kv("conversionCount", loaded.size()));
+      return loaded;
+    } finally {
+      sample.stop(RELOAD_DURATION_TIMER);
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.miracum.etl.fhirgateway.config.EmbeddedPseudonymizerConfig;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.Child;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.DateShiftScope;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.Rule;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.Where;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
+
+/**
+ * De-identifies bundles in-process by applying the anonymization rule set directly to the HAPI
+ * model instead of calling the de-identification service. Supports the subset of rules described
+ * in {@link AnonymizationRuleSet}.
+ *
+ * <p>Just like the service, nested resources are processed before the resource containing them,
+ * and each element is only handled by the first rule matching it. Values hashed using {@code
+ * cryptoHash} are the hex-encoded HMAC-SHA256 of the value. For references, resource ids and full
+ * URLs only the id part is hashed, so references stay resolvable within the de-identified data.
+ * These pseudonyms are not verified to match the ones created by the service.
+ */
+@Service
+@ConditionalOnExpression(
+    "${services.pseudonymizer.enabled} and '${services.pseudonymizer.mode}' == 'embedded'")
+public class EmbeddedPseudonymizer implements ResourceProcessor {
+  private static final Logger log = LoggerFactory.getLogger(EmbeddedPseudonymizer.class);
+
+  private static final Timer DE_IDENTIFICATION_DURATION_TIMER =
+      Timer.builder("fhirgateway.deidentify.embedded.duration")
+          .description("Time taken to de-identify the FHIR bundle in-process")
+          .minimumExpectedValue(Duration.ofNanos(100))
+          .maximumExpectedValue(Duration.ofSeconds(1))
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+
+  // a literal reference like 'Patient/123', optionally absolute and versioned
+  private static final Pattern LITERAL_REFERENCE_PATTERN =
+      Pattern.compile("^(.*?/?[A-Z][A-Za-z]+/)([^/]+)(/_history/[^/]+)?$");
+  private static final List<String> URN_PREFIXES = List.of("urn:uuid:", "urn:oid:", "#");
+
+  private static final int MAX_DATE_SHIFT_DAYS = 50;
+
+  private final AnonymizationRuleSet ruleSet;
+  private final HmacUtils cryptoHash;
+  private final HmacUtils dateShiftHash;
+
+  public EmbeddedPseudonymizer(FhirContext fhirContext, EmbeddedPseudonymizerConfig config)
+      throws IOException {
+    this(loadRuleSet(fhirContext, config));
+  }
+
+  EmbeddedPseudonymizer(AnonymizationRuleSet ruleSet) {
+    this.ruleSet = ruleSet;
+    // HmacUtils rejects empty keys, unused keys are replaced by a placeholder
+    this.cryptoHash =
+        new HmacUtils(
+            HmacAlgorithms.HMAC_SHA_256, StringUtils.defaultIfEmpty(ruleSet.cryptoHashKey(), "-"));
+    this.dateShiftHash =
+        new HmacUtils(
+            HmacAlgorithms.HMAC_SHA_256, StringUtils.defaultIfEmpty(ruleSet.dateShiftKey(), "-"));
+
+    log.info("Using embedded pseudonymizer with {}", kv("ruleCount", ruleSet.rules().size()));
+  }
+
+  private static AnonymizationRuleSet loadRuleSet(
+      FhirContext fhirContext, EmbeddedPseudonymizerConfig config) throws IOException {
+    if (StringUtils.isBlank(config.rulesFile())) {
+      throw new IllegalArgumentException(
+          "services.pseudonymizer.embedded.rules-file must be set in embedded mode");
+    }
+    return AnonymizationRuleSet.read(Path.of(config.rulesFile()), fhirContext);
+  }
+
+  @Override
+  public String name() {
+    return "pseudonymizer";
+  }
+
+  /**
+   * De-identifies a copy of the bundle, so the original stays untouched should it have to be
+   * processed again.
+   */
+  @Override
+  public Bundle process(Bundle bundle) {
+    var sample = Timer.start();
+    try {
+      var copy = bundle.copy();
+      anonymize(copy, Collections.newSetFromMap(new IdentityHashMap<>()));
+      return copy;
+    } finally {
+      sample.stop(DE_IDENTIFICATION_DURATION_TIMER);
+    }
+  }
+
+  private void anonymize(Resource resource, Set<Base> handled) {
+    if (resource instanceof Bundle bundle) {
+      for (var entry : bundle.getEntry()) {
+        if (entry.hasResource()) {
+          anonymize(entry.getResource(), handled);
+        }
+      }
+    }
+    if (resource instanceof DomainResource domainResource) {
+      domainResource.getContained().forEach(contained -> anonymize(contained, handled));
+    }
+
+    // computed before any rule possibly hashes the resource id
+    var dateShiftDays = dateShiftDays(resource);
+
+    for (var rule : ruleSet.rules()) {
+      var resourceType = rule.resourceType();
+      if (resourceType != null && !resourceType.equals(resource.fhirType())) {
+        continue;
+      }
+
+      for (var node : evaluate(rule, resource)) {
+        for (var primitive : primitivesOf(node)) {
+          // the first rule matching an element wins
+          if (handled.add(primitive)) {
+            apply(rule, primitive, dateShiftDays);
+          }
+        }
+      }
+    }
+  }
+
+  private static List<Base> evaluate(Rule rule, Resource resource) {
+    List<Base> nodes;
+    var nodeType = rule.nodeType();
+    if (nodeType != null) {
+      nodes = new ArrayList<>();
+      collectNodesOfType(resource, nodeType, nodes);
+    } else {
+      nodes = List.of(resource);
+    }
+
+    for (var step : rule.steps()) {
+      var next = new ArrayList<Base>();
+      for (var node : nodes) {
+        switch (step) {
+          case Child child -> next.addAll(childrenOf(node, child.name()));
+          case Where where -> {
+            var matches =
+                childrenOf(node, where.child()).stream()
+                    .anyMatch(c -> c.isPrimitive() && where.value().equals(c.primitiveValue()));
+            if (matches) {
+              next.add(node);
+            }
+          }
+        }
+      }
+      nodes = next;
+    }
+
+    return nodes;
+  }
+
+  private static List<Base> childrenOf(Base node, String name) {
+    var children = node.getProperty(name.hashCode(), name, false);
+    return children == null ? List.of() : List.of(children);
+  }
+
+  /** Collects all nodes of the type within the resource, without descending into nested ones. */
+  private static void collectNodesOfType(Base node, String type, List<Base> result) {
+    for (var property : node.children()) {
+      for (var value : property.getValues()) {
+        if (value instanceof Resource) {
+          continue;
+        }
+        if (type.equals(value.fhirType())) {
+          result.add(value);
+        }
+        collectNodesOfType(value, type, result);
+      }
+    }
+  }
+
+  /** Returns the node itself if it is a primitive, or all primitives nested within it. */
+  private static List<PrimitiveType<?>> primitivesOf(Base node) {
+    var result = new ArrayList<PrimitiveType<?>>();
+    collectPrimitives(node, result);
+    return result;
+  }
+
+  private static void collectPrimitives(Base node, List<PrimitiveType<?>> result) {
+    if (node instanceof PrimitiveType<?> primitive) {
+      result.add(primitive);
+      return;
+    }
+    for (var property : node.children()) {
+      for (var value : property.getValues()) {
+        if (!(value instanceof Resource)) {
+          collectPrimitives(value, result);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void apply(Rule rule, PrimitiveType<?> primitive, int dateShiftDays) {
+    if (!primitive.hasValue()) {
+      return;
+    }
+
+    switch (rule.method()) {
+      case CRYPTO_HASH -> {
+        // only textual values can hold a hash, all others are left as they are
+        if (primitive instanceof StringType || primitive instanceof UriType) {
+          primitive.setValueAsString(hashIdPart(primitive.getValueAsString()));
+        }
+      }
+      case REDACT -> ((PrimitiveType<Object>) primitive).setValue(null);
+      case DATE_SHIFT -> {
+        if (primitive instanceof BaseDateTimeType dateTime) {
+          dateTime.add(Calendar.DATE, dateShiftDays);
+        }
+      }
+      case KEEP -> {
+        // explicitly excluded from all following rules
+      }
+    }
+  }
+
+  /**
+   * Hashes the id part of references, resource ids and full URLs, keeping their resource type,
+   * base URL and version. All other values are hashed as a whole.
+   */
+  String hashIdPart(String value) {
+    for (var prefix : URN_PREFIXES) {
+      if (value.startsWith(prefix)) {
+        return prefix + cryptoHash.hmacHex(value.substring(prefix.length()));
+      }
+    }
+
+    var reference = LITERAL_REFERENCE_PATTERN.matcher(value);
+    if (reference.matches()) {
+      var version = reference.group(3);
+      return reference.group(1)
+          + cryptoHash.hmacHex(reference.group(2))
+          + (version == null ? "" : version);
+    }
+
+    return cryptoHash.hmacHex(value);
+  }
+
+  /**
+   * Derives a stable shift between -50 and +50 days from the date shift key and, depending on the
+   * scope, the resource id.
+   */
+  private int dateShiftDays(Resource resource) {
+    var scope =
+        ruleSet.dateShiftScope() == DateShiftScope.RESOURCE
+            ? resource.getIdElement().getIdPart()
+            : null;
+    var hash = dateShiftHash.hmac(StringUtils.defaultString(scope));
+    var range = 2 * MAX_DATE_SHIFT_DAYS + 1;
+    return Math.floorMod(ByteBuffer.wrap(hash).getInt(), range) - MAX_DATE_SHIFT_DAYS;
+  }
+}
@@ -4,11 +4,20 @@ import static net.logstash.logback.argument.StructuredArguments.kv;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Parameters;
+import org.miracum.etl.fhirgateway.batching.MicroBatcher;
+import org.miracum.etl.fhirgateway.config.PseudonymizerCoalescingConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -17,8 +26,9 @@ import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Service;
 
 @Service
-@ConditionalOnExpression("${services.pseudonymizer.enabled}")
-public class FhirPseudonymizer {
+@ConditionalOnExpression(
+    "${services.pseudonymizer.enabled} and '${services.pseudonymizer.mode}' == 'remote'")
+public class FhirPseudonymizer implements ResourceProcessor {
   private static final Logger LOGGER = LoggerFactory.getLogger(FhirPseudonymizer.class);
 
   private static final Timer DE_IDENTIFICATION_DURATION_TIMER =
@@ -28,21 +38,151 @@ public class FhirPseudonymizer {
           .maximumExpectedValue(Duration.ofSeconds(10))
           .publishPercentileHistogram()
           .register(Metrics.globalRegistry);
+  private static final Counter COALESCING_FALLBACK_COUNTER =
+      Counter.builder("fhirgateway.deidentify.coalescing.fallbacks.total")
+          .description(
+              "Number of coalesced requests which failed or whose response could not be split back"
+                  + " into bundles")
+          .register(Metrics.globalRegistry);
 
   private final String pseudonymizerUrl;
   private final RetryTemplate retryTemplate;
   private final IGenericClient client;
+  private final Optional<MicroBatcher<PendingBundle>> coalescer;
 
   public FhirPseudonymizer(
       FhirContext fhirContext,
       @Value("${services.pseudonymizer.url}") String pseudonymizerUrl,
-      RetryTemplate retryTemplate) {
+      RetryTemplate retryTemplate,
+      PseudonymizerCoalescingConfig coalescingConfig) {
     this.client = fhirContext.newRestfulGenericClient(pseudonymizerUrl);
     this.pseudonymizerUrl = pseudonymizerUrl;
     this.retryTemplate = retryTemplate;
+
+    if (coalescingConfig.enabled()) {
+      this.coalescer =
+          Optional.of(
+              new MicroBatcher<>(
+                  "pseudonymizer",
+                  coalescingConfig.maxBatchSize(),
+                  coalescingConfig.linger(),
+                  coalescingConfig.queueCapacity(),
+                  coalescingConfig.maxConcurrentRequests(),
+                  this::deIdentifyCoalesced));
+    } else {
+      this.coalescer = Optional.empty();
+    }
+  }
+
+  @PreDestroy
+  void close() throws InterruptedException {
+    if (coalescer.isPresent()) {
+      coalescer.get().close();
+    }
+  }
+
+  @Override
+  public String name() {
+    return "pseudonymizer";
   }
 
+  @Override
   public Bundle process(Bundle bundle) {
+    if (coalescer.isPresent()) {
+      return processCoalesced(coalescer.get(), bundle);
+    }
+
+    return deIdentify(bundle);
+  }
+
+  /**
+   * Waits for the bundle to be de-identified together with other bundles pending at the same
+   * time.
+   */
+  private Bundle processCoalesced(MicroBatcher<PendingBundle> batcher, Bundle bundle) {
+    var pending = new PendingBundle(bundle, new AtomicReference<>(), new AtomicReference<>());
+    try {
+      batcher.submit(List.of(pending)).get();
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for de-identification", exc);
+    } catch (ExecutionException exc) {
+      if (exc.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException("Failed to de-identify the bundle", exc.getCause());
+    }
+
+    var error = pending.error().get();
+    if (error != null) {
+      throw error;
+    }
+    var result = pending.result().get();
+    if (result == null) {
+      throw new IllegalStateException("The coalesced de-identification returned no result");
+    }
+    return result;
+  }
+
+  /**
+   * De-identifies several bundles using a single request. The bundles are sent as the entries of
+   * a collection bundle, so each one keeps its own type and metadata and the results can be
+   * mapped back to the original bundles by their position. If that fails, each bundle is
+   * de-identified on its own, so a single bundle the service rejects doesn't fail all others.
+   */
+  private void deIdentifyCoalesced(List<PendingBundle> pending) {
+    if (pending.size() == 1) {
+      var single = pending.getFirst();
+      single.result().set(deIdentify(single.bundle()));
+      return;
+    }
+
+    var collection = new Bundle().setType(BundleType.COLLECTION);
+    pending.forEach(p -> collection.addEntry().setResource(p.bundle()));
+
+    Bundle result;
+    try {
+      result = deIdentify(collection);
+    } catch (RuntimeException exc) {
+      LOGGER.warn(
+          "De-identifying the collection of {} failed. Falling back to de-identifying each bundle.",
+          kv("size", pending.size()),
+          exc);
+      COALESCING_FALLBACK_COUNTER.increment();
+      pending.forEach(this::deIdentifySingle);
+      return;
+    }
+
+    var entries = result.getEntry();
+    var isSplittable =
+        entries.size() == pending.size()
+            && entries.stream().allMatch(entry -> entry.getResource() instanceof Bundle);
+    if (!isSplittable) {
+      LOGGER.warn(
+          "De-identified collection contains {} but {} were expected. Falling back to"
+              + " de-identifying each bundle.",
+          kv("actualSize", entries.size()),
+          kv("expectedSize", pending.size()));
+      COALESCING_FALLBACK_COUNTER.increment();
+      pending.forEach(this::deIdentifySingle);
+      return;
+    }
+
+    for (var i = 0; i < pending.size(); i++) {
+      pending.get(i).result().set((Bundle) entries.get(i).getResource());
+    }
+  }
+
+  /** De-identifies the bundle on its own, keeping any failure for its caller only. */
+  private void deIdentifySingle(PendingBundle pending) {
+    try {
+      pending.result().set(deIdentify(pending.bundle()));
+    } catch (RuntimeException exc) {
+      pending.error().set(exc);
+    }
+  }
+
+  Bundle deIdentify(Bundle bundle) {
     LOGGER.debug(
         "Invoking pseudonymization service @ {}", kv("pseudonymizerUrl", pseudonymizerUrl));
 
@@ -61,4 +201,7 @@ public class FhirPseudonymizer {
                         .returnResourceType(Bundle.class)
                         .execute()));
   }
+
+  private record PendingBundle(
+      Bundle bundle, AtomicReference<Bundle> result, AtomicReference<RuntimeException> error) {}
 }
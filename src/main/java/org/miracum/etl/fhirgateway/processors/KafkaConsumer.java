@@ -1,5 +1,7 @@
 package org.miracum.etl.fhirgateway.processors;
 
+import java.util.List;
+import java.util.Optional;
 import java.util.function.Consumer;
 import org.hl7.fhir.r4.model.Resource;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
@@ -9,15 +11,25 @@ import org.springframework.stereotype.Component;
 
 @Component
 @ConditionalOnExpression(
-    "${services.kafka.enabled} and ${services.kafka.processor.enabled} and ${services.kafka.processor.consume-only}")
+    "${services.kafka.enabled} and ${services.kafka.processor.enabled} and ${services.kafka.processor.consume-only} and !${services.kafka.processor.passthrough.enabled}")
 public class KafkaConsumer extends BaseKafkaProcessor {
 
-  public KafkaConsumer(ResourcePipeline pipeline) {
-    super(pipeline);
+  public KafkaConsumer(
+      ResourcePipeline pipeline,
+      KafkaProcessorConfig config,
+      Optional<RetryTopicPublisher> retryTopics) {
+    super(pipeline, config.batch().maxBundleSize(), config.batch().lanes(), retryTopics);
   }
 
   @Bean
+  @ConditionalOnExpression("!${services.kafka.processor.batch.enabled}")
   Consumer<Message<Resource>> process() {
-    return super::process;
+    return this::processOrRetry;
+  }
+
+  @Bean("process")
+  @ConditionalOnExpression("${services.kafka.processor.batch.enabled}")
+  Consumer<Message<List<Resource>>> batchProcess() {
+    return batch -> processBatch(splitBatch(batch), (message, processed) -> {});
   }
 }
@@ -2,8 +2,10 @@ package org.miracum.etl.fhirgateway.processors;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import org.apache.commons.codec.digest.HmacUtils;
@@ -11,6 +13,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.cloud.stream.function.StreamBridge;
 import org.springframework.context.annotation.Bean;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.kafka.support.KafkaHeaders;
@@ -22,16 +25,25 @@ import org.springframework.stereotype.Service;
     "${services.kafka.enabled} and ${services.kafka.processor.enabled} and !${services.kafka.processor.consume-only}")
 public class KafkaProcessor extends BaseKafkaProcessor {
 
+  // the output binding created for the 'process' function when it is not running in batch mode
+  private static final String DEFAULT_OUTPUT_BINDING = "process-out-0";
+
   private final String generateTopicMatchExpression;
   private final String generateTopicReplacement;
   private final Pattern topicPattern;
   private final Optional<HmacUtils> hmac;
-
-  public KafkaProcessor(ResourcePipeline pipeline, KafkaProcessorConfig config) {
-    super(pipeline);
+  private final StreamBridge streamBridge;
+
+  public KafkaProcessor(
+      ResourcePipeline pipeline,
+      KafkaProcessorConfig config,
+      StreamBridge streamBridge,
+      Optional<RetryTopicPublisher> retryTopics) {
+    super(pipeline, config.batch().maxBundleSize(), config.batch().lanes(), retryTopics);
     this.generateTopicMatchExpression = config.generateOutputTopic().matchExpression();
     this.generateTopicReplacement = config.generateOutputTopic().replaceWith();
     this.topicPattern = Pattern.compile(generateTopicMatchExpression);
+    this.streamBridge = streamBridge;
 
     if (config.cryptoHashMessageKeys().enabled()) {
       hmac =
@@ -45,6 +57,7 @@ public class KafkaProcessor extends BaseKafkaProcessor {
   }
 
   @Bean
+  @ConditionalOnExpression("!${services.kafka.processor.batch.enabled}")
   Function<Message<Resource>, Message<Bundle>> process() {
     return message -> {
       if (message == null) {
@@ -52,33 +65,63 @@ public class KafkaProcessor extends BaseKafkaProcessor {
         return null;
       }
 
-      var processed = super.process(message);
+      var processed = processOrRetry(message);
       if (processed == null) {
         return null;
       }
 
-      var originalMessageKey =
-          message.getHeaders().getOrDefault(KafkaHeaders.RECEIVED_KEY, "").toString();
-      var outputMessageKey =
-          hmac.map(h -> h.hmacHex(originalMessageKey)).orElse(originalMessageKey);
-
       var messageBuilder =
-          MessageBuilder.withPayload(processed).setHeader(KafkaHeaders.KEY, outputMessageKey);
-
-      var inputTopic =
-          Objects.requireNonNull(
-              message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC, String.class));
+          MessageBuilder.withPayload(processed)
+              .setHeader(KafkaHeaders.KEY, computeOutputMessageKey(message));
 
-      var outputTopic = computeOutputTopicFromInputTopic(inputTopic);
       // see https://github.com/spring-cloud/spring-cloud-stream/issues/1909 and
       // https://docs.spring.io/spring-cloud-stream/reference/spring-cloud-stream/event-routing.html#routing-from-consumer
-      outputTopic.ifPresent(
-          s -> messageBuilder.setHeader("spring.cloud.stream.sendto.destination", s));
+      computeOutputTopic(message)
+          .ifPresent(s -> messageBuilder.setHeader("spring.cloud.stream.sendto.destination", s));
 
       return messageBuilder.build();
     };
   }
 
+  /**
+   * In batch mode the function can only return a single message for the entire batch, so the
+   * per-record output messages are sent explicitly instead.
+   */
+  @Bean("process")
+  @ConditionalOnExpression("${services.kafka.processor.batch.enabled}")
+  Consumer<Message<List<Resource>>> batchProcess() {
+    return batch -> processBatch(splitBatch(batch), this::sendOutputMessage);
+  }
+
+  @Override
+  protected void forward(Message<?> message, Bundle processed) {
+    sendOutputMessage(message, processed);
+  }
+
+  private void sendOutputMessage(Message<?> message, Bundle processed) {
+    var outputMessage =
+        MessageBuilder.withPayload(processed)
+            .setHeader(KafkaHeaders.KEY, computeOutputMessageKey(message))
+            .build();
+
+    var destination = computeOutputTopic(message).orElse(DEFAULT_OUTPUT_BINDING);
+    if (!streamBridge.send(destination, outputMessage)) {
+      throw new IllegalStateException("Failed to send the processed bundle to " + destination);
+    }
+  }
+
+  private String computeOutputMessageKey(Message<?> message) {
+    var originalMessageKey =
+        message.getHeaders().getOrDefault(KafkaHeaders.RECEIVED_KEY, "").toString();
+    return hmac.map(h -> h.hmacHex(originalMessageKey)).orElse(originalMessageKey);
+  }
+
+  private Optional<String> computeOutputTopic(Message<?> message) {
+    var inputTopic =
+        Objects.requireNonNull(message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC, String.class));
+    return computeOutputTopicFromInputTopic(inputTopic);
+  }
+
   private Optional<String> computeOutputTopicFromInputTopic(String inputTopic) {
     if (StringUtils.isNotBlank(generateTopicMatchExpression)
         && StringUtils.isNotBlank(generateTopicReplacement)) {
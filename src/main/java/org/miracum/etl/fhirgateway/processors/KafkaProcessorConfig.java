@@ -7,8 +7,23 @@ import org.springframework.validation.annotation.Validated;
 @ConfigurationProperties(prefix = "services.kafka.processor")
 @Validated
 public record KafkaProcessorConfig(
-    GenerateOutputTopic generateOutputTopic, CryptoHashMessageKeys cryptoHashMessageKeys) {
+    GenerateOutputTopic generateOutputTopic,
+    CryptoHashMessageKeys cryptoHashMessageKeys,
+    Batch batch,
+    Passthrough passthrough) {
   public record GenerateOutputTopic(String matchExpression, String replaceWith) {}
 
   public record CryptoHashMessageKeys(boolean enabled, HmacAlgorithms algorithm, String key) {}
+
+  /**
+   * Batch mode settings. The records of each batch are spread across {@code lanes} by their key,
+   * which are processed concurrently.
+   */
+  public record Batch(boolean enabled, int maxBundleSize, int lanes) {}
+
+  /**
+   * In consume-only mode without any processing stage, store the records in PostgreSQL as they
+   * are, without parsing them into resources first.
+   */
+  public record Passthrough(boolean enabled) {}
 }
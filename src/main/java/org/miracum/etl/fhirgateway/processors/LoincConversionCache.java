@@ -0,0 +1,152 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Quantity;
+import org.miracum.etl.fhirgateway.config.LoincConversionCacheConfig;
+import org.miracum.etl.fhirgateway.models.loinc.LinearLoincConversion;
+import org.miracum.etl.fhirgateway.models.loinc.LoincConversion;
+import org.miracum.etl.fhirgateway.models.loinc.LoincUnitKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the outcome of LOINC conversions per (LOINC, unit) as a linear factor, so repeated
+ * conversions of the same kind of value can be done without calling the conversion service. Since
+ * the service may round its results, a factor is only cached once the results for two different
+ * values agree on it.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.loinc.conversions.enabled} and ${services.loinc.conversions.cache.enabled}")
+public class LoincConversionCache {
+  private static final Logger log = LoggerFactory.getLogger(LoincConversionCache.class);
+
+  private static final String METRIC_PREFIX = "fhirgateway.loinc.conversion.cache";
+
+  // conversions from or to these units involve an offset, so they can't be expressed as a factor
+  private static final Set<String> NON_RATIO_UNITS =
+      Set.of("Cel", "[degF]", "[degR]", "[degRe]", "K");
+
+  private final Cache<LoincUnitKey, LinearLoincConversion> cache;
+  // the last result per (LOINC, unit) whose factor is yet to be confirmed by another one
+  private final Cache<LoincUnitKey, Sample> samples;
+
+  public LoincConversionCache(LoincConversionCacheConfig config) throws IOException {
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(config.maxSize())
+            .expireAfterWrite(config.expireAfterWrite())
+            .recordStats()
+            .build();
+    this.samples =
+        Caffeine.newBuilder()
+            .maximumSize(config.maxSize())
+            .expireAfterWrite(config.expireAfterWrite())
+            .build();
+
+    FunctionCounter.builder(METRIC_PREFIX + ".gets", cache, c -> c.stats().hitCount())
+        .description("Number of LOINC conversions answered from the cache")
+        .tag("result", "hit")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(METRIC_PREFIX + ".gets", cache, c -> c.stats().missCount())
+        .description("Number of LOINC conversions not found in the cache")
+        .tag("result", "miss")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(METRIC_PREFIX + ".evictions", cache, c -> c.stats().evictionCount())
+        .description("Number of LOINC conversions evicted from the cache")
+        .register(Metrics.globalRegistry);
+    Gauge.builder(METRIC_PREFIX + ".size", cache, Cache::estimatedSize)
+        .description("Approximate number of LOINC conversions held in the cache")
+        .register(Metrics.globalRegistry);
+
+    if (StringUtils.isNotBlank(config.warmupFile())) {
+      warmUp(Path.of(config.warmupFile()));
+    }
+  }
+
+  private void warmUp(Path warmupFile) throws IOException {
+    var conversions = LoincConversionTable.read(warmupFile);
+    cache.putAll(conversions);
+    log.info(
+        "Warmed up LOINC conversion cache from {} with {}",
+        kv("warmupFile", warmupFile),
+        kv("conversionCount", conversions.size()));
+  }
+
+  public Optional<LoincConversion> convert(String loinc, Quantity input) {
+    if (!input.hasValue()) {
+      return Optional.empty();
+    }
+
+    return Optional.ofNullable(cache.getIfPresent(new LoincUnitKey(loinc, input.getCode())))
+        .map(conversion -> conversion.apply(input.getValue()));
+  }
+
+  /**
+   * Derives the conversion factor from a result returned by the conversion service and caches it
+   * once the result for another value of the same LOINC and unit yields the same factor. Results
+   * which don't allow deriving a factor are not cached.
+   */
+  public void put(String loinc, Quantity input, LoincConversion result) {
+    var targetLoinc = result.getLoinc();
+    var targetUnit = result.getUnit();
+    var targetValue = result.getValue();
+
+    if (targetLoinc == null
+        || targetUnit == null
+        || targetValue == null
+        || !input.hasValue()
+        || input.getValue().signum() == 0
+        || NON_RATIO_UNITS.contains(input.getCode())
+        || NON_RATIO_UNITS.contains(targetUnit)) {
+      return;
+    }
+
+    var key = new LoincUnitKey(loinc, input.getCode());
+    var factor = targetValue.divide(input.getValue(), MathContext.DECIMAL64);
+    var conversion =
+        new LinearLoincConversion(targetLoinc, targetUnit, result.getDisplay(), factor);
+
+    var previous = samples.getIfPresent(key);
+    if (previous != null && previous.value().compareTo(input.getValue()) == 0) {
+      // the same value again doesn't tell whether the factor was derived from a rounded result
+      return;
+    }
+
+    if (previous != null && agree(previous.conversion(), conversion)) {
+      cache.put(key, conversion);
+      samples.invalidate(key);
+    } else {
+      if (previous != null) {
+        log.debug(
+            "Not caching LOINC conversion of {} {} whose results disagree on the factor",
+            kv("loinc", loinc),
+            kv("unit", input.getCode()));
+      }
+      samples.put(key, new Sample(input.getValue(), conversion));
+    }
+  }
+
+  private static boolean agree(LinearLoincConversion first, LinearLoincConversion second) {
+    return first.loinc().equals(second.loinc())
+        && first.unit().equals(second.unit())
+        && first.factor().compareTo(second.factor()) == 0;
+  }
+
+  private record Sample(BigDecimal value, LinearLoincConversion conversion) {}
+}
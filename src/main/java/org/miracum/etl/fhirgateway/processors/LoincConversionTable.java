@@ -0,0 +1,121 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.models.loinc.LinearLoincConversion;
+import org.miracum.etl.fhirgateway.models.loinc.LoincUnitKey;
+
+/**
+ * Reads a table of LOINC conversions from a CSV file. The first line is a header naming the
+ * columns {@code loinc}, {@code unit}, {@code target_loinc}, {@code target_unit}, {@code factor}
+ * and optionally {@code offset} and {@code display}. Empty lines and lines starting with {@code #}
+ * are skipped.
+ */
+final class LoincConversionTable {
+
+  private LoincConversionTable() {}
+
+  static Map<LoincUnitKey, LinearLoincConversion> read(Path path) throws IOException {
+    try (var reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      var header = reader.readLine();
+      if (header == null) {
+        return Map.of();
+      }
+
+      var columns = new HashMap<String, Integer>();
+      var headerFields = parseLine(header);
+      for (var i = 0; i < headerFields.size(); i++) {
+        columns.put(headerFields.get(i).trim().toLowerCase(), i);
+      }
+
+      var table = new HashMap<LoincUnitKey, LinearLoincConversion>();
+      var lineNumber = 1;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank() || line.startsWith("#")) {
+          continue;
+        }
+
+        var fields = parseLine(line);
+        try {
+          var key =
+              new LoincUnitKey(
+                  requiredField(fields, columns, "loinc"), requiredField(fields, columns, "unit"));
+          var offset = optionalField(fields, columns, "offset");
+          var conversion =
+              new LinearLoincConversion(
+                  requiredField(fields, columns, "target_loinc"),
+                  requiredField(fields, columns, "target_unit"),
+                  optionalField(fields, columns, "display"),
+                  new BigDecimal(requiredField(fields, columns, "factor")),
+                  offset == null ? BigDecimal.ZERO : new BigDecimal(offset));
+          table.put(key, conversion);
+        } catch (IllegalArgumentException exc) {
+          throw new IOException(
+              String.format("Invalid LOINC conversion in %s at line %d", path, lineNumber), exc);
+        }
+      }
+
+      return table;
+    }
+  }
+
+  private static String requiredField(
+      List<String> fields, Map<String, Integer> columns, String name) {
+    var value = optionalField(fields, columns, name);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing value for column " + name);
+    }
+    return value;
+  }
+
+  @Nullable
+  private static String optionalField(
+      List<String> fields, Map<String, Integer> columns, String name) {
+    var index = columns.get(name);
+    if (index == null || index >= fields.size() || fields.get(index).isBlank()) {
+      return null;
+    }
+    return fields.get(index).trim();
+  }
+
+  /** Splits a single CSV line, supporting double-quoted fields with "" as an escaped quote. */
+  static List<String> parseLine(String line) {
+    var fields = new ArrayList<String>();
+    var current = new StringBuilder();
+    var inQuotes = false;
+
+    for (var i = 0; i < line.length(); i++) {
+      var c = line.charAt(i);
+      if (inQuotes) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          current.append('"');
+          i++;
+        } else if (c == '"') {
+          inQuotes = false;
+        } else {
+          current.append(c);
+        }
+      } else if (c == '"') {
+        inQuotes = true;
+      } else if (c == ',') {
+        fields.add(current.toString());
+        current.setLength(0);
+      } else {
+        current.append(c);
+      }
+    }
+
+    fields.add(current.toString());
+    return fields;
+  }
+}
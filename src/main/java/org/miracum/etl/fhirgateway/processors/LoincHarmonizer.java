@@ -3,32 +3,54 @@ package org.miracum.etl.fhirgateway.processors;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.ResourceType;
 import org.miracum.etl.fhirgateway.FhirSystemsConfig;
+import org.miracum.etl.fhirgateway.config.ParallelHarmonizationConfig;
 import org.miracum.etl.fhirgateway.models.loinc.LoincConversion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.data.util.Pair;
+import org.springframework.http.HttpStatus;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 import org.springframework.web.util.UriTemplate;
 
 @Service
 @ConditionalOnExpression("${services.loinc.conversions.enabled}")
-public class LoincHarmonizer {
+public class LoincHarmonizer implements ResourceProcessor {
   private static final Logger log = LoggerFactory.getLogger(LoincHarmonizer.class);
   private static final Timer CONVERSION_DURATION_TIMER =
       Timer.builder("fhirgateway.loinc.conversion.duration")
@@ -37,59 +59,365 @@ public class LoincHarmonizer {
           .maximumExpectedValue(Duration.ofSeconds(5))
           .publishPercentileHistogram()
           .register(Metrics.globalRegistry);
+  private static final Timer BULK_CONVERSION_DURATION_TIMER =
+      Timer.builder("fhirgateway.loinc.conversion.bulk.duration")
+          .description("Time taken to harmonize all Observation resources of a bundle at once")
+          .minimumExpectedValue(Duration.ofMillis(5))
+          .maximumExpectedValue(Duration.ofSeconds(10))
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final DistributionSummary BULK_REQUEST_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.loinc.conversion.bulk.request.size")
+          .description("Number of quantities sent in a single bulk conversion request")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
   private static final String CONVERSION_ERROR_METRIC_NAME =
       "fhirgateway.loinc.conversion.errors.total";
-  private static final HashMap<String, Counter> metricsLookup = new HashMap<>();
+  private static final Map<String, Counter> metricsLookup = new ConcurrentHashMap<>();
 
   private final RestTemplate restTemplate;
   private final URI loincConverterBaseUri;
   private final FhirSystemsConfig fhirSystems;
   private final RetryTemplate retryTemplate;
   private final boolean failOnError;
+  private final Optional<LoincConversionCache> conversionCache;
+  private final AtomicBoolean isBulkConversionAvailable;
+  private final QuantityConverter quantityConverter;
+  private final ParallelHarmonizationConfig parallelConfig;
+  private final Semaphore globalConcurrencyLimit;
+  private final ExecutorService executor;
 
   public LoincHarmonizer(
       RestTemplate restTemplate,
       @Value("${services.loinc.conversions.url}") URI loincConverterUri,
       FhirSystemsConfig fhirSystems,
       @Value("${services.loinc.conversions.failOnError}") boolean failOnError,
-      RetryTemplate retryTemplate) {
+      @Value("${services.loinc.conversions.bulk.enabled}") boolean isBulkConversionEnabled,
+      RetryTemplate retryTemplate,
+      Optional<LoincConversionCache> conversionCache,
+      Optional<EmbeddedLoincConverter> embeddedConverter,
+      ParallelHarmonizationConfig parallelConfig) {
     this.restTemplate = restTemplate;
     this.loincConverterBaseUri = loincConverterUri;
     this.fhirSystems = fhirSystems;
     this.failOnError = failOnError;
     this.retryTemplate = retryTemplate;
+    this.conversionCache = conversionCache;
+
+    // the embedded converter doesn't do any network I/O, so neither bulk requests nor caching
+    // would make it any faster.
+    if (embeddedConverter.isPresent()) {
+      var converter = embeddedConverter.get();
+      this.isBulkConversionAvailable = new AtomicBoolean(false);
+      this.quantityConverter =
+          (input, loincCode) ->
+              converter
+                  .convert(loincCode, input)
+                  .map(conversion -> toHarmonizedQuantity(input, conversion));
+    } else {
+      this.isBulkConversionAvailable = new AtomicBoolean(isBulkConversionEnabled);
+      this.quantityConverter = this::getHarmonizedQuantity;
+    }
+
+    this.parallelConfig = parallelConfig;
+    this.globalConcurrencyLimit = new Semaphore(Math.max(1, parallelConfig.maxConcurrency()));
+    this.executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    Gauge.builder(
+            "fhirgateway.loinc.conversion.inflight",
+            globalConcurrencyLimit,
+            limit -> Math.max(1, parallelConfig.maxConcurrency()) - limit.availablePermits())
+        .description("Number of Observations currently being harmonized in parallel")
+        .register(Metrics.globalRegistry);
+  }
+
+  @PreDestroy
+  void close() {
+    executor.close();
   }
 
   public Observation process(final Observation originalObservation) {
-    return CONVERSION_DURATION_TIMER.record(() -> harmonizeObservation(originalObservation));
+    return CONVERSION_DURATION_TIMER.record(
+        () -> harmonizeObservation(originalObservation, quantityConverter));
   }
 
-  private Observation harmonizeObservation(final Observation originalObservation) {
-    var loincCode =
-        originalObservation.getCode().getCoding().stream()
-            .filter(obs -> obs.getSystem().equals(fhirSystems.getLoinc()))
-            .findFirst();
+  @Override
+  public String name() {
+    return "loinc-harmonizer";
+  }
 
-    var harmonized = originalObservation.copy();
+  @Override
+  public Set<ResourceType> resourceTypes() {
+    return Set.of(ResourceType.Observation);
+  }
+
+  /**
+   * Harmonizes all Observation entries of the bundle in place. If the conversion service supports
+   * it, all quantities of the bundle are converted using a single request. Otherwise, each
+   * Observation is harmonized on its own, optionally in parallel.
+   *
+   * @return the given bundle
+   */
+  @Override
+  public Bundle process(Bundle bundle) {
+    var entries =
+        bundle.getEntry().stream().filter(e -> e.getResource() instanceof Observation).toList();
+
+    if (entries.isEmpty()) {
+      return bundle;
+    }
 
-    // only process observation resources with a set quantity and code
-    if (loincCode.isEmpty()
-        || !originalObservation.hasValueQuantity()
-        || !originalObservation.getValueQuantity().hasCode()) {
+    if (isBulkConversionAvailable.get() && entries.size() > 1) {
+      boolean isHarmonized;
+      var sample = Timer.start();
+      try {
+        isHarmonized = harmonizeInBulk(entries);
+      } finally {
+        sample.stop(BULK_CONVERSION_DURATION_TIMER);
+      }
+
+      if (isHarmonized) {
+        return bundle;
+      }
+    }
+
+    if (parallelConfig.enabled() && entries.size() > 1) {
+      harmonizeInParallel(entries);
+      return bundle;
+    }
+
+    for (var entry : entries) {
+      var observation = (Observation) entry.getResource();
+      try (var ignored = MDC.putCloseable("resourceId", observation.getId())) {
+        entry.setResource(process(observation));
+      }
+    }
+    return bundle;
+  }
+
+  /**
+   * Harmonizes each Observation on its own virtual thread. The number of Observations harmonized
+   * at the same time is limited both per bundle and across all bundles processed concurrently.
+   * The harmonized resources are set on their original entries, so the entry order is preserved.
+   */
+  private void harmonizeInParallel(List<BundleEntryComponent> entries) {
+    var bundleConcurrencyLimit =
+        new Semaphore(Math.max(1, parallelConfig.maxConcurrencyPerBundle()));
+    var mdcContext = MDC.getCopyOfContextMap();
+
+    var futures = new ArrayList<Future<Observation>>(entries.size());
+    for (var entry : entries) {
+      var observation = (Observation) entry.getResource();
+      futures.add(
+          executor.submit(
+              () -> {
+                bundleConcurrencyLimit.acquire();
+                try {
+                  globalConcurrencyLimit.acquire();
+                  try {
+                    if (mdcContext != null) {
+                      MDC.setContextMap(mdcContext);
+                    }
+                    try (var ignored = MDC.putCloseable("resourceId", observation.getId())) {
+                      return process(observation);
+                    }
+                  } finally {
+                    MDC.clear();
+                    globalConcurrencyLimit.release();
+                  }
+                } finally {
+                  bundleConcurrencyLimit.release();
+                }
+              }));
+    }
+
+    try {
+      for (var i = 0; i < entries.size(); i++) {
+        entries.get(i).setResource(futures.get(i).get());
+      }
+    } catch (InterruptedException exc) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while harmonizing Observations", exc);
+    } catch (ExecutionException exc) {
+      futures.forEach(future -> future.cancel(true));
+      if (exc.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException("Failed to harmonize Observations", exc.getCause());
+    }
+  }
+
+  /**
+   * @return false if the entries need to be harmonized one by one instead, either because the
+   *     conversion service doesn't support bulk conversions or because it rejected the request.
+   * @throws RestClientException if the conversion service failed or could not be reached
+   */
+  private boolean harmonizeInBulk(List<BundleEntryComponent> entries) {
+    var pending = new IdentityHashMap<Quantity, PendingConversion>();
+    var results = new IdentityHashMap<Quantity, Pair<Quantity, LoincConversion>>();
+    var requests = new ArrayList<LoincConversion>();
+
+    for (var entry : entries) {
+      var observation = (Observation) entry.getResource();
+      var loincCode = findLoincCoding(observation);
+      if (loincCode.isEmpty() || !isHarmonizable(observation)) {
+        continue;
+      }
+
+      for (var quantity : collectQuantities(observation)) {
+        var cached =
+            conversionCache.flatMap(cache -> cache.convert(loincCode.get().getCode(), quantity));
+        if (cached.isPresent()) {
+          results.put(quantity, toHarmonizedQuantity(quantity, cached.get()));
+          continue;
+        }
+
+        var id = String.valueOf(requests.size());
+        pending.put(quantity, new PendingConversion(id, loincCode.get().getCode()));
+        requests.add(
+            new LoincConversion()
+                .setId(id)
+                .setLoinc(loincCode.get().getCode())
+                .setUnit(quantity.getCode())
+                .setValue(quantity.getValue()));
+      }
+    }
+
+    if (!requests.isEmpty()) {
+      Map<String, LoincConversion> responsesById;
+      try {
+        responsesById = requestBulkConversion(requests);
+      } catch (HttpClientErrorException exc) {
+        if (exc.getStatusCode().isSameCodeAs(HttpStatus.NOT_FOUND)
+            || exc.getStatusCode().isSameCodeAs(HttpStatus.METHOD_NOT_ALLOWED)
+            || exc.getStatusCode().isSameCodeAs(HttpStatus.UNSUPPORTED_MEDIA_TYPE)) {
+          log.info(
+              "LOINC conversion service doesn't support bulk conversions ({}). "
+                  + "Falling back to converting each quantity individually.",
+              kv("statusCode", exc.getStatusCode().value()));
+          isBulkConversionAvailable.set(false);
+          return false;
+        }
+
+        // a single quantity the service can't convert may get the entire request rejected, so
+        // this bundle's quantities are converted one by one, recording any failure per
+        // Observation. Server and connection failures are thrown as they are, since converting
+        // each quantity on its own would only fail the same way again, once per quantity.
+        log.warn(
+            "Bulk LOINC conversion of {} was rejected with {}. Falling back to converting each"
+                + " quantity individually.",
+            kv("requestSize", requests.size()),
+            kv("statusCode", exc.getStatusCode().value()),
+            exc);
+        return false;
+      }
+
+      for (var pendingQuantity : pending.entrySet()) {
+        var quantity = pendingQuantity.getKey();
+        var conversion = pendingQuantity.getValue();
+        var response = responsesById.get(conversion.id());
+        if (response != null
+            && response.getValue() != null
+            && response.getUnit() != null
+            && response.getLoinc() != null) {
+          if (conversionCache.isPresent()) {
+            conversionCache.get().put(conversion.loinc(), quantity, response);
+          }
+          results.put(quantity, toHarmonizedQuantity(quantity, response));
+        }
+      }
+    }
+
+    for (var entry : entries) {
+      var observation = (Observation) entry.getResource();
+      try (var ignored = MDC.putCloseable("resourceId", observation.getId())) {
+        entry.setResource(
+            harmonizeObservation(
+                observation, (quantity, loincCode) -> Optional.ofNullable(results.get(quantity))));
+      }
+    }
+
+    return true;
+  }
+
+  private Map<String, LoincConversion> requestBulkConversion(List<LoincConversion> requests) {
+    BULK_REQUEST_SIZE_SUMMARY.record(requests.size());
+
+    var requestUrl =
+        UriComponentsBuilder.fromUri(loincConverterBaseUri)
+            .path("/conversions")
+            .build()
+            .toUriString();
+
+    var responses =
+        retryTemplate.execute(
+            ctx -> {
+              log.debug(
+                  "Invoking LOINC bulk harmonization service @ {} with {}",
+                  kv("requestUrl", requestUrl),
+                  kv("requestSize", requests.size()));
+              return restTemplate.postForObject(requestUrl, requests, LoincConversion[].class);
+            });
+
+    if (responses == null) {
+      throw new RuntimeException("LOINC conversion service returned empty result.");
+    }
+
+    var responsesById = new HashMap<String, LoincConversion>();
+    for (var response : responses) {
+      var id = response.getId();
+      if (id != null) {
+        responsesById.put(id, response);
+      }
+    }
+    return responsesById;
+  }
+
+  private Optional<Coding> findLoincCoding(Observation observation) {
+    return observation.getCode().getCoding().stream()
+        .filter(obs -> obs.getSystem().equals(fhirSystems.getLoinc()))
+        .findFirst();
+  }
+
+  // only process observation resources with a set quantity and code
+  private static boolean isHarmonizable(Observation observation) {
+    return observation.hasValueQuantity() && observation.getValueQuantity().hasCode();
+  }
+
+  private static List<Quantity> collectQuantities(Observation observation) {
+    var quantities = new ArrayList<Quantity>();
+    quantities.add(observation.getValueQuantity());
+    for (var rangeComponent : observation.getReferenceRange()) {
+      if (rangeComponent.hasLow() && rangeComponent.getLow().hasCode()) {
+        quantities.add(rangeComponent.getLow());
+      }
+      if (rangeComponent.hasHigh() && rangeComponent.getHigh().hasCode()) {
+        quantities.add(rangeComponent.getHigh());
+      }
+    }
+    return quantities;
+  }
+
+  private Observation harmonizeObservation(
+      final Observation originalObservation, QuantityConverter converter) {
+    var loincCode = findLoincCoding(originalObservation);
+
+    if (loincCode.isEmpty() || !isHarmonizable(originalObservation)) {
       return originalObservation;
     }
 
+    var harmonized = originalObservation.copy();
+
     try {
       var originalCode = loincCode.get().getCode();
       // harmonize the observation's main code/value
-      var result = getHarmonizedQuantity(originalObservation.getValueQuantity(), originalCode);
+      var result = converter.convert(originalObservation.getValueQuantity(), originalCode);
 
       if (result.isPresent()) {
         harmonized.setValue(result.get().getFirst());
         Pair<Quantity, LoincConversion> finalResult = result.get();
-        harmonized.getCode().getCoding().stream()
-            .filter(obs -> obs.getSystem().equals(fhirSystems.getLoinc()))
-            .findFirst()
+        findLoincCoding(harmonized)
             .ifPresent(
                 loinc -> {
                   loinc.setCode(finalResult.getSecond().getLoinc());
@@ -101,22 +429,22 @@ public class LoincHarmonizer {
         return harmonized;
       }
 
-      // harmonize the reference range
-      for (var rangeComponent : harmonized.getReferenceRange()) {
-        if (rangeComponent.hasLow()) {
-          var rangeLow = rangeComponent.getLow();
+      // harmonize the reference range. The original quantities are passed to the converter, so
+      // converters may look them up by identity.
+      for (var i = 0; i < originalObservation.getReferenceRange().size(); i++) {
+        var originalRange = originalObservation.getReferenceRange().get(i);
+        var rangeComponent = harmonized.getReferenceRange().get(i);
 
-          result = getHarmonizedQuantity(rangeLow, originalCode);
+        if (originalRange.hasLow()) {
+          result = converter.convert(originalRange.getLow(), originalCode);
 
           result.ifPresent(
               quantityLoincConversionPair ->
                   rangeComponent.setLow(quantityLoincConversionPair.getFirst()));
         }
 
-        if (rangeComponent.hasHigh()) {
-          var rangeHigh = rangeComponent.getHigh();
-
-          result = getHarmonizedQuantity(rangeHigh, originalCode);
+        if (originalRange.hasHigh()) {
+          result = converter.convert(originalRange.getHigh(), originalCode);
 
           result.ifPresent(
               quantityLoincConversionPair ->
@@ -124,18 +452,7 @@ public class LoincHarmonizer {
         }
       }
     } catch (Exception exc) {
-      log.debug(
-          "LOINC harmonization failure {}; {}; {}",
-          kv("loinc", loincCode.orElse(new Coding()).getCode()),
-          kv("unit", originalObservation.getValueQuantity().getUnit()),
-          kv("code", originalObservation.getValueQuantity().getCode()),
-          exc);
-
-      var unitcode = originalObservation.getValueQuantity().getCode();
-      metricsLookup.putIfAbsent(
-          unitcode,
-          Metrics.globalRegistry.counter(CONVERSION_ERROR_METRIC_NAME, "unitcode", unitcode));
-      metricsLookup.get(unitcode).increment();
+      recordFailure(originalObservation, loincCode.get(), exc);
 
       if (this.failOnError) {
         throw exc;
@@ -147,9 +464,32 @@ public class LoincHarmonizer {
     return harmonized;
   }
 
+  private static void recordFailure(Observation observation, Coding loincCode, Exception exc) {
+    log.debug(
+        "LOINC harmonization failure {}; {}; {}",
+        kv("loinc", loincCode.getCode()),
+        kv("unit", observation.getValueQuantity().getUnit()),
+        kv("code", observation.getValueQuantity().getCode()),
+        exc);
+
+    var unitcode = observation.getValueQuantity().getCode();
+    metricsLookup
+        .computeIfAbsent(
+            unitcode,
+            code -> Metrics.globalRegistry.counter(CONVERSION_ERROR_METRIC_NAME, "unitcode", code))
+        .increment();
+  }
+
   private Optional<Pair<Quantity, LoincConversion>> getHarmonizedQuantity(
       Quantity input, String loincCode) {
 
+    if (conversionCache.isPresent()) {
+      var cached = conversionCache.get().convert(loincCode, input);
+      if (cached.isPresent()) {
+        return Optional.of(toHarmonizedQuantity(input, cached.get()));
+      }
+    }
+
     var requestUrl =
         UriComponentsBuilder.fromUri(loincConverterBaseUri)
             .path("/conversions")
@@ -175,14 +515,27 @@ public class LoincHarmonizer {
     }
 
     if (response.getValue() != null && response.getUnit() != null && response.getLoinc() != null) {
-      var quantity = new Quantity();
-      quantity.setValue(response.getValue());
-      quantity.setUnit(response.getUnit());
-      quantity.setCode(response.getUnit());
-      quantity.setSystem(input.getSystem());
-      return Optional.of(Pair.of(quantity, response));
+      conversionCache.ifPresent(cache -> cache.put(loincCode, input, response));
+      return Optional.of(toHarmonizedQuantity(input, response));
     }
 
     return Optional.empty();
   }
+
+  private static Pair<Quantity, LoincConversion> toHarmonizedQuantity(
+      Quantity input, LoincConversion conversion) {
+    var quantity = new Quantity();
+    quantity.setValue(conversion.getValue());
+    quantity.setUnit(conversion.getUnit());
+    quantity.setCode(conversion.getUnit());
+    quantity.setSystem(input.getSystem());
+    return Pair.of(quantity, conversion);
+  }
+
+  private record PendingConversion(String id, String loinc) {}
+
+  @FunctionalInterface
+  private interface QuantityConverter {
+    Optional<Pair<Quantity, LoincConversion>> convert(Quantity input, String loincCode);
+  }
 }
@@ -0,0 +1,304 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Resource;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.stores.KafkaFhirResourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Service;
+
+/**
+ * Imports newline-delimited FHIR resources by streaming them through the {@link
+ * ResourcePipeline}. Lines are parsed one at a time and grouped into transaction bundles, which are
+ * processed by a bounded number of workers. Reading pauses while all workers are busy, so at most
+ * {@code maxConcurrency + 1} bundles are held in memory, regardless of the size of the input.
+ *
+ * <p>Lines containing a bundle are processed as they are. A bundle is only handed to a worker once
+ * no bundle containing any of the same resources is still being processed, so updates of the same
+ * resource are applied in the order of their lines.
+ */
+@Service
+public class NdjsonBulkImporter {
+  private static final Logger log = LoggerFactory.getLogger(NdjsonBulkImporter.class);
+
+  private static final Counter IMPORTED_COUNTER =
+      Counter.builder("fhirgateway.bulkimport.lines.total")
+          .description("Number of NDJSON lines processed by the bulk import")
+          .tag("outcome", "imported")
+          .register(Metrics.globalRegistry);
+  private static final Counter FAILED_COUNTER =
+      Counter.builder("fhirgateway.bulkimport.lines.total")
+          .description("Number of NDJSON lines processed by the bulk import")
+          .tag("outcome", "failed")
+          .register(Metrics.globalRegistry);
+
+  private final FhirContext fhirContext;
+  private final ResourcePipeline pipeline;
+  private final Optional<KafkaFhirResourceRepository> kafkaStore;
+  private final int bundleSize;
+  private final int maxConcurrency;
+  private final int maxReportedErrors;
+
+  public NdjsonBulkImporter(
+      FhirContext fhirContext,
+      ResourcePipeline pipeline,
+      Optional<KafkaFhirResourceRepository> kafkaStore,
+      FhirApiConfig config) {
+    this.fhirContext = fhirContext;
+    this.pipeline = pipeline;
+    this.kafkaStore = kafkaStore;
+    this.bundleSize = Math.max(1, config.bulkImport().bundleSize());
+    this.maxConcurrency = Math.max(1, config.bulkImport().maxConcurrency());
+    this.maxReportedErrors = Math.max(0, config.bulkImport().maxReportedErrors());
+  }
+
+  /**
+   * Imports all resources read from the reader and waits for them to be processed.
+   *
+   * @return an outcome summarizing the import, with an error issue for each line that failed to
+   *     be parsed or processed, up to {@code maxReportedErrors}
+   */
+  public OperationOutcome importNdjson(Reader ndjson) throws IOException, InterruptedException {
+    var run = new ImportRun();
+    var reader = new BufferedReader(ndjson);
+    var parser = fhirContext.newJsonParser();
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var chunk = new ArrayList<Line>(bundleSize);
+      var chunkIds = new HashSet<String>();
+      var lineNumber = 0L;
+      String text;
+      while ((text = reader.readLine()) != null) {
+        lineNumber++;
+        if (text.isBlank()) {
+          continue;
+        }
+        run.readCount.incrementAndGet();
+
+        Resource resource;
+        try {
+          resource = (Resource) parser.parseResource(text);
+        } catch (DataFormatException | ClassCastException exc) {
+          run.fail(List.of(lineNumber), "Failed to parse the resource: " + exc.getMessage());
+          continue;
+        }
+
+        if (resource instanceof Bundle bundle) {
+          var keys = keysOf(bundle);
+          // earlier lines changing the same resources need to be applied first
+          if (keys.stream().anyMatch(chunkIds::contains)) {
+            submitChunk(executor, run, chunk);
+            chunk = new ArrayList<>(bundleSize);
+            chunkIds.clear();
+          }
+          submit(executor, run, List.of(new Line(lineNumber, bundle)), bundle, keys);
+          continue;
+        }
+
+        if (!resource.hasIdElement() || resource.getIdElement().getIdPart() == null) {
+          run.fail(List.of(lineNumber), "The resource has no id");
+          continue;
+        }
+
+        var key = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+        // a transaction must not contain the same resource twice
+        if (chunkIds.contains(key)) {
+          submitChunk(executor, run, chunk);
+          chunk = new ArrayList<>(bundleSize);
+          chunkIds.clear();
+        }
+
+        chunk.add(new Line(lineNumber, resource));
+        chunkIds.add(key);
+
+        if (chunk.size() >= bundleSize) {
+          submitChunk(executor, run, chunk);
+          chunk = new ArrayList<>(bundleSize);
+          chunkIds.clear();
+        }
+      }
+
+      submitChunk(executor, run, chunk);
+    }
+
+    log.info(
+        "Finished bulk import. {}, {}, {}",
+        kv("readCount", run.readCount.get()),
+        kv("importedCount", run.importedCount.get()),
+        kv("failedCount", run.failedCount.get()));
+
+    return run.toOperationOutcome();
+  }
+
+  private void submitChunk(ExecutorService executor, ImportRun run, List<Line> chunk)
+      throws InterruptedException {
+    if (chunk.isEmpty()) {
+      return;
+    }
+
+    var bundle = new Bundle();
+    bundle.setType(BundleType.TRANSACTION);
+    bundle.setId(UUID.randomUUID().toString());
+    var keys = new HashSet<String>();
+    for (var line : chunk) {
+      var url = line.resource().fhirType() + "/" + line.resource().getIdElement().getIdPart();
+      keys.add(url);
+      bundle
+          .addEntry()
+          .setResource(line.resource())
+          .setFullUrl(url)
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl(url);
+    }
+
+    submit(executor, run, chunk, bundle, keys);
+  }
+
+  /** Returns the {@code Type/id} of each resource of the bundle, or the URL of entries without. */
+  private static Set<String> keysOf(Bundle bundle) {
+    var keys = new HashSet<String>();
+    for (var entry : bundle.getEntry()) {
+      var id = entry.hasResource() ? entry.getResource().getIdElement() : null;
+      if (id != null && id.hasIdPart()) {
+        keys.add(entry.getResource().fhirType() + "/" + id.getIdPart());
+      } else if (entry.getRequest().hasUrl()) {
+        keys.add(entry.getRequest().getUrl());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Processes the bundle on a worker, blocking until no bundle being processed contains any of its
+   * resources and a worker is available.
+   */
+  private void submit(
+      ExecutorService executor, ImportRun run, List<Line> lines, Bundle bundle, Set<String> keys)
+      throws InterruptedException {
+    run.reserve(keys);
+    try {
+      run.workers.acquire();
+    } catch (InterruptedException exc) {
+      run.release(keys);
+      throw exc;
+    }
+    var mdc = MDC.getCopyOfContextMap();
+    executor.execute(
+        () -> {
+          if (mdc != null) {
+            MDC.setContextMap(mdc);
+          }
+          try {
+            var processed = pipeline.process(bundle);
+            if (kafkaStore.isPresent()) {
+              kafkaStore.get().save(processed);
+            }
+            run.importedCount.addAndGet(lines.size());
+            IMPORTED_COUNTER.increment(lines.size());
+          } catch (RuntimeException exc) {
+            log.warn("Failed to import {}", kv("bundleId", bundle.getId()), exc);
+            run.fail(lines.stream().map(Line::number).toList(), exc.getMessage());
+          } finally {
+            MDC.clear();
+            run.release(keys);
+            run.workers.release();
+          }
+        });
+  }
+
+  private record Line(long number, Resource resource) {}
+
+  private record LineError(long lineNumber, String message) {}
+
+  /** The state of a single import, shared between the reading thread and the workers. */
+  private final class ImportRun {
+    private final Semaphore workers = new Semaphore(maxConcurrency);
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong importedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final List<LineError> errors = new ArrayList<>();
+    // the keys of the resources of all bundles currently being processed
+    private final Set<String> inFlightKeys = new HashSet<>();
+
+    /** Blocks until no bundle being processed contains any of the keys, then claims them. */
+    private void reserve(Set<String> keys) throws InterruptedException {
+      synchronized (inFlightKeys) {
+        while (keys.stream().anyMatch(inFlightKeys::contains)) {
+          inFlightKeys.wait();
+        }
+        inFlightKeys.addAll(keys);
+      }
+    }
+
+    private void release(Set<String> keys) {
+      synchronized (inFlightKeys) {
+        inFlightKeys.removeAll(keys);
+        inFlightKeys.notifyAll();
+      }
+    }
+
+    private void fail(List<Long> lineNumbers, String message) {
+      failedCount.addAndGet(lineNumbers.size());
+      FAILED_COUNTER.increment(lineNumbers.size());
+      synchronized (errors) {
+        for (var lineNumber : lineNumbers) {
+          if (errors.size() < maxReportedErrors) {
+            errors.add(new LineError(lineNumber, message));
+          }
+        }
+      }
+    }
+
+    private OperationOutcome toOperationOutcome() {
+      var outcome = new OperationOutcome();
+      outcome
+          .addIssue()
+          .setSeverity(failedCount.get() == 0 ? IssueSeverity.INFORMATION : IssueSeverity.WARNING)
+          .setCode(IssueType.INFORMATIONAL)
+          .setDiagnostics(
+              String.format(
+                  "Read %d resources, imported %d, failed %d",
+                  readCount.get(), importedCount.get(), failedCount.get()));
+
+      synchronized (errors) {
+        errors.stream()
+            .sorted((a, b) -> Long.compare(a.lineNumber(), b.lineNumber()))
+            .forEach(
+                error ->
+                    outcome
+                        .addIssue()
+                        .setSeverity(IssueSeverity.ERROR)
+                        .setCode(IssueType.PROCESSING)
+                        .setDiagnostics("Line " + error.lineNumber() + ": " + error.message()));
+      }
+      return outcome;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.miracum.etl.fhirgateway.stores.FhirServerResourceRepository;
+import org.miracum.etl.fhirgateway.stores.PostgresFhirResourceRepository;
+import org.miracum.etl.fhirgateway.stores.RawResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.cloud.stream.binder.kafka.support.ConsumerConfigCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+/**
+ * Consumes the records as raw bytes and stores them in PostgreSQL as they are, skipping the
+ * resource pipeline. Only the type, id and request method of each resource are extracted, see
+ * {@link RawResourceScanner}, which saves parsing and encoding each resource again. This requires
+ * PostgreSQL to be the only store and no processing stage to be enabled, since neither could work
+ * on the raw records.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.kafka.enabled} and ${services.kafka.processor.enabled} and ${services.kafka.processor.consume-only} and ${services.kafka.processor.passthrough.enabled}")
+public class RawPassthroughConsumer {
+  private static final Logger log = LoggerFactory.getLogger(RawPassthroughConsumer.class);
+
+  private static final String INPUT_BINDING_NAME = "process-in-0";
+
+  private static final Counter RESOURCES_COUNTER =
+      Counter.builder("fhirgateway.kafka.passthrough.resources.total")
+          .description("Number of resources stored as received, without parsing them")
+          .register(Metrics.globalRegistry);
+
+  private final PostgresFhirResourceRepository psqlStore;
+  private final int maxBatchBundleSize;
+
+  public RawPassthroughConsumer(
+      Optional<PostgresFhirResourceRepository> psqlStore,
+      Optional<FhirServerResourceRepository> fhirStore,
+      List<ResourceProcessor> processors,
+      KafkaProcessorConfig config,
+      KafkaRetryTopicsConfig retryTopicsConfig) {
+    if (psqlStore.isEmpty() || fhirStore.isPresent()) {
+      throw new IllegalStateException(
+          "Passthrough requires PostgreSQL to be the only enabled store");
+    }
+    if (!processors.isEmpty()) {
+      throw new IllegalStateException(
+          "Passthrough can't be used with the enabled pipeline stages "
+              + processors.stream().map(ResourceProcessor::name).toList());
+    }
+    if (retryTopicsConfig.enabled()) {
+      throw new IllegalStateException("Passthrough can't be used with retry topics");
+    }
+
+    this.psqlStore = psqlStore.get();
+    this.maxBatchBundleSize = config.batch().maxBundleSize();
+    log.info("Storing consumed records in PostgreSQL as they are received");
+  }
+
+  /** Keeps the records of the input binding as bytes instead of deserializing them. */
+  @Bean
+  ConsumerConfigCustomizer passthroughConsumerConfigCustomizer() {
+    return (consumerProperties, bindingName, destination) -> {
+      if (INPUT_BINDING_NAME.equals(bindingName)) {
+        consumerProperties.put(
+            ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+      }
+    };
+  }
+
+  @Bean
+  @ConditionalOnExpression("!${services.kafka.processor.batch.enabled}")
+  Consumer<Message<byte[]>> process() {
+    return message -> {
+      // records without a value are delivered with a KafkaNull payload
+      Object payload = message.getPayload();
+      if (payload instanceof byte[] json) {
+        save(RawResourceScanner.scan(json));
+      } else {
+        log.debug(
+            "Ignoring message with a null payload from {}",
+            kv("topic", message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC)));
+      }
+    };
+  }
+
+  @Bean("process")
+  @ConditionalOnExpression("${services.kafka.processor.batch.enabled}")
+  Consumer<Message<List<byte[]>>> batchProcess() {
+    return batch -> processBatch(BaseKafkaProcessor.splitBatch(batch));
+  }
+
+  /**
+   * Stores the records of a batch using as few writes as possible. Just like for merged bundles, a
+   * write contains at most {@code maxBundleSize} records and a repeated resource starts a new one,
+   * so updates and deletes of the same resource are applied in order.
+   *
+   * @throws BatchListenerFailedException carrying the index of the first record of the write that
+   *     failed, so all preceding records are committed
+   */
+  void processBatch(List<Message<?>> messages) {
+    var pending = new ArrayList<RawResource>();
+    var pendingKeys = new HashSet<String>();
+    var pendingRecords = 0;
+    var firstPendingIndex = 0;
+
+    for (var i = 0; i < messages.size(); i++) {
+      if (!(messages.get(i).getPayload() instanceof byte[] json)) {
+        if (pending.isEmpty()) {
+          firstPendingIndex = i + 1;
+        }
+        continue;
+      }
+
+      List<RawResource> resources;
+      try {
+        resources = RawResourceScanner.scan(json);
+      } catch (RuntimeException exc) {
+        saveBatch(pending, firstPendingIndex);
+        throw new BatchListenerFailedException(
+            "Failed to read record " + i + " of the batch", exc, i);
+      }
+
+      var isRepeated = resources.stream().map(RawResource::key).anyMatch(pendingKeys::contains);
+      if (isRepeated || pendingRecords >= maxBatchBundleSize) {
+        saveBatch(pending, firstPendingIndex);
+        pending.clear();
+        pendingKeys.clear();
+        pendingRecords = 0;
+        firstPendingIndex = i;
+      }
+
+      pending.addAll(resources);
+      resources.forEach(resource -> pendingKeys.add(resource.key()));
+      pendingRecords++;
+    }
+
+    saveBatch(pending, firstPendingIndex);
+  }
+
+  private void saveBatch(List<RawResource> resources, int firstIndex) {
+    if (resources.isEmpty()) {
+      return;
+    }
+    try {
+      save(resources);
+    } catch (RuntimeException exc) {
+      throw new BatchListenerFailedException(
+          "Failed to store the records starting at " + firstIndex + " of the batch",
+          exc,
+          firstIndex);
+    }
+  }
+
+  private void save(List<RawResource> resources) {
+    psqlStore.saveRaw(resources);
+    RESOURCES_COUNTER.increment(resources.size());
+  }
+}
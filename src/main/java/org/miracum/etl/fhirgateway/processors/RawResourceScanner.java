@@ -0,0 +1,160 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.stores.RawResource;
+
+/**
+ * Extracts the type, id and request method of the resources contained in a FHIR JSON record using
+ * a single streaming pass, without building the object model. The resources themselves are kept
+ * as the exact JSON they were received as.
+ */
+final class RawResourceScanner {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private RawResourceScanner() {}
+
+  /**
+   * Returns the resource of a record, or the writes of all entries if it contains a bundle, in the
+   * order of the entries. Resources are written using {@link HTTPVerb#PUT} unless a bundle entry
+   * requests otherwise.
+   *
+   * @throws IllegalArgumentException if the record is not a FHIR JSON resource, or it or any of its
+   *     entries lacks a type or id
+   */
+  static List<RawResource> scan(byte[] json) {
+    try (var parser = JSON_FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("The record does not contain a JSON object");
+      }
+
+      String type = null;
+      String id = null;
+      List<ScannedEntry> entries = List.of();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var field = parser.currentName();
+        parser.nextToken();
+        switch (field) {
+          case "resourceType" -> type = parser.getValueAsString();
+          case "id" -> id = parser.getValueAsString();
+          // other resource types may have an entry element as well, so the entries are only
+          // interpreted once the type is known to be a bundle
+          case "entry" -> entries = scanEntries(parser, json);
+          default -> parser.skipChildren();
+        }
+      }
+
+      if ("Bundle".equals(type)) {
+        return toWrites(entries);
+      }
+      return List.of(
+          new RawResource(
+              required(type, "resourceType"),
+              required(id, "id"),
+              HTTPVerb.PUT,
+              new String(json, StandardCharsets.UTF_8)));
+    } catch (IOException exc) {
+      throw new IllegalArgumentException("The record does not contain valid JSON", exc);
+    }
+  }
+
+  private static List<ScannedEntry> scanEntries(JsonParser parser, byte[] json)
+      throws IOException {
+    var entries = new ArrayList<ScannedEntry>();
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return entries;
+    }
+
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      var entry = new ScannedEntry();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var field = parser.currentName();
+        parser.nextToken();
+        if ("resource".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+          scanEntryResource(parser, json, entry);
+        } else if ("request".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+          scanEntryRequest(parser, entry);
+        } else {
+          parser.skipChildren();
+        }
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static void scanEntryResource(JsonParser parser, byte[] json, ScannedEntry entry)
+      throws IOException {
+    var start = (int) parser.currentTokenLocation().getByteOffset();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      var field = parser.currentName();
+      parser.nextToken();
+      switch (field) {
+        case "resourceType" -> entry.type = parser.getValueAsString();
+        case "id" -> entry.id = parser.getValueAsString();
+        default -> parser.skipChildren();
+      }
+    }
+    var end = (int) parser.currentTokenLocation().getByteOffset() + 1;
+    entry.json = new String(json, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private static void scanEntryRequest(JsonParser parser, ScannedEntry entry) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      var field = parser.currentName();
+      parser.nextToken();
+      switch (field) {
+        case "method" -> entry.method = parser.getValueAsString();
+        case "url" -> entry.url = parser.getValueAsString();
+        default -> parser.skipChildren();
+      }
+    }
+  }
+
+  private static List<RawResource> toWrites(List<ScannedEntry> entries) {
+    var writes = new ArrayList<RawResource>(entries.size());
+    for (var i = 0; i < entries.size(); i++) {
+      var entry = entries.get(i);
+      var method = entry.method == null ? HTTPVerb.PUT : HTTPVerb.fromCode(entry.method);
+      if (method == HTTPVerb.DELETE) {
+        var typeAndId = required(entry.url, "request.url of entry " + i).split("/");
+        if (typeAndId.length != 2) {
+          throw new IllegalArgumentException(
+              "The request.url of entry " + i + " is not of the form Type/id");
+        }
+        writes.add(new RawResource(typeAndId[0], typeAndId[1], method, null));
+      } else {
+        writes.add(
+            new RawResource(
+                required(entry.type, "resource.resourceType of entry " + i),
+                required(entry.id, "resource.id of entry " + i),
+                method,
+                required(entry.json, "resource of entry " + i)));
+      }
+    }
+    return writes;
+  }
+
+  private static String required(@Nullable String value, String name) {
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException("The record is missing the " + name);
+    }
+    return value;
+  }
+
+  private static final class ScannedEntry {
+    @Nullable String type;
+    @Nullable String id;
+    @Nullable String json;
+    @Nullable String method;
+    @Nullable String url;
+  }
+}
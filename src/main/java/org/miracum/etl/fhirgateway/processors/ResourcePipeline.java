@@ -1,13 +1,41 @@
 package org.miracum.etl.fhirgateway.processors;
 
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Observation;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.ConcurrentStoresConfig;
+import org.miracum.etl.fhirgateway.config.PipelineConfig;
+import org.miracum.etl.fhirgateway.config.PipelineConfig.Pipelining;
+import org.miracum.etl.fhirgateway.serialization.EncodedResources;
+import org.miracum.etl.fhirgateway.stores.FhirResourceRepository;
 import org.miracum.etl.fhirgateway.stores.FhirServerResourceRepository;
 import org.miracum.etl.fhirgateway.stores.PostgresFhirResourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.stereotype.Component;
 
@@ -21,20 +49,94 @@ public class ResourcePipeline {
           .publishPercentileHistogram()
           .register(Metrics.globalRegistry);
 
-  private final Optional<FhirServerResourceRepository> fhirStore;
-  private final Optional<PostgresFhirResourceRepository> psqlStore;
-  private final Optional<FhirPseudonymizer> pseudonymizer;
-  private final Optional<LoincHarmonizer> loincHarmonizer;
+  private static final Logger log = LoggerFactory.getLogger(ResourcePipeline.class);
+
+  private final List<Stage> stages;
+  private final List<Store> stores;
+  private final Optional<ExecutorService> storeExecutor;
+  private final Duration storeTimeout;
+  private final Optional<StageExecutors> stageExecutors;
+  private final boolean defersWrites;
 
   public ResourcePipeline(
       Optional<FhirServerResourceRepository> fhirStore,
       Optional<PostgresFhirResourceRepository> psqlStore,
-      Optional<FhirPseudonymizer> pseudonymizer,
-      Optional<LoincHarmonizer> loincHarmonizer) {
-    this.fhirStore = fhirStore;
-    this.psqlStore = psqlStore;
-    this.pseudonymizer = pseudonymizer;
-    this.loincHarmonizer = loincHarmonizer;
+      List<ResourceProcessor> processors,
+      PipelineConfig pipelineConfig,
+      ConcurrentStoresConfig concurrentStoresConfig) {
+    this.stages = orderStages(processors, pipelineConfig.stageOrder());
+
+    var configuredStores = new ArrayList<Store>();
+    fhirStore.ifPresent(store -> configuredStores.add(Store.of("fhir-server", store)));
+    psqlStore.ifPresent(store -> configuredStores.add(Store.of("postgres", store)));
+    this.stores = List.copyOf(configuredStores);
+
+    // with a single store there is nothing to gain from handing the write to another thread
+    if (concurrentStoresConfig.enabled() && stores.size() > 1) {
+      this.storeExecutor = Optional.of(Executors.newVirtualThreadPerTaskExecutor());
+    } else {
+      this.storeExecutor = Optional.empty();
+    }
+    this.storeTimeout = concurrentStoresConfig.timeout();
+    this.defersWrites =
+        psqlStore.map(PostgresFhirResourceRepository::isWritingBehind).orElse(false);
+
+    if (pipelineConfig.pipelining().enabled()) {
+      this.stageExecutors = Optional.of(StageExecutors.of(stages, pipelineConfig.pipelining()));
+    } else {
+      this.stageExecutors = Optional.empty();
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    stageExecutors.ifPresent(StageExecutors::close);
+    storeExecutor.ifPresent(ExecutorService::close);
+  }
+
+  /** Whether bundles may be processed using {@link #newPipelinedRun()}. */
+  public boolean isPipelined() {
+    return stageExecutors.isPresent();
+  }
+
+  /**
+   * Starts a new run of pipelined processing. Bundles submitted to a run are handed from stage to
+   * stage, each having its own workers, so the stages can work on different bundles of the run at
+   * the same time.
+   *
+   * @throws IllegalStateException if pipelining is not enabled
+   */
+  public PipelinedRun newPipelinedRun() {
+    return new PipelinedRun(
+        stageExecutors.orElseThrow(() -> new IllegalStateException("Pipelining is not enabled")));
+  }
+
+  private static List<Stage> orderStages(
+      List<ResourceProcessor> processors, List<String> stageOrder) {
+    var unordered =
+        processors.stream()
+            .map(ResourceProcessor::name)
+            .filter(name -> !stageOrder.contains(name))
+            .toList();
+    if (!unordered.isEmpty()) {
+      throw new IllegalStateException(
+          "The enabled pipeline stages "
+              + unordered
+              + " are missing from services.pipeline.stage-order "
+              + stageOrder);
+    }
+
+    var stages =
+        processors.stream()
+            .sorted(Comparator.comparingInt(processor -> stageOrder.indexOf(processor.name())))
+            .map(Stage::of)
+            .toList();
+
+    log.info(
+        "Processing bundles using {}",
+        kv("stages", stages.stream().map(stage -> stage.processor().name()).toList()));
+
+    return stages;
   }
 
   public Bundle process(Bundle bundle) {
@@ -43,25 +145,8 @@ public class ResourcePipeline {
     return PIPELINE_DURATION_TIMER.record(
         () -> {
           Bundle processing = bundle;
-          // pseudonymization should be the first task to ensure all other processors only
-          // ever work with de-identified data.
-          if (pseudonymizer.isPresent()) {
-            processing = pseudonymizer.get().process(processing);
-          }
-
-          // this logic may be refactored and cleaned up by creating a genuine pipeline class with
-          // optionally added stages. A base for this would be an abstract ResourceProcessor
-          if (loincHarmonizer.isPresent()) {
-            for (var entry : processing.getEntry()) {
-              var resource = entry.getResource();
-
-              if (resource instanceof Observation observation) {
-                try (var ignored = MDC.putCloseable("resourceId", resource.getId())) {
-                  var obs = loincHarmonizer.get().process(observation);
-                  entry.setResource(obs);
-                }
-              }
-            }
+          for (var stage : stages) {
+            processing = stage.process(processing);
           }
 
           saveToStores(processing);
@@ -69,14 +154,373 @@ public class ResourcePipeline {
         });
   }
 
+  /** Whether a store gathers the writes of several bundles, see {@link #processDeferred}. */
+  public boolean defersWrites() {
+    return defersWrites;
+  }
+
+  /**
+   * Processes the bundle just like {@link #process}, but doesn't wait for stores which gather the
+   * writes of several bundles, so the bundles processed before the returned future completes can
+   * be stored together with this one. Bundles processed one after the other are still saved to each
+   * store in that order.
+   *
+   * @return completes with the processed bundle once it has been saved to all stores
+   */
+  public CompletableFuture<Bundle> processDeferred(Bundle bundle) {
+    MDC.put("bundleId", bundle.getId());
+    var sample = Timer.start();
+
+    CompletableFuture<Void> saved;
+    Bundle processed = bundle;
+    try {
+      for (var stage : stages) {
+        processed = stage.process(processed);
+      }
+
+      EncodedResources.invalidate(processed);
+      var futures = new ArrayList<CompletableFuture<Void>>(stores.size());
+      for (var store : stores) {
+        futures.add(store.saveAsync(processed));
+      }
+      saved = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+    } catch (RuntimeException exc) {
+      saved = CompletableFuture.failedFuture(exc);
+    }
+
+    var result = processed;
+    return saved
+        .whenComplete((ignored, exc) -> sample.stop(PIPELINE_DURATION_TIMER))
+        .thenApply(ignored -> result);
+  }
+
   private void saveToStores(Bundle bundle) {
+    // the stages may have changed resources which were encoded while processing the bundle before
+    EncodedResources.invalidate(bundle);
+
+    if (storeExecutor.isPresent()) {
+      saveToStoresConcurrently(storeExecutor.get(), bundle);
+      return;
+    }
+
+    for (var store : stores) {
+      store.save(bundle);
+    }
+  }
+
+  /**
+   * Writes the bundle to all stores at the same time and waits for all of them to finish, at most
+   * for the configured timeout in total if there is one. A store which timed out is cancelled, but
+   * the bundle may already have been written to the other ones.
+   */
+  private void saveToStoresConcurrently(ExecutorService executor, Bundle bundle) {
+    // some getters lazily create missing elements, which must not race between the stores.
+    // Everything else only reads the bundle.
+    for (var entry : bundle.getEntry()) {
+      entry.getRequest();
+      if (entry.hasResource()) {
+        entry.getResource().getIdElement();
+      }
+    }
+
+    var mdc = MDC.getCopyOfContextMap();
+    var futures = new ArrayList<Future<?>>(stores.size());
+    for (var store : stores) {
+      futures.add(
+          executor.submit(
+              () -> {
+                if (mdc != null) {
+                  MDC.setContextMap(mdc);
+                }
+                try {
+                  store.save(bundle);
+                } finally {
+                  MDC.clear();
+                }
+              }));
+    }
+
+    var deadline = System.nanoTime() + storeTimeout.toNanos();
+    RuntimeException failure = null;
+    for (var i = 0; i < stores.size(); i++) {
+      var store = stores.get(i);
+      var future = futures.get(i);
+      try {
+        if (storeTimeout.isZero()) {
+          future.get();
+        } else {
+          future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (InterruptedException exc) {
+        futures.forEach(f -> f.cancel(true));
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while saving the bundle to the stores", exc);
+      } catch (TimeoutException exc) {
+        future.cancel(true);
+        store.errorsCounter().increment();
+        log.error(
+            "Saving the bundle to {} did not finish within {}",
+            kv("store", store.name()),
+            kv("timeout", storeTimeout));
+        var timeout =
+            new IllegalStateException("Saving the bundle to " + store.name() + " timed out", exc);
+        failure = addFailure(failure, timeout);
+      } catch (ExecutionException exc) {
+        // the failure was already logged and counted by the store itself
+        failure = addFailure(failure, Objects.requireNonNullElse(exc.getCause(), exc));
+      }
+    }
 
-    if (fhirStore.isPresent()) {
-      this.fhirStore.get().save(bundle);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * A sequence of bundles processed by the stage workers. Bundles may pass the processing stages
+   * concurrently, but are saved to the stores strictly in the order they were submitted, so updates
+   * to the same resource are never reordered. Once saving a bundle failed, or it could not be
+   * processed, none of the bundles submitted after it are saved, so the caller can process them
+   * again without older data overwriting newer one.
+   */
+  public final class PipelinedRun {
+    private final StageExecutors executors;
+    private CompletableFuture<?> lastStored = CompletableFuture.completedFuture(null);
+
+    private PipelinedRun(StageExecutors executors) {
+      this.executors = executors;
+    }
+
+    /**
+     * Submits the bundle, blocking while the maximum number of bundles are already in flight.
+     *
+     * @return completes with the processed bundle once it has been saved to all stores
+     */
+    public synchronized CompletableFuture<Bundle> submit(Bundle bundle)
+        throws InterruptedException {
+      executors.inFlight().acquire();
+      var sample = Timer.start();
+      var mdc = MDC.getCopyOfContextMap();
+
+      CompletableFuture<Bundle> processing = CompletableFuture.completedFuture(bundle);
+      for (var i = 0; i < stages.size(); i++) {
+        var stage = stages.get(i);
+        processing =
+            processing.thenApplyAsync(
+                b -> withMdc(mdc, bundle, () -> stage.process(b)), executors.stages().get(i));
+      }
+
+      var predecessorStored = lastStored.handle((result, exc) -> exc == null);
+      var stored =
+          processing
+              .thenCombine(
+                  predecessorStored,
+                  (processed, isPredecessorStored) -> {
+                    if (!isPredecessorStored) {
+                      throw new IllegalStateException(
+                          "Not saving the bundle since a preceding one of the run failed");
+                    }
+                    return processed;
+                  })
+              .thenApplyAsync(
+                  processed ->
+                      withMdc(
+                          mdc,
+                          bundle,
+                          () -> {
+                            saveToStores(processed);
+                            return processed;
+                          }),
+                  executors.stores());
+
+      stored.whenComplete(
+          (result, exc) -> {
+            executors.inFlight().release();
+            sample.stop(PIPELINE_DURATION_TIMER);
+          });
+
+      lastStored = stored;
+      return stored;
+    }
+  }
+
+  private static <T> T withMdc(
+      @Nullable Map<String, String> mdc, Bundle bundle, Supplier<T> action) {
+    if (mdc != null) {
+      MDC.setContextMap(mdc);
+    }
+    MDC.put("bundleId", bundle.getId());
+    try {
+      return action.get();
+    } finally {
+      MDC.clear();
+    }
+  }
+
+  private static RuntimeException addFailure(
+      @Nullable RuntimeException failure, Throwable exception) {
+    if (failure == null) {
+      return exception instanceof RuntimeException runtimeException
+          ? runtimeException
+          : new IllegalStateException("Failed to save the bundle", exception);
+    }
+    failure.addSuppressed(exception);
+    return failure;
+  }
+
+  private record Stage(
+      ResourceProcessor processor,
+      Timer durationTimer,
+      Counter errorsCounter,
+      Counter skippedCounter) {
+
+    static Stage of(ResourceProcessor processor) {
+      var durationTimer =
+          Timer.builder("fhirgateway.pipeline.stage.duration")
+              .description("Time taken by a single pipeline stage to process a bundle")
+              .minimumExpectedValue(Duration.ofMillis(1))
+              .maximumExpectedValue(Duration.ofSeconds(5))
+              .publishPercentileHistogram()
+              .tag("stage", processor.name())
+              .register(Metrics.globalRegistry);
+      var errorsCounter =
+          Counter.builder("fhirgateway.pipeline.stage.errors.total")
+              .description("Number of bundles a single pipeline stage failed to process")
+              .tag("stage", processor.name())
+              .register(Metrics.globalRegistry);
+      var skippedCounter =
+          Counter.builder("fhirgateway.pipeline.stage.skipped.total")
+              .description("Number of bundles skipped by a stage since they had no matching entry")
+              .tag("stage", processor.name())
+              .register(Metrics.globalRegistry);
+      return new Stage(processor, durationTimer, errorsCounter, skippedCounter);
+    }
+
+    Bundle process(Bundle bundle) {
+      if (!appliesTo(bundle)) {
+        skippedCounter.increment();
+        return bundle;
+      }
+
+      var sample = Timer.start();
+      try {
+        return processor.process(bundle);
+      } catch (RuntimeException exc) {
+        errorsCounter.increment();
+        throw exc;
+      } finally {
+        sample.stop(durationTimer);
+      }
+    }
+
+    private boolean appliesTo(Bundle bundle) {
+      var resourceTypes = processor.resourceTypes();
+      if (resourceTypes.isEmpty()) {
+        return true;
+      }
+
+      return bundle.getEntry().stream()
+          .anyMatch(
+              entry ->
+                  entry.hasResource()
+                      && resourceTypes.contains(entry.getResource().getResourceType()));
+    }
+  }
+
+  /**
+   * The workers of each processing stage and of saving to the stores, all sharing a limit on the
+   * number of bundles in flight.
+   */
+  private record StageExecutors(
+      List<ThreadPoolExecutor> stages, ThreadPoolExecutor stores, Semaphore inFlight) {
+
+    static StageExecutors of(List<Stage> stages, Pipelining config) {
+      var stageExecutors =
+          stages.stream()
+              .map(stage -> createExecutor(stage.processor().name(), config.workersPerStage()))
+              .toList();
+      var storeExecutor = createExecutor("stores", config.workersPerStage());
+
+      log.info(
+          "Pipelining bundles using {} and {}",
+          kv("workersPerStage", config.workersPerStage()),
+          kv("maxInFlight", config.maxInFlight()));
+
+      return new StageExecutors(stageExecutors, storeExecutor, new Semaphore(config.maxInFlight()));
+    }
+
+    private static ThreadPoolExecutor createExecutor(String stageName, int workers) {
+      // the queue is bounded by the limit on the bundles in flight
+      var executor =
+          new ThreadPoolExecutor(
+              workers,
+              workers,
+              0,
+              TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>(),
+              Thread.ofPlatform().name("pipeline-" + stageName + "-", 0).daemon().factory());
+      Gauge.builder("fhirgateway.pipeline.stage.queue.size", executor, e -> e.getQueue().size())
+          .description("Number of bundles waiting for a worker of the pipeline stage")
+          .tag("stage", stageName)
+          .register(Metrics.globalRegistry);
+      return executor;
+    }
+
+    void close() {
+      stages.forEach(ExecutorService::close);
+      stores.close();
+    }
+  }
+
+  private record Store(
+      String name, FhirResourceRepository repository, Timer durationTimer, Counter errorsCounter) {
+
+    static Store of(String name, FhirResourceRepository repository) {
+      var durationTimer =
+          Timer.builder("fhirgateway.pipeline.store.duration")
+              .description("Time taken to save a bundle to a single store")
+              .minimumExpectedValue(Duration.ofMillis(10))
+              .maximumExpectedValue(Duration.ofSeconds(5))
+              .publishPercentileHistogram()
+              .tag("store", name)
+              .register(Metrics.globalRegistry);
+      var errorsCounter =
+          Counter.builder("fhirgateway.pipeline.store.errors.total")
+              .description("Number of bundles that could not be saved to a single store")
+              .tag("store", name)
+              .register(Metrics.globalRegistry);
+      return new Store(name, repository, durationTimer, errorsCounter);
+    }
+
+    CompletableFuture<Void> saveAsync(Bundle bundle) {
+      var sample = Timer.start();
+      CompletableFuture<Void> saving;
+      try {
+        saving = repository.saveAsync(bundle);
+      } catch (RuntimeException exc) {
+        saving = CompletableFuture.failedFuture(exc);
+      }
+      return saving.whenComplete(
+          (ignored, exc) -> {
+            sample.stop(durationTimer);
+            if (exc != null) {
+              errorsCounter.increment();
+              log.error("Saving the bundle to {} failed", kv("store", name), exc);
+            }
+          });
     }
 
-    if (psqlStore.isPresent()) {
-      this.psqlStore.get().save(bundle);
+    void save(Bundle bundle) {
+      var sample = Timer.start();
+      try {
+        repository.save(bundle);
+      } catch (RuntimeException exc) {
+        errorsCounter.increment();
+        log.error("Saving the bundle to {} failed", kv("store", name), exc);
+        throw exc;
+      } finally {
+        sample.stop(durationTimer);
+      }
     }
   }
 }
@@ -0,0 +1,30 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import java.util.Set;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * A single stage of the {@link ResourcePipeline}. The stages run in the order configured by {@code
+ * services.pipeline.stage-order}, each receiving the bundle returned by its predecessor.
+ */
+public interface ResourceProcessor {
+
+  /** Identifies the stage in the configured stage order and in metrics. */
+  String name();
+
+  /**
+   * The resource types this stage works on. The stage is skipped entirely for bundles without an
+   * entry of one of these types. An empty set means the stage applies to all bundles.
+   */
+  default Set<ResourceType> resourceTypes() {
+    return Set.of();
+  }
+
+  /**
+   * Processes the bundle.
+   *
+   * @return the processed bundle. This may be the given bundle if it was modified in place.
+   */
+  Bundle process(Bundle bundle);
+}
@@ -0,0 +1,479 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.GroupIdNotFoundException;
+import org.hl7.fhir.r4.model.Resource;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.BatchAcknowledgingConsumerAwareMessageListener;
+import org.springframework.kafka.listener.CommonErrorHandler;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.ContainerProperties.AckMode;
+import org.springframework.kafka.listener.KafkaMessageListenerContainer;
+import org.springframework.kafka.listener.ListenerUtils;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.KafkaNull;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+import org.springframework.util.backoff.ExponentialBackOff;
+
+/**
+ * Consumes the retry topics, each using its own listener container so a long delay of one level
+ * never holds up another. Records are processed once their delay has passed. Until then, their
+ * partition is paused instead of blocking the consumer, so the consumer keeps polling. Records
+ * failing again are published to the next retry topic, or to the DLQ after the last one.
+ *
+ * <p>Newer records of a key waiting to be retried are deferred to the retry topics as well, and a
+ * retried record is postponed to the same retry topic while an earlier record of its key is still
+ * waiting, see {@link RetryTopicPublisher}. So the records of a key are processed in order. Since
+ * the waiting keys are tracked in memory, they are restored from the retry topics on startup, and
+ * the consumer refuses to start unless it is the only one consuming the input and retry topics.
+ *
+ * <p>Records are never skipped: if a record can't be published to the next retry topic, the
+ * partitions are sought back to the first record not handled yet and polled again after a backoff,
+ * until publishing succeeds.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.kafka.enabled} and ${services.kafka.processor.enabled} and ${services.kafka.retry-topics.enabled}")
+public class RetryTopicConsumer implements SmartLifecycle {
+  private static final Logger log = LoggerFactory.getLogger(RetryTopicConsumer.class);
+
+  private final BaseKafkaProcessor processor;
+  private final RetryTopicPublisher publisher;
+  private final Clock clock;
+  private final ScheduledExecutorService resumeScheduler;
+  private final ConsumerFactory<String, Resource> consumerFactory;
+  private final KafkaAdmin kafkaAdmin;
+  private final List<String> inputTopics;
+  private final String consumerGroup;
+  private final List<KafkaMessageListenerContainer<String, Resource>> containers;
+  private final List<RetryErrorHandler> errorHandlers;
+
+  private volatile boolean running;
+
+  public RetryTopicConsumer(
+      BaseKafkaProcessor processor,
+      RetryTopicPublisher publisher,
+      ConsumerFactory<String, Resource> consumerFactory,
+      KafkaAdmin kafkaAdmin,
+      KafkaRetryTopicsConfig config,
+      @Value("${spring.cloud.stream.bindings.process-in-0.destination}") String inputTopics,
+      @Value("${spring.cloud.stream.bindings.process-in-0.group}") String consumerGroup,
+      @Value("${spring.cloud.stream.bindings.process-in-0.consumer.concurrency:1}")
+          int concurrency) {
+    // the records of a key waiting to be retried are only tracked in memory
+    if (concurrency > 1) {
+      throw new IllegalStateException(
+          "Retry topics require a single consumer of the input topics, but the consumer"
+              + " concurrency is "
+              + concurrency);
+    }
+
+    this.processor = processor;
+    this.publisher = publisher;
+    this.consumerFactory = consumerFactory;
+    this.kafkaAdmin = kafkaAdmin;
+    this.consumerGroup = consumerGroup;
+    this.clock = Clock.systemUTC();
+    this.resumeScheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("retry-topics-resume").daemon().factory());
+
+    this.inputTopics = Arrays.stream(inputTopics.split(",")).map(String::trim).toList();
+    this.containers = new ArrayList<>();
+    this.errorHandlers = new ArrayList<>();
+    for (var level = 0; level < config.delays().size(); level++) {
+      var errorHandler = new RetryErrorHandler(retryBackOff());
+      errorHandlers.add(errorHandler);
+      containers.add(createContainer(level, errorHandler));
+    }
+
+    log.info(
+        "Retrying failed records from {} after {}",
+        kv("inputTopics", this.inputTopics),
+        kv("delays", config.delays()));
+  }
+
+  /** Retries handling a batch until it succeeds, since skipping it would lose its records. */
+  static BackOff retryBackOff() {
+    var backOff = new ExponentialBackOff(1000, 2.0);
+    // stays below max.poll.interval.ms, as the container sleeps in the consumer thread
+    backOff.setMaxInterval(30_000);
+    return backOff;
+  }
+
+  private List<String> retryTopicsOf(int level) {
+    return inputTopics.stream().map(t -> RetryTopicPublisher.retryTopicOf(t, level)).toList();
+  }
+
+  private String groupOf(int level) {
+    return consumerGroup + ".retry-" + level;
+  }
+
+  private KafkaMessageListenerContainer<String, Resource> createContainer(
+      int level, RetryErrorHandler errorHandler) {
+    var properties = new ContainerProperties(retryTopicsOf(level).toArray(String[]::new));
+    properties.setGroupId(groupOf(level));
+    // offsets are committed explicitly, only up to the last record handled
+    properties.setAckMode(AckMode.MANUAL);
+
+    var container = new KafkaMessageListenerContainer<>(consumerFactory, properties);
+    container.setBeanName("retry-topic-" + level);
+    container.setCommonErrorHandler(errorHandler);
+    // the container works on a copy of the properties
+    container
+        .getContainerProperties()
+        .setMessageListener(
+            (BatchAcknowledgingConsumerAwareMessageListener<String, Resource>)
+                (records, acknowledgment, consumer) ->
+                    handle(container, level, records, consumer));
+    return container;
+  }
+
+  void handle(
+      KafkaMessageListenerContainer<String, Resource> container,
+      int level,
+      List<ConsumerRecord<String, Resource>> records,
+      Consumer<?, ?> consumer) {
+    var handledOffsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+    var pausedPartitions = new ArrayList<TopicPartition>();
+    try {
+      for (var i = 0; i < records.size(); i++) {
+        var record = records.get(i);
+        var partition = new TopicPartition(record.topic(), record.partition());
+        if (pausedPartitions.contains(partition)) {
+          continue;
+        }
+
+        var dueIn = dueAt(record, level) - clock.millis();
+        if (dueIn > 0) {
+          // re-read the record once the partition is resumed
+          consumer.seek(partition, record.offset());
+          container.pausePartition(partition);
+          pausedPartitions.add(partition);
+          resumeScheduler.schedule(
+              () -> container.resumePartition(partition), dueIn, TimeUnit.MILLISECONDS);
+          continue;
+        }
+
+        try {
+          handleRecord(record, level);
+        } catch (RuntimeException exc) {
+          seekToUnhandled(records.subList(i, records.size()), pausedPartitions, consumer);
+          throw exc;
+        }
+        handledOffsets.put(partition, new OffsetAndMetadata(record.offset() + 1));
+      }
+    } finally {
+      if (!handledOffsets.isEmpty()) {
+        consumer.commitSync(handledOffsets);
+      }
+    }
+    errorHandlers.get(level).reset();
+  }
+
+  /**
+   * Seeks each partition back to its first record not handled yet, so the records are polled
+   * again once the error handler backed off.
+   */
+  private static void seekToUnhandled(
+      List<ConsumerRecord<String, Resource>> unhandled,
+      List<TopicPartition> pausedPartitions,
+      Consumer<?, ?> consumer) {
+    var sought = new HashSet<>(pausedPartitions);
+    for (var record : unhandled) {
+      var partition = new TopicPartition(record.topic(), record.partition());
+      if (sought.add(partition)) {
+        consumer.seek(partition, record.offset());
+      }
+    }
+  }
+
+  private void handleRecord(ConsumerRecord<String, Resource> record, int level) {
+    var message = toMessage(record);
+    synchronized (publisher.lockOf(message)) {
+      if (!publisher.isOldestPending(message)) {
+        publisher.postpone(message, level);
+        Counter.builder("fhirgateway.kafka.retry.postponed.total")
+            .description(
+                "Number of retried records postponed behind an earlier one of the same key")
+            .tag("level", String.valueOf(level))
+            .register(Metrics.globalRegistry)
+            .increment();
+        return;
+      }
+
+      try {
+        processor.reprocess(message);
+      } catch (RuntimeException exc) {
+        publisher.publish(message, level + 1, exc);
+        return;
+      }
+
+      publisher.release(message);
+      Counter.builder("fhirgateway.kafka.retry.recovered.total")
+          .description("Number of records processed successfully from a retry topic")
+          .tag("level", String.valueOf(level))
+          .register(Metrics.globalRegistry)
+          .increment();
+    }
+  }
+
+  private long dueAt(ConsumerRecord<String, Resource> record, int level) {
+    var header = record.headers().lastHeader(RetryTopicPublisher.DUE_AT_HEADER);
+    if (header != null) {
+      try {
+        return Long.parseLong(new String(header.value(), StandardCharsets.UTF_8));
+      } catch (NumberFormatException exc) {
+        log.warn("Ignoring invalid due time of record at {}", kv("offset", record.offset()));
+      }
+    }
+    return record.timestamp() + publisher.delayOf(level).toMillis();
+  }
+
+  /**
+   * Converts the record to a message looking like one consumed from the original topic, including
+   * its original partition and offset.
+   */
+  private static Message<?> toMessage(ConsumerRecord<String, Resource> record) {
+    var originalTopicHeader =
+        record.headers().lastHeader(RetryTopicPublisher.ORIGINAL_TOPIC_HEADER);
+    var originalTopic =
+        originalTopicHeader == null
+            ? record.topic()
+            : new String(originalTopicHeader.value(), StandardCharsets.UTF_8);
+
+    Object payload = record.value();
+    var builder =
+        MessageBuilder.withPayload(payload == null ? KafkaNull.INSTANCE : payload)
+            .setHeader(KafkaHeaders.RECEIVED_TOPIC, originalTopic)
+            .setHeader(RetryTopicPublisher.ORIGINAL_TOPIC_HEADER, originalTopic);
+    if (record.key() != null) {
+      builder.setHeader(KafkaHeaders.RECEIVED_KEY, record.key());
+    }
+    var partition = record.headers().lastHeader(RetryTopicPublisher.ORIGINAL_PARTITION_HEADER);
+    var offset = record.headers().lastHeader(RetryTopicPublisher.ORIGINAL_OFFSET_HEADER);
+    if (partition != null && offset != null) {
+      builder
+          .setHeader(
+              KafkaHeaders.RECEIVED_PARTITION,
+              Integer.valueOf(new String(partition.value(), StandardCharsets.UTF_8)))
+          .setHeader(
+              KafkaHeaders.OFFSET,
+              Long.valueOf(new String(offset.value(), StandardCharsets.UTF_8)));
+    }
+    return builder.build();
+  }
+
+  @Override
+  public void start() {
+    ensureSingleInstance();
+    for (var level = 0; level < containers.size(); level++) {
+      restorePending(level);
+    }
+    containers.forEach(KafkaMessageListenerContainer::start);
+    running = true;
+  }
+
+  /** Starts before the input bindings, so their records see the restored waiting keys. */
+  @Override
+  public int getPhase() {
+    return Integer.MAX_VALUE - 2000;
+  }
+
+  /**
+   * Refuses to start if another instance is consuming the retry topics, since it would not know
+   * about the records of a key waiting in the retry topics consumed here, or vice versa. Every
+   * instance consumes the retry topics while it runs, so this also covers the input topics.
+   */
+  private void ensureSingleInstance() {
+    var groups = new ArrayList<String>();
+    for (var level = 0; level < containers.size(); level++) {
+      groups.add(groupOf(level));
+    }
+
+    try (var admin = AdminClient.create(kafkaAdmin.getConfigurationProperties())) {
+      var descriptions = admin.describeConsumerGroups(groups).describedGroups();
+      for (var group : groups) {
+        int members;
+        try {
+          var description = Objects.requireNonNull(descriptions.get(group));
+          members = description.get(30, TimeUnit.SECONDS).members().size();
+        } catch (ExecutionException exc) {
+          if (exc.getCause() instanceof GroupIdNotFoundException) {
+            continue;
+          }
+          throw new IllegalStateException("Failed to describe consumer group " + group, exc);
+        } catch (TimeoutException exc) {
+          throw new IllegalStateException("Failed to describe consumer group " + group, exc);
+        } catch (InterruptedException exc) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted describing consumer group " + group, exc);
+        }
+
+        if (members > 0) {
+          throw new IllegalStateException(
+              "Retry topics require a single instance of the gateway, but consumer group "
+                  + group
+                  + " already has "
+                  + members
+                  + " members");
+        }
+      }
+    }
+  }
+
+  /**
+   * Tracks the records waiting in the retry topic of the level, i.e. the ones after the committed
+   * offset of its consumer group, as the keys waiting to be retried are only kept in memory.
+   */
+  private void restorePending(int level) {
+    var properties = new Properties();
+    properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    try (var consumer =
+        consumerFactory.createConsumer(groupOf(level), null, "-restore", properties)) {
+      var partitions = new ArrayList<TopicPartition>();
+      for (var topic : retryTopicsOf(level)) {
+        var infos = consumer.partitionsFor(topic);
+        if (infos != null) {
+          infos.forEach(info -> partitions.add(new TopicPartition(topic, info.partition())));
+        }
+      }
+      consumer.assign(partitions);
+
+      var committed = consumer.committed(Set.copyOf(partitions));
+      for (var partition : partitions) {
+        var offset = committed.get(partition);
+        if (offset == null) {
+          consumer.seekToBeginning(List.of(partition));
+        } else {
+          consumer.seek(partition, offset.offset());
+        }
+      }
+
+      var endOffsets = consumer.endOffsets(partitions);
+      var remaining = new HashSet<>(partitions);
+      var restored = 0;
+      while (true) {
+        remaining.removeIf(
+            partition ->
+                consumer.position(partition)
+                    >= Objects.requireNonNullElse(endOffsets.get(partition), 0L));
+        if (remaining.isEmpty()) {
+          break;
+        }
+        for (var record : consumer.poll(Duration.ofSeconds(1))) {
+          publisher.track(toMessage(record));
+          restored++;
+        }
+      }
+
+      log.info(
+          "Restored {} waiting in {}",
+          kv("recordCount", restored),
+          kv("retryTopics", retryTopicsOf(level)));
+    }
+  }
+
+  @Override
+  public void stop() {
+    containers.forEach(KafkaMessageListenerContainer::stop);
+    resumeScheduler.shutdownNow();
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Backs off before the records are polled again once handling a batch failed, e.g. since a retry
+   * topic can't be written to. {@link #handle} already sought back to the first record not handled
+   * yet, and records are never recovered by skipping them, so they are retried until they succeed.
+   */
+  static final class RetryErrorHandler implements CommonErrorHandler {
+    private final BackOff backOff;
+    private volatile @Nullable BackOffExecution execution;
+
+    RetryErrorHandler(BackOff backOff) {
+      this.backOff = backOff;
+    }
+
+    @Override
+    public boolean seeksAfterHandling() {
+      return true;
+    }
+
+    @Override
+    public void handleBatch(
+        Exception thrownException,
+        ConsumerRecords<?, ?> data,
+        Consumer<?, ?> consumer,
+        MessageListenerContainer container,
+        Runnable invokeListener) {
+      var current = execution;
+      if (current == null) {
+        current = backOff.start();
+        execution = current;
+      }
+      var interval = current.nextBackOff();
+      log.warn(
+          "Failed to handle records from the retry topics, polling them again in {}",
+          kv("backOffMs", interval),
+          thrownException);
+      if (interval == BackOffExecution.STOP) {
+        return;
+      }
+
+      try {
+        ListenerUtils.stoppableSleep(container, interval);
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /** Starts the backoff over once a batch was handled. */
+    void reset() {
+      execution = null;
+    }
+  }
+}
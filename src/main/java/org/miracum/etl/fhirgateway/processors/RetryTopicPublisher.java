@@ -0,0 +1,289 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.hl7.fhir.r4.model.Resource;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes records which could not be processed to the retry topic of the next attempt, or to the
+ * DLQ once all attempts are used up. The retry topics are named after the original input topic,
+ * e.g. {@code fhir.all.retry-0}, and the DLQ uses the same name as the one of the binder, e.g.
+ * {@code error.fhir.all.fhir-gateway}.
+ *
+ * <p>To keep the records of a key in order, the publisher tracks the original offsets of the
+ * records waiting in a retry topic per key. Records of such a key consumed from the input topic are
+ * deferred to the first retry topic as well, and a retried record is only processed once no earlier
+ * record of its key is waiting. This bookkeeping is kept in memory and restored from the retry
+ * topics on startup by {@link RetryTopicConsumer}, so it requires a single instance consuming both
+ * the input topic and the retry topics.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.kafka.enabled} and ${services.kafka.processor.enabled} and ${services.kafka.retry-topics.enabled}")
+public class RetryTopicPublisher {
+  private static final Logger log = LoggerFactory.getLogger(RetryTopicPublisher.class);
+
+  static final String ORIGINAL_TOPIC_HEADER = "fhirgateway-retry-original-topic";
+  static final String DUE_AT_HEADER = "fhirgateway-retry-due-at";
+  static final String ERROR_HEADER = "fhirgateway-retry-error";
+  static final String ORIGINAL_PARTITION_HEADER = "fhirgateway-retry-original-partition";
+  static final String ORIGINAL_OFFSET_HEADER = "fhirgateway-retry-original-offset";
+
+  private static final String RETRY_TOPIC_SUFFIX = ".retry-";
+
+  private final KafkaTemplate<String, Resource> kafkaTemplate;
+  private final List<Duration> delays;
+  private final Duration sendTimeout;
+  private final String consumerGroup;
+  private final Clock clock;
+  private final Map<String, PendingKey> pendingKeys = new ConcurrentHashMap<>();
+
+  /** The original offsets of the records of a key waiting in a retry topic. */
+  private static final class PendingKey {
+    private final NavigableSet<Long> offsets = new ConcurrentSkipListSet<>();
+  }
+
+  public RetryTopicPublisher(
+      KafkaTemplate<String, Resource> kafkaTemplate,
+      KafkaRetryTopicsConfig config,
+      @Value("${spring.cloud.stream.bindings.process-in-0.group}") String consumerGroup) {
+    this(kafkaTemplate, config, consumerGroup, Clock.systemUTC());
+  }
+
+  RetryTopicPublisher(
+      KafkaTemplate<String, Resource> kafkaTemplate,
+      KafkaRetryTopicsConfig config,
+      String consumerGroup,
+      Clock clock) {
+    this.kafkaTemplate = kafkaTemplate;
+    this.delays = List.copyOf(config.delays());
+    this.sendTimeout = config.sendTimeout();
+    this.consumerGroup = consumerGroup;
+    this.clock = clock;
+  }
+
+  Duration delayOf(int level) {
+    return delays.get(level);
+  }
+
+  static String retryTopicOf(String originalTopic, int level) {
+    return originalTopic + RETRY_TOPIC_SUFFIX + level;
+  }
+
+  /** Returns the topic the record was originally consumed from, before any retries. */
+  static String originalTopicOf(Message<?> message) {
+    var originalTopic = message.getHeaders().get(ORIGINAL_TOPIC_HEADER, String.class);
+    if (originalTopic != null) {
+      return originalTopic;
+    }
+    return Objects.requireNonNull(
+        message.getHeaders().get(KafkaHeaders.RECEIVED_TOPIC, String.class));
+  }
+
+  /**
+   * Publishes the record to the retry topic of the given level, or to the DLQ if there is no such
+   * level. Blocks until the record has been written, so the original one can be committed
+   * afterwards.
+   */
+  public void publish(Message<?> message, int level, Exception cause) {
+    var originalTopic = originalTopicOf(message);
+    log.warn(
+        "Failed to process record from {}, publishing it to {}",
+        kv("originalTopic", originalTopic),
+        kv("topic", topicOf(originalTopic, level)),
+        cause);
+    send(message, level, String.valueOf(cause.getMessage()));
+  }
+
+  /**
+   * Publishes a record consumed from the input topic to the first retry topic without processing
+   * it, since an earlier record of the same key is still waiting there.
+   */
+  public void defer(Message<?> message) {
+    log.debug(
+        "Deferring record of {} from {} behind an earlier one waiting to be retried",
+        kv("key", keyOf(message)),
+        kv("originalTopic", originalTopicOf(message)));
+    send(message, 0, "An earlier record with the same key is waiting to be retried");
+  }
+
+  /**
+   * Publishes a retried record to the same retry topic again without using up an attempt, since an
+   * earlier record of its key is still waiting to be retried.
+   */
+  void postpone(Message<?> message, int level) {
+    log.debug(
+        "Postponing retried record of {} behind an earlier one waiting to be retried",
+        kv("key", keyOf(message)));
+    send(message, level, "An earlier record with the same key is waiting to be retried");
+  }
+
+  private String topicOf(String originalTopic, int level) {
+    return level >= delays.size()
+        ? "error." + originalTopic + "." + consumerGroup
+        : retryTopicOf(originalTopic, level);
+  }
+
+  private void send(Message<?> message, int level, String error) {
+    var originalTopic = originalTopicOf(message);
+    var isDlq = level >= delays.size();
+    var topic = topicOf(originalTopic, level);
+
+    Headers headers = new RecordHeaders();
+    headers.add(ORIGINAL_TOPIC_HEADER, originalTopic.getBytes(StandardCharsets.UTF_8));
+    headers.add(ERROR_HEADER, error.getBytes(StandardCharsets.UTF_8));
+    if (!isDlq) {
+      var dueAt = clock.millis() + delays.get(level).toMillis();
+      headers.add(DUE_AT_HEADER, Long.toString(dueAt).getBytes(StandardCharsets.UTF_8));
+    }
+    var partition = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION, Integer.class);
+    var offset = message.getHeaders().get(KafkaHeaders.OFFSET, Long.class);
+    if (partition != null && offset != null) {
+      headers.add(ORIGINAL_PARTITION_HEADER, partition.toString().getBytes(StandardCharsets.UTF_8));
+      headers.add(ORIGINAL_OFFSET_HEADER, offset.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    var record = new ProducerRecord<>(topic, null, keyOf(message), resourceOf(message), headers);
+
+    try {
+      kafkaTemplate.send(record).get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while publishing to " + topic, exc);
+    } catch (ExecutionException | TimeoutException exc) {
+      throw new IllegalStateException("Failed to publish the record to " + topic, exc);
+    }
+
+    var isRetried = message.getHeaders().containsKey(ORIGINAL_TOPIC_HEADER);
+    if (!isRetried && !isDlq) {
+      track(message);
+    } else if (isRetried && isDlq) {
+      release(message);
+    }
+
+    Counter.builder("fhirgateway.kafka.retry.published.total")
+        .description("Number of failed records published to a retry topic or the DLQ")
+        .tag("destination", isDlq ? "dlq" : "retry-" + level)
+        .register(Metrics.globalRegistry)
+        .increment();
+  }
+
+  /**
+   * Returns whether an earlier record of the same key and partition is waiting in a retry topic,
+   * so the record needs to be deferred.
+   */
+  public boolean isPending(Message<?> message) {
+    var pendingKey = pendingKeyOf(message);
+    return pendingKey != null && pendingKeys.containsKey(pendingKey);
+  }
+
+  /**
+   * Returns whether no earlier record of the same key and partition is waiting in a retry topic, so
+   * the retried record may be processed.
+   */
+  boolean isOldestPending(Message<?> message) {
+    var pendingKey = pendingKeyOf(message);
+    var offset = message.getHeaders().get(KafkaHeaders.OFFSET, Long.class);
+    if (pendingKey == null || offset == null) {
+      return true;
+    }
+    var pending = pendingKeys.get(pendingKey);
+    return pending == null || pending.offsets.lower(offset) == null;
+  }
+
+  /**
+   * Returns the object to synchronize on while handling a retried record, so records of the same
+   * key waiting in different retry topics are never handled at the same time.
+   */
+  Object lockOf(Message<?> message) {
+    var pendingKey = pendingKeyOf(message);
+    var pending = pendingKey == null ? null : pendingKeys.get(pendingKey);
+    return pending == null ? new Object() : pending;
+  }
+
+  /** Stops tracking a retried record, once it was processed or sent to the DLQ. */
+  void release(Message<?> message) {
+    var pendingKey = pendingKeyOf(message);
+    var offset = message.getHeaders().get(KafkaHeaders.OFFSET, Long.class);
+    if (pendingKey == null || offset == null) {
+      return;
+    }
+    pendingKeys.computeIfPresent(
+        pendingKey,
+        (k, pending) -> {
+          pending.offsets.remove(offset);
+          return pending.offsets.isEmpty() ? null : pending;
+        });
+  }
+
+  /**
+   * Tracks a record waiting in a retry topic. Called for records published to the first retry
+   * topic, and for the records found in the retry topics on startup.
+   */
+  void track(Message<?> message) {
+    var pendingKey = pendingKeyOf(message);
+    var offset = message.getHeaders().get(KafkaHeaders.OFFSET, Long.class);
+    if (pendingKey == null || offset == null) {
+      return;
+    }
+    pendingKeys.compute(
+        pendingKey,
+        (k, pending) -> {
+          var tracked = pending == null ? new PendingKey() : pending;
+          tracked.offsets.add(offset);
+          return tracked;
+        });
+  }
+
+  /**
+   * Identifies the records of a key within a partition of the original topic, or returns null if
+   * the record has no key or its partition is unknown.
+   */
+  private static @Nullable String pendingKeyOf(Message<?> message) {
+    var key = keyOf(message);
+    var partition = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION, Integer.class);
+    if (key == null || partition == null) {
+      return null;
+    }
+    return originalTopicOf(message) + "-" + partition + "/" + key;
+  }
+
+  private static @Nullable String keyOf(Message<?> message) {
+    var key = message.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+    if (key instanceof byte[] bytes) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    return key == null ? null : key.toString();
+  }
+
+  private static @Nullable Resource resourceOf(Message<?> message) {
+    return message.getPayload() instanceof Resource resource ? resource : null;
+  }
+}
@@ -0,0 +1,376 @@
+package org.miracum.etl.fhirgateway.queue;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of records stored in a directory of segment files, read in order by a single
+ * consumer. Each record is stored as its length, a CRC32C checksum and the payload. Once a segment
+ * grows beyond the segment size, a new one is started. Segments whose records were all consumed
+ * are deleted. The position of the consumer is kept in a checkpoint file, so after a restart
+ * consumption resumes with the first record not yet committed. A record partially written before
+ * a crash is discarded when the log is opened.
+ *
+ * <p>{@link #append} returns only once the record was forced to disk. Appends arriving while
+ * another one waits for the disk share a single force, so concurrent appends are made durable in
+ * batches.
+ */
+final class SegmentLog implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(SegmentLog.class);
+
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+
+  /** A record read from the log, to be passed to {@link #commit} once it was handled. */
+  record Entry(byte[] payload, long segmentId, long offset, long nextOffset) {}
+
+  private final Path directory;
+  private final long segmentSizeBytes;
+  private final LongConsumer onSync;
+  private final LongConsumer onCompaction;
+  private final Object syncLock = new Object();
+
+  // the written size of each segment which was not yet deleted, by segment id
+  private final TreeMap<Long, Long> segmentSizes = new TreeMap<>();
+  private long writeSegmentId;
+  private FileChannel writeChannel;
+  private long appendedCount;
+  private long readSegmentId;
+  private long readOffset;
+  private @Nullable FileChannel readChannel;
+  private long backlogRecords;
+  private long backlogBytes;
+
+  // guarded by syncLock
+  private long syncedCount;
+
+  /**
+   * @param onSync invoked with the number of records made durable by each force
+   * @param onCompaction invoked with the number of segments deleted once fully consumed
+   */
+  SegmentLog(
+      Path directory, long segmentSizeBytes, LongConsumer onSync, LongConsumer onCompaction)
+      throws IOException {
+    this.directory = directory;
+    this.segmentSizeBytes = segmentSizeBytes;
+    this.onSync = onSync;
+    this.onCompaction = onCompaction;
+
+    Files.createDirectories(directory);
+    try (var files = Files.list(directory)) {
+      files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+          .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+          .forEach(id -> segmentSizes.put(id, 0L));
+    }
+
+    readCheckpoint();
+    if (segmentSizes.isEmpty()) {
+      segmentSizes.put(readSegmentId, 0L);
+    }
+    if (!segmentSizes.containsKey(readSegmentId)) {
+      readSegmentId = segmentSizes.firstKey();
+      readOffset = 0;
+    }
+
+    // segments before the checkpoint may be left over if deleting them was interrupted
+    for (var id : segmentSizes.headMap(readSegmentId).keySet().toArray(Long[]::new)) {
+      Files.deleteIfExists(segmentPath(id));
+      segmentSizes.remove(id);
+    }
+
+    writeSegmentId = segmentSizes.lastKey();
+    for (long id : segmentSizes.keySet()) {
+      recoverSegment(id, id == readSegmentId ? readOffset : 0, id == writeSegmentId);
+    }
+
+    writeChannel =
+        FileChannel.open(
+            segmentPath(writeSegmentId), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    writeChannel.truncate(sizeOf(writeSegmentId));
+    writeChannel.position(sizeOf(writeSegmentId));
+
+    log.info(
+        "Opened write-ahead log in {} with {} and {}",
+        kv("directory", directory),
+        kv("segmentCount", segmentSizes.size()),
+        kv("backlogRecords", backlogRecords));
+  }
+
+  private Path segmentPath(long segmentId) {
+    return directory.resolve(String.format("%020d%s", segmentId, SEGMENT_SUFFIX));
+  }
+
+  private long sizeOf(long segmentId) {
+    return segmentSizes.getOrDefault(segmentId, 0L);
+  }
+
+  private void readCheckpoint() throws IOException {
+    var checkpoint = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(checkpoint)) {
+      readSegmentId = segmentSizes.isEmpty() ? 0 : segmentSizes.firstKey();
+      readOffset = 0;
+      return;
+    }
+
+    var parts = Files.readString(checkpoint, StandardCharsets.UTF_8).trim().split(" ");
+    readSegmentId = Long.parseLong(parts[0]);
+    readOffset = Long.parseLong(parts[1]);
+  }
+
+  private void writeCheckpoint() throws IOException {
+    var checkpoint = directory.resolve(CHECKPOINT_FILE);
+    var temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+    Files.writeString(temporary, readSegmentId + " " + readOffset, StandardCharsets.UTF_8);
+    Files.move(
+        temporary,
+        checkpoint,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Determines the size of the valid records of the segment, counting the ones from {@code start}
+   * as backlog. Anything after the last valid record is cut off.
+   */
+  private void recoverSegment(long segmentId, long start, boolean isLast) throws IOException {
+    var path = segmentPath(segmentId);
+    if (!Files.exists(path)) {
+      // the first segment of a new log is only created below
+      return;
+    }
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var fileSize = channel.size();
+      var offset = start;
+      while (offset < fileSize) {
+        var payload = readRecord(channel, offset, fileSize);
+        if (payload == null) {
+          break;
+        }
+        var recordBytes = HEADER_BYTES + payload.length;
+        offset += recordBytes;
+        backlogRecords++;
+        backlogBytes += recordBytes;
+      }
+
+      if (offset < fileSize) {
+        log.warn(
+            "Discarding {} after the last complete record of {}",
+            kv("discardedBytes", fileSize - offset),
+            kv("segment", path));
+        if (!isLast) {
+          log.error("The segment is not the last one, so the log may have lost records");
+        }
+        channel.truncate(offset);
+        channel.force(true);
+      }
+      segmentSizes.put(segmentId, offset);
+    }
+  }
+
+  /** Returns the payload of the record at the offset, or null if it is incomplete or corrupted. */
+  private static byte @Nullable [] readRecord(FileChannel channel, long offset, long limit)
+      throws IOException {
+    if (offset + HEADER_BYTES > limit) {
+      return null;
+    }
+    var header = ByteBuffer.allocate(HEADER_BYTES);
+    readFully(channel, header, offset);
+    header.flip();
+    var length = header.getInt();
+    var checksum = header.getInt();
+    if (length < 0 || offset + HEADER_BYTES + length > limit) {
+      return null;
+    }
+
+    var payload = ByteBuffer.allocate(length);
+    readFully(channel, payload, offset + HEADER_BYTES);
+    if (checksumOf(payload.array()) != checksum) {
+      return null;
+    }
+    return payload.array();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of the segment at " + position);
+      }
+    }
+  }
+
+  private static int checksumOf(byte[] payload) {
+    var crc = new CRC32C();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /** Appends the record and returns once it was forced to disk. */
+  void append(byte[] payload) throws IOException {
+    long target;
+    synchronized (this) {
+      var recordBytes = HEADER_BYTES + payload.length;
+      var writeOffset = sizeOf(writeSegmentId);
+      if (writeOffset > 0 && writeOffset + recordBytes > segmentSizeBytes) {
+        startNewSegment();
+        writeOffset = 0L;
+      }
+
+      var buffer = ByteBuffer.allocate(recordBytes);
+      buffer.putInt(payload.length).putInt(checksumOf(payload)).put(payload).flip();
+      while (buffer.hasRemaining()) {
+        writeChannel.write(buffer);
+      }
+
+      segmentSizes.put(writeSegmentId, writeOffset + recordBytes);
+      backlogRecords++;
+      backlogBytes += recordBytes;
+      target = ++appendedCount;
+      notifyAll();
+    }
+    sync(target);
+  }
+
+  /** Forces all records appended so far, unless another caller already forced the target one. */
+  private void sync(long target) throws IOException {
+    synchronized (syncLock) {
+      if (syncedCount >= target) {
+        return;
+      }
+
+      long appended;
+      FileChannel channel;
+      synchronized (this) {
+        appended = appendedCount;
+        channel = writeChannel;
+      }
+
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException exc) {
+        // a new segment was started in the meantime, which forces the previous one first
+      }
+      onSync.accept(appended - syncedCount);
+      syncedCount = appended;
+    }
+  }
+
+  private void startNewSegment() throws IOException {
+    writeChannel.force(false);
+    writeChannel.close();
+    writeSegmentId++;
+    writeChannel =
+        FileChannel.open(
+            segmentPath(writeSegmentId), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    segmentSizes.put(writeSegmentId, 0L);
+  }
+
+  /**
+   * Returns the oldest record which was not yet committed, or null if all were. Deletes the
+   * segments which were consumed entirely.
+   */
+  synchronized @Nullable Entry next() throws IOException {
+    while (true) {
+      var size = sizeOf(readSegmentId);
+      if (readOffset < size) {
+        var channel = readChannel;
+        if (channel == null) {
+          channel = FileChannel.open(segmentPath(readSegmentId), StandardOpenOption.READ);
+          readChannel = channel;
+        }
+        var payload = readRecord(channel, readOffset, size);
+        if (payload == null) {
+          throw new IOException(
+              "Corrupted record at " + readOffset + " of " + segmentPath(readSegmentId));
+        }
+        return new Entry(
+            payload, readSegmentId, readOffset, readOffset + HEADER_BYTES + payload.length);
+      }
+
+      if (readSegmentId == writeSegmentId) {
+        return null;
+      }
+
+      if (readChannel != null) {
+        readChannel.close();
+        readChannel = null;
+      }
+      var consumedSegmentId = readSegmentId;
+      // the segment being written is the last one, so there is always a next one
+      readSegmentId = Objects.requireNonNull(segmentSizes.higherKey(consumedSegmentId));
+      readOffset = 0;
+      writeCheckpoint();
+      Files.deleteIfExists(segmentPath(consumedSegmentId));
+      segmentSizes.remove(consumedSegmentId);
+      onCompaction.accept(1);
+    }
+  }
+
+  /** Marks the record as handled, so it is not returned by {@link #next} again. */
+  synchronized void commit(Entry entry) throws IOException {
+    if (entry.segmentId() != readSegmentId || entry.offset() != readOffset) {
+      throw new IllegalStateException("Records must be committed in the order they were read");
+    }
+    readOffset = entry.nextOffset();
+    backlogRecords--;
+    backlogBytes -= entry.nextOffset() - entry.offset();
+    writeCheckpoint();
+  }
+
+  /** Waits until there is a record which was not yet committed, at most for the timeout. */
+  synchronized void awaitRecord(Duration timeout) throws InterruptedException {
+    var deadline = System.nanoTime() + timeout.toNanos();
+    while (readOffset >= sizeOf(readSegmentId) && readSegmentId == writeSegmentId) {
+      var remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remainingMillis <= 0) {
+        return;
+      }
+      wait(remainingMillis);
+    }
+  }
+
+  synchronized long getBacklogRecords() {
+    return backlogRecords;
+  }
+
+  synchronized long getBacklogBytes() {
+    return backlogBytes;
+  }
+
+  synchronized int getSegmentCount() {
+    return segmentSizes.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (readChannel != null) {
+      readChannel.close();
+      readChannel = null;
+    }
+    if (writeChannel.isOpen()) {
+      writeChannel.force(false);
+      writeChannel.close();
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package org.miracum.etl.fhirgateway.queue;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle;
+import org.miracum.etl.fhirgateway.config.WriteAheadQueueConfig;
+import org.miracum.etl.fhirgateway.processors.ResourcePipeline;
+import org.miracum.etl.fhirgateway.queue.SegmentLog.Entry;
+import org.miracum.etl.fhirgateway.stores.KafkaFhirResourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientResponseException;
+
+/**
+ * Decouples accepting bundles sent to the FHIR API from saving them. Bundles are appended to a
+ * {@link SegmentLog} on disk and acknowledged once durable. A single drainer thread replays them
+ * through the pipeline in the order they were accepted, retrying each until it succeeds, so the
+ * API keeps accepting bundles at a steady latency while the stores are unavailable.
+ */
+@Component
+@ConditionalOnExpression("${services.api.write-ahead-queue.enabled}")
+public class WriteAheadQueue {
+  private static final Logger log = LoggerFactory.getLogger(WriteAheadQueue.class);
+
+  private static final Duration IDLE_POLL_INTERVAL = Duration.ofSeconds(1);
+  private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+
+  // the first byte of each record holds flags, followed by the JSON-encoded bundle
+  private static final byte FLAG_SAVE_TO_KAFKA = 1;
+
+  private static final Counter APPENDED_COUNTER =
+      Counter.builder("fhirgateway.api.queue.appended.total")
+          .description("Number of bundles appended to the write-ahead queue")
+          .register(Metrics.globalRegistry);
+  private static final Counter PROCESSED_COUNTER = drainedCounter("processed");
+  private static final Counter DEAD_LETTERED_COUNTER = drainedCounter("dead-lettered");
+  private static final Counter REJECTED_COUNTER =
+      Counter.builder("fhirgateway.api.queue.rejected.total")
+          .description("Number of bundles rejected since the write-ahead queue was full")
+          .register(Metrics.globalRegistry);
+  private static final Counter RETRIES_COUNTER =
+      Counter.builder("fhirgateway.api.queue.retries.total")
+          .description("Number of failed attempts to process a bundle from the write-ahead queue")
+          .register(Metrics.globalRegistry);
+  private static final Counter COMPACTED_SEGMENTS_COUNTER =
+      Counter.builder("fhirgateway.api.queue.segments.compacted.total")
+          .description("Number of write-ahead queue segments deleted once fully processed")
+          .register(Metrics.globalRegistry);
+  private static final DistributionSummary SYNC_BATCH_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.api.queue.sync.batch.size")
+          .description("Number of appended bundles made durable by a single fsync")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+
+  private final WriteAheadQueueConfig config;
+  private final FhirContext fhirContext;
+  private final ResourcePipeline pipeline;
+  private final Optional<KafkaFhirResourceRepository> kafkaStore;
+  private final SegmentLog segmentLog;
+  private final Thread drainer;
+
+  private volatile boolean running = true;
+
+  public WriteAheadQueue(
+      WriteAheadQueueConfig config,
+      FhirContext fhirContext,
+      ResourcePipeline pipeline,
+      Optional<KafkaFhirResourceRepository> kafkaStore)
+      throws IOException {
+    this.config = config;
+    this.fhirContext = fhirContext;
+    this.pipeline = pipeline;
+    this.kafkaStore = kafkaStore;
+    this.segmentLog =
+        new SegmentLog(
+            config.directory(),
+            config.segmentSize().toBytes(),
+            SYNC_BATCH_SIZE_SUMMARY::record,
+            COMPACTED_SEGMENTS_COUNTER::increment);
+
+    Gauge.builder(
+            "fhirgateway.api.queue.backlog.records", segmentLog, SegmentLog::getBacklogRecords)
+        .description("Number of bundles in the write-ahead queue waiting to be processed")
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirgateway.api.queue.backlog.size", segmentLog, SegmentLog::getBacklogBytes)
+        .description("Size of the bundles in the write-ahead queue waiting to be processed")
+        .baseUnit("bytes")
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirgateway.api.queue.segments", segmentLog, SegmentLog::getSegmentCount)
+        .description("Number of segment files of the write-ahead queue")
+        .register(Metrics.globalRegistry);
+
+    this.drainer = Thread.ofPlatform().name("write-ahead-queue-drainer").start(this::drain);
+  }
+
+  private static Counter drainedCounter(String outcome) {
+    return Counter.builder("fhirgateway.api.queue.drained.total")
+        .description("Number of bundles taken from the write-ahead queue")
+        .tag("outcome", outcome)
+        .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * Appends the bundle and returns once it was written to disk.
+   *
+   * @param isSaveToKafka whether to also send the processed bundle to the Kafka store, if enabled
+   * @return false if the queue is full and the bundle was not accepted
+   */
+  public boolean offer(Bundle bundle, boolean isSaveToKafka) {
+    if (segmentLog.getBacklogBytes() >= config.maxSize().toBytes()) {
+      REJECTED_COUNTER.increment();
+      return false;
+    }
+
+    var json = fhirContext.newJsonParser().encodeResourceToString(bundle);
+    var encoded = json.getBytes(StandardCharsets.UTF_8);
+    var payload = new byte[encoded.length + 1];
+    payload[0] = isSaveToKafka ? FLAG_SAVE_TO_KAFKA : 0;
+    System.arraycopy(encoded, 0, payload, 1, encoded.length);
+
+    try {
+      segmentLog.append(payload);
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Failed to append the bundle to the write-ahead queue", exc);
+    }
+    APPENDED_COUNTER.increment();
+    return true;
+  }
+
+  private void drain() {
+    while (running) {
+      try {
+        var entry = segmentLog.next();
+        if (entry == null) {
+          segmentLog.awaitRecord(IDLE_POLL_INTERVAL);
+          continue;
+        }
+
+        if (replay(entry)) {
+          segmentLog.commit(entry);
+        }
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException exc) {
+        log.error("Failed to read from the write-ahead queue", exc);
+        if (!sleep(config.maxRetryBackoff())) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Processes the bundle of the record, retrying it with backoff until it succeeds or runs out of
+   * attempts, in which case it is moved to the dead-letter directory. Failures which can't be
+   * resolved by retrying move it there right away.
+   *
+   * @return false if the queue was closed before the bundle was handled
+   */
+  private boolean replay(Entry entry) throws IOException {
+    var payload = entry.payload();
+    var isSaveToKafka = (payload[0] & FLAG_SAVE_TO_KAFKA) != 0;
+    var json = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+
+    var backoff = config.retryBackoff();
+    for (var attempt = 1; running; attempt++) {
+      try {
+        // parsed for each attempt, since the stages may modify the bundle
+        var bundle = fhirContext.newJsonParser().parseResource(Bundle.class, json);
+        var processed = pipeline.process(bundle);
+        if (isSaveToKafka && kafkaStore.isPresent()) {
+          kafkaStore.get().save(processed);
+        }
+        PROCESSED_COUNTER.increment();
+        return true;
+      } catch (RuntimeException exc) {
+        if (!running) {
+          return false;
+        }
+        if (isPermanent(exc)) {
+          deadLetter(entry, json, exc);
+          return true;
+        }
+        RETRIES_COUNTER.increment();
+        if (config.maxAttempts() > 0 && attempt >= config.maxAttempts()) {
+          deadLetter(entry, json, exc);
+          return true;
+        }
+
+        log.warn(
+            "Failed to process bundle from the write-ahead queue. Retrying after {}.",
+            kv("attempt", attempt),
+            kv("backoff", backoff),
+            exc);
+        if (!sleep(backoff)) {
+          return false;
+        }
+        backoff = min(backoff.multipliedBy(2), config.maxRetryBackoff());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the failure is caused by the bundle itself, like an invalid resource or a
+   * request rejected by the FHIR server, so processing it again would fail the same way. Timeouts
+   * and rate limiting are considered transient, just like unavailable or failing services.
+   */
+  static boolean isPermanent(Throwable exc) {
+    for (Throwable cause = exc; cause != null; cause = cause.getCause()) {
+      if (cause instanceof DataFormatException) {
+        return true;
+      }
+      if (cause instanceof BaseServerResponseException response) {
+        return isPermanentStatus(response.getStatusCode());
+      }
+      if (cause instanceof RestClientResponseException response) {
+        return isPermanentStatus(response.getStatusCode().value());
+      }
+      if (cause instanceof SQLException sqlException) {
+        // data exceptions and integrity constraint violations
+        var sqlState = String.valueOf(sqlException.getSQLState());
+        return sqlState.startsWith("22") || sqlState.startsWith("23");
+      }
+    }
+    return false;
+  }
+
+  private static boolean isPermanentStatus(int status) {
+    return status >= 400
+        && status < 500
+        && status != HttpStatus.REQUEST_TIMEOUT.value()
+        && status != HttpStatus.TOO_MANY_REQUESTS.value();
+  }
+
+  private void deadLetter(Entry entry, String json, Exception cause) throws IOException {
+    var directory = config.directory().resolve(DEAD_LETTER_DIRECTORY);
+    Files.createDirectories(directory);
+    var file = directory.resolve(entry.segmentId() + "-" + entry.offset() + ".json");
+    Files.writeString(file, json, StandardCharsets.UTF_8);
+
+    log.error(
+        "Giving up processing bundle from the write-ahead queue, moved it to {}",
+        kv("file", file),
+        cause);
+    DEAD_LETTERED_COUNTER.increment();
+  }
+
+  private static Duration min(Duration a, Duration b) {
+    return a.compareTo(b) <= 0 ? a : b;
+  }
+
+  /**
+   * @return false if interrupted while sleeping
+   */
+  private static boolean sleep(Duration duration) {
+    try {
+      Thread.sleep(duration);
+      return true;
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Stops the drainer. A bundle being processed at that moment is processed again after the next
+   * start, which is safe since all store writes are idempotent.
+   */
+  @PreDestroy
+  void close() throws IOException, InterruptedException {
+    running = false;
+    drainer.interrupt();
+    drainer.join(Duration.ofSeconds(30));
+    segmentLog.close();
+  }
+}
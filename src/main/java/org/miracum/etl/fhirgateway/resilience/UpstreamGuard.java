@@ -0,0 +1,164 @@
+package org.miracum.etl.fhirgateway.resilience;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.util.function.LongSupplier;
+import org.miracum.etl.fhirgateway.config.UpstreamLimitsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guards the calls to a single downstream service using an adaptive concurrency limit and a
+ * circuit breaker. The limit follows an additive-increase/multiplicative-decrease scheme, see
+ * {@link UpstreamLimitsConfig}. Calls exceeding the limit or made while the circuit is open are
+ * rejected right away instead of adding to the load of a struggling service.
+ */
+public class UpstreamGuard {
+  private static final Logger log = LoggerFactory.getLogger(UpstreamGuard.class);
+
+  public enum CircuitState {
+    CLOSED,
+    HALF_OPEN,
+    OPEN
+  }
+
+  /** Handed out for each call let through, to be passed back once it completed. */
+  public record Permit(long startNanos, boolean isProbe) {}
+
+  private final String name;
+  private final UpstreamLimitsConfig config;
+  private final LongSupplier nanoTime;
+  private final Counter limitRejectionsCounter;
+  private final Counter circuitRejectionsCounter;
+
+  private double limit;
+  private int inFlight;
+  private CircuitState state = CircuitState.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtNanos;
+  private boolean isProbeInFlight;
+
+  public UpstreamGuard(String name, UpstreamLimitsConfig config) {
+    this(name, config, System::nanoTime);
+  }
+
+  UpstreamGuard(String name, UpstreamLimitsConfig config, LongSupplier nanoTime) {
+    this.name = name;
+    this.config = config;
+    this.nanoTime = nanoTime;
+    this.limit = config.initialLimit();
+
+    Gauge.builder("fhirgateway.upstream.limit", this, UpstreamGuard::getLimit)
+        .description("Current limit of concurrent calls to the downstream service")
+        .tag("upstream", name)
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirgateway.upstream.inflight", this, UpstreamGuard::getInFlight)
+        .description("Number of calls to the downstream service in flight")
+        .tag("upstream", name)
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirgateway.upstream.circuit.state", this, g -> g.getState().ordinal())
+        .description("State of the circuit breaker: 0 closed, 1 half-open, 2 open")
+        .tag("upstream", name)
+        .register(Metrics.globalRegistry);
+    this.limitRejectionsCounter = rejectionsCounter(name, "limit");
+    this.circuitRejectionsCounter = rejectionsCounter(name, "circuit-open");
+  }
+
+  private static Counter rejectionsCounter(String name, String reason) {
+    return Counter.builder("fhirgateway.upstream.rejected.total")
+        .description("Number of calls to the downstream service rejected without being made")
+        .tag("upstream", name)
+        .tag("reason", reason)
+        .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * Lets a call through if the circuit is closed and the limit not yet reached.
+   *
+   * @throws UpstreamRejectedException if the call must not be made
+   */
+  public synchronized Permit acquire() throws UpstreamRejectedException {
+    var now = nanoTime.getAsLong();
+    if (state == CircuitState.OPEN
+        && now - openedAtNanos >= config.circuitBreaker().openDuration().toNanos()) {
+      transitionTo(CircuitState.HALF_OPEN);
+    }
+
+    var isProbe = false;
+    if (state == CircuitState.OPEN || (state == CircuitState.HALF_OPEN && isProbeInFlight)) {
+      circuitRejectionsCounter.increment();
+      throw new UpstreamRejectedException("The circuit breaker for " + name + " is open");
+    }
+    if (state == CircuitState.HALF_OPEN) {
+      isProbe = true;
+      isProbeInFlight = true;
+    } else if (inFlight >= (int) limit) {
+      limitRejectionsCounter.increment();
+      throw new UpstreamRejectedException(
+          "The limit of " + (int) limit + " concurrent calls to " + name + " is reached");
+    }
+
+    inFlight++;
+    return new Permit(now, isProbe);
+  }
+
+  /**
+   * Records the outcome of a call let through.
+   *
+   * @param isSuccess false if the call failed in a way indicating the service is overloaded or
+   *     unavailable, e.g. due to a connection error or a 5xx or 429 response
+   */
+  public synchronized void release(Permit permit, boolean isSuccess) {
+    inFlight--;
+    if (permit.isProbe()) {
+      isProbeInFlight = false;
+    }
+
+    var latencyNanos = nanoTime.getAsLong() - permit.startNanos();
+    if (isSuccess && latencyNanos <= config.latencyThreshold().toNanos()) {
+      limit = Math.min(config.maxLimit(), limit + 1 / limit);
+    } else {
+      limit = Math.max(config.minLimit(), limit * config.backoffRatio());
+    }
+
+    if (isSuccess) {
+      consecutiveFailures = 0;
+      if (state == CircuitState.HALF_OPEN) {
+        transitionTo(CircuitState.CLOSED);
+      }
+      return;
+    }
+
+    consecutiveFailures++;
+    if (state == CircuitState.HALF_OPEN
+        || (state == CircuitState.CLOSED
+            && consecutiveFailures >= config.circuitBreaker().failureThreshold())) {
+      openedAtNanos = nanoTime.getAsLong();
+      transitionTo(CircuitState.OPEN);
+    }
+  }
+
+  private void transitionTo(CircuitState newState) {
+    log.info(
+        "Circuit breaker of {} changed from {} to {}",
+        kv("upstream", name),
+        kv("previousState", state),
+        kv("state", newState));
+    state = newState;
+  }
+
+  public synchronized double getLimit() {
+    return limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized CircuitState getState() {
+    return state;
+  }
+}
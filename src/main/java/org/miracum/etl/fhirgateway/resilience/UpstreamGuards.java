@@ -0,0 +1,86 @@
+package org.miracum.etl.fhirgateway.resilience;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.miracum.etl.fhirgateway.config.UpstreamLimitsConfig;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds one {@link UpstreamGuard} per downstream service, identified by the host and port it is
+ * called at, and provides the interceptors applying them to the OkHttp client used by the FHIR
+ * clients and to the RestTemplate.
+ */
+@Component
+@ConditionalOnExpression("${services.upstream-limits.enabled}")
+public class UpstreamGuards {
+
+  private final UpstreamLimitsConfig config;
+  private final ConcurrentMap<String, UpstreamGuard> guards = new ConcurrentHashMap<>();
+
+  public UpstreamGuards(UpstreamLimitsConfig config) {
+    this.config = config;
+  }
+
+  public UpstreamGuard forUpstream(String host, int port) {
+    return guards.computeIfAbsent(
+        host + ":" + port, upstream -> new UpstreamGuard(upstream, config));
+  }
+
+  /** Any response indicating the service is overloaded or failing counts as a failed call. */
+  static boolean isSuccess(int statusCode) {
+    return statusCode < 500 && statusCode != 429;
+  }
+
+  public Interceptor okHttpInterceptor() {
+    return chain -> {
+      var url = chain.request().url();
+      var guard = forUpstream(url.host(), url.port());
+      var permit = guard.acquire();
+
+      Response response;
+      try {
+        response = chain.proceed(chain.request());
+      } catch (IOException | RuntimeException exc) {
+        guard.release(permit, false);
+        throw exc;
+      }
+
+      guard.release(permit, isSuccess(response.code()));
+      return response;
+    };
+  }
+
+  public ClientHttpRequestInterceptor restTemplateInterceptor() {
+    return (HttpRequest request, byte[] body, ClientHttpRequestExecution execution) -> {
+      var guard = forUpstream(request.getURI().getHost(), portOf(request.getURI()));
+      var permit = guard.acquire();
+
+      ClientHttpResponse response;
+      try {
+        response = execution.execute(request, body);
+      } catch (IOException | RuntimeException exc) {
+        guard.release(permit, false);
+        throw exc;
+      }
+
+      guard.release(permit, isSuccess(response.getStatusCode().value()));
+      return response;
+    };
+  }
+
+  private static int portOf(URI uri) {
+    if (uri.getPort() != -1) {
+      return uri.getPort();
+    }
+    return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+  }
+}
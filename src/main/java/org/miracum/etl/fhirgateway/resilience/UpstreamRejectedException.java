@@ -0,0 +1,14 @@
+package org.miracum.etl.fhirgateway.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling a downstream service which is currently overloaded or unavailable. It
+ * is an {@link IOException}, so HTTP clients handle it just like a failed connection, including
+ * retrying it after backing off.
+ */
+public class UpstreamRejectedException extends IOException {
+  public UpstreamRejectedException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,22 @@
+package org.miracum.etl.fhirgateway.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.kafka.common.serialization.Serializer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Serializes FHIR resources to JSON for Kafka, reusing the encoding of a resource which was already
+ * encoded for another sink, see {@link EncodedResources}.
+ */
+public class CachingKafkaFhirSerializer implements Serializer<IBaseResource> {
+  private final FhirContext fhirContext = FhirContext.forR4Cached();
+
+  @Override
+  public byte @Nullable [] serialize(String topic, @Nullable IBaseResource data) {
+    if (data == null) {
+      return null;
+    }
+    return EncodedResources.encode(fhirContext, data).bytes();
+  }
+}
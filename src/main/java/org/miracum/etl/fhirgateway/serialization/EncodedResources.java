@@ -0,0 +1,92 @@
+package org.miracum.etl.fhirgateway.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Encodes resources to JSON at most once per pipeline run. The encoded form is kept in the user
+ * data of the resource, so every sink and the API response reuse it instead of encoding the
+ * resource again. {@link #invalidate} drops the encodings of a bundle before it is saved, so
+ * changes made by the processing stages are never hidden by a stale encoding.
+ */
+public final class EncodedResources {
+  private static final String USER_DATA_KEY = EncodedResources.class.getName();
+
+  private static final Counter HITS_COUNTER = requestsCounter("hit");
+  private static final Counter MISSES_COUNTER = requestsCounter("miss");
+  private static final DistributionSummary ENCODED_SIZE_SUMMARY =
+      DistributionSummary.builder("fhirgateway.serialization.encoded.size")
+          .description("Size of the JSON encoding of a resource or bundle")
+          .baseUnit("bytes")
+          .register(Metrics.globalRegistry);
+
+  private EncodedResources() {}
+
+  /** The JSON encoding of a resource, both as a string and as UTF-8 bytes. */
+  public record Encoded(String json, byte[] bytes) {}
+
+  private static Counter requestsCounter(String result) {
+    return Counter.builder("fhirgateway.serialization.cache.requests.total")
+        .description("Number of times the JSON encoding of a resource was requested")
+        .tag("result", result)
+        .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * Returns the encoding of the resource, encoding it only if it hasn't been encoded since the
+   * bundle containing it was last invalidated.
+   */
+  public static Encoded encode(FhirContext fhirContext, IBaseResource resource) {
+    // the stores may save the same bundle concurrently, and the user data is not thread-safe
+    synchronized (resource) {
+      if (resource.getUserData(USER_DATA_KEY) instanceof Encoded encoded) {
+        HITS_COUNTER.increment();
+        return encoded;
+      }
+
+      // parsers are not thread-safe, but cheap to create
+      var json = fhirContext.newJsonParser().encodeResourceToString(resource);
+      var encoded = new Encoded(json, json.getBytes(StandardCharsets.UTF_8));
+      resource.setUserData(USER_DATA_KEY, encoded);
+
+      MISSES_COUNTER.increment();
+      ENCODED_SIZE_SUMMARY.record(encoded.bytes().length);
+      return encoded;
+    }
+  }
+
+  /** Returns the encoding of the resource if it has already been encoded. */
+  public static Optional<Encoded> cached(IBaseResource resource) {
+    synchronized (resource) {
+      if (resource.getUserData(USER_DATA_KEY) instanceof Encoded encoded) {
+        HITS_COUNTER.increment();
+        return Optional.of(encoded);
+      }
+      return Optional.empty();
+    }
+  }
+
+  /** Drops the encodings of the bundle and of all resources contained in its entries. */
+  public static void invalidate(Bundle bundle) {
+    clear(bundle);
+    for (var entry : bundle.getEntry()) {
+      if (entry.hasResource()) {
+        clear(entry.getResource());
+      }
+    }
+  }
+
+  private static void clear(IBaseResource resource) {
+    synchronized (resource) {
+      if (resource.getUserData(USER_DATA_KEY) != null) {
+        resource.setUserData(USER_DATA_KEY, null);
+      }
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package org.miracum.etl.fhirgateway.stores;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.miracum.etl.fhirgateway.config.FhirServerChangeDetectionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maps the {@code Type/id} of each resource stored on the FHIR server to a hash of the content it
+ * was last sent with. Both are kept as 64-bit hashes in an open-addressing table, so each
+ * resource takes up between 32 and 64 bytes of memory. Two resources whose keys collide only cause
+ * unnecessary writes, while a changed resource is wrongly considered unchanged only if its 64-bit
+ * content hash collides.
+ *
+ * <p>Updates are appended to the index file, which is read back on startup and rewritten once it
+ * holds more than twice as many records as the table. The file is not forced to disk, since losing
+ * the latest updates only causes resources to be sent again.
+ */
+@Component
+@ConditionalOnExpression(
+    "${services.fhirServer.enabled} and ${services.fhirServer.change-detection.enabled}")
+public class ContentHashIndex implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(ContentHashIndex.class);
+
+  private static final int RECORD_BYTES = 2 * Long.BYTES;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final long MIN_RECORDS_BEFORE_COMPACTION = 10_000;
+  // marks empty slots and removed resources, so neither keys nor content hashes are ever 0
+  private static final long REMOVED = 0;
+
+  private final Path file;
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private long[] hashes = new long[INITIAL_CAPACITY];
+  private int slotsUsed;
+  private int size;
+  private long fileRecords;
+  private DataOutputStream output;
+
+  @Autowired
+  public ContentHashIndex(FhirServerChangeDetectionConfig config) throws IOException {
+    this(config.indexFile());
+  }
+
+  ContentHashIndex(Path file) throws IOException {
+    this.file = file;
+    var parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+
+    if (Files.exists(file)) {
+      load();
+    }
+    this.output = openOutput();
+    if (Files.size(file) != fileRecords * RECORD_BYTES) {
+      // drops a partially written last record, so new records are appended at the right offset
+      compact();
+    }
+
+    Gauge.builder("fhirgateway.fhirserver.content.hashes", this, ContentHashIndex::size)
+        .description("Number of resources whose content hash is kept to detect unchanged ones")
+        .register(Metrics.globalRegistry);
+    log.info("Loaded content hash index from {} with {}", kv("file", file), kv("size", size));
+  }
+
+  /** Hashes the {@code Type/id} of a resource. */
+  static long keyOf(String resourceKey) {
+    var hash = hash(resourceKey);
+    return hash == REMOVED ? 1 : hash;
+  }
+
+  /** Hashes the canonical JSON encoding of a resource. */
+  static long contentHashOf(String json) {
+    var hash = hash(json);
+    return hash == REMOVED ? 1 : hash;
+  }
+
+  private static long hash(String value) {
+    return ByteBuffer.wrap(DigestUtils.sha256(value.getBytes(StandardCharsets.UTF_8))).getLong();
+  }
+
+  /** Returns whether the resource was last sent with the same content. */
+  synchronized boolean isUnchanged(long key, long contentHash) {
+    var slot = find(key);
+    return slot >= 0 && hashes[slot] == contentHash;
+  }
+
+  /**
+   * Records the content the resources were sent with, and forgets the deleted ones.
+   *
+   * @param contentHashes the content hashes by key
+   */
+  synchronized void update(Map<Long, Long> contentHashes, Collection<Long> deletedKeys) {
+    try {
+      for (var entry : contentHashes.entrySet()) {
+        put(entry.getKey(), entry.getValue());
+        writeRecord(output, entry.getKey(), entry.getValue());
+      }
+      for (var key : deletedKeys) {
+        if (find(key) >= 0) {
+          put(key, REMOVED);
+          writeRecord(output, key, REMOVED);
+        }
+      }
+      output.flush();
+
+      if (fileRecords > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2L * size)) {
+        compact();
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Failed to update the content hash index " + file, exc);
+    }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private int find(long key) {
+    var mask = keys.length - 1;
+    for (var slot = slotOf(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private static int slotOf(long key, int mask) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+
+  private void put(long key, long contentHash) {
+    var mask = keys.length - 1;
+    var slot = slotOf(key, mask);
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+
+    if (keys[slot] == 0) {
+      keys[slot] = key;
+      slotsUsed++;
+    } else if (hashes[slot] != REMOVED) {
+      size--;
+    }
+    hashes[slot] = contentHash;
+    if (contentHash != REMOVED) {
+      size++;
+    }
+
+    if (slotsUsed * 2 > keys.length) {
+      resize();
+    }
+  }
+
+  private void resize() {
+    var oldKeys = keys;
+    var oldHashes = hashes;
+    var capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(size, 1)) * 4);
+    keys = new long[capacity];
+    hashes = new long[capacity];
+    slotsUsed = 0;
+    size = 0;
+    for (var i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0 && oldHashes[i] != REMOVED) {
+        put(oldKeys[i], oldHashes[i]);
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    try (var input =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+      while (true) {
+        long key;
+        long contentHash;
+        try {
+          key = input.readLong();
+          contentHash = input.readLong();
+        } catch (EOFException exc) {
+          break;
+        }
+        put(key, contentHash);
+        fileRecords++;
+      }
+    }
+  }
+
+  private DataOutputStream openOutput() throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(
+            Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+            1 << 16));
+  }
+
+  private void writeRecord(DataOutputStream stream, long key, long contentHash)
+      throws IOException {
+    stream.writeLong(key);
+    stream.writeLong(contentHash);
+    fileRecords++;
+  }
+
+  /** Rewrites the file with a single record per resource. */
+  private void compact() throws IOException {
+    output.close();
+    var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    fileRecords = 0;
+    try (var stream =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+      for (var i = 0; i < keys.length; i++) {
+        if (keys[i] != 0 && hashes[i] != REMOVED) {
+          writeRecord(stream, keys[i], hashes[i]);
+        }
+      }
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    output = openOutput();
+    log.debug("Compacted content hash index to {} records", kv("records", fileRecords));
+  }
+
+  @Override
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    output.close();
+  }
+}
@@ -1,8 +1,21 @@
 package org.miracum.etl.fhirgateway.stores;
 
+import java.util.concurrent.CompletableFuture;
 import org.hl7.fhir.r4.model.Bundle;
 
 public interface FhirResourceRepository {
 
   void save(Bundle bundle);
+
+  /**
+   * Starts saving the bundle without waiting for stores which gather the writes of several bundles.
+   * Bundles passed one after the other are still saved in that order. Saves the bundle right away
+   * by default.
+   *
+   * @return a future completed once the bundle has been saved
+   */
+  default CompletableFuture<Void> saveAsync(Bundle bundle) {
+    save(bundle);
+    return CompletableFuture.completedFuture(null);
+  }
 }
@@ -3,12 +3,40 @@ package org.miracum.etl.fhirgateway.stores;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.config.FhirServerChunkingConfig;
+import org.miracum.etl.fhirgateway.serialization.EncodedResources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.retry.RetryCallback;
@@ -27,17 +55,48 @@ public class FhirServerResourceRepository implements FhirResourceRepository {
       Metrics.globalRegistry.gauge(
           "fhirgateway.fhirserver.transact.errors.total", new AtomicInteger(0));
 
+  private static final Counter SKIPPED_WRITES_COUNTER =
+      Counter.builder("fhirgateway.fhirserver.writes.skipped.total")
+          .description(
+              "Number of resources that were not sent because their content did not change")
+          .register(Metrics.globalRegistry);
+  private static final Counter SKIPPED_BUNDLES_COUNTER =
+      Counter.builder("fhirgateway.fhirserver.bundles.skipped.total")
+          .description("Number of bundles that were not sent since none of their resources changed")
+          .register(Metrics.globalRegistry);
+
+  private static final int RESOURCE_LOCK_STRIPES = 1024;
+
+  private final FhirContext fhirContext;
   private final IParser fhirParser;
   private final IGenericClient client;
   private final RetryTemplate retryTemplate;
+  private final FhirTerser terser;
+  private final FhirServerChunkingConfig chunkingConfig;
+  private final ExecutorService executor;
+  private final Optional<ContentHashIndex> contentHashIndex;
+  // guards detecting, sending and recording the changes of the resources hashed to each stripe
+  private final Lock[] resourceLocks = new Lock[RESOURCE_LOCK_STRIPES];
 
   @Autowired
   public FhirServerResourceRepository(
-      FhirContext fhirContext, IGenericClient client, RetryTemplate retryTemplate) {
+      FhirContext fhirContext,
+      IGenericClient client,
+      RetryTemplate retryTemplate,
+      FhirServerChunkingConfig chunkingConfig,
+      Optional<ContentHashIndex> contentHashIndex) {
 
+    this.fhirContext = fhirContext;
     this.fhirParser = fhirContext.newJsonParser();
     this.client = client;
     this.retryTemplate = retryTemplate;
+    this.terser = fhirContext.newTerser();
+    this.chunkingConfig = chunkingConfig;
+    this.executor = Executors.newVirtualThreadPerTaskExecutor();
+    this.contentHashIndex = contentHashIndex;
+    for (var i = 0; i < resourceLocks.length; i++) {
+      resourceLocks[i] = new ReentrantLock();
+    }
     this.retryTemplate.registerListener(
         new RetryListener() {
           @Override
@@ -52,17 +111,278 @@ public class FhirServerResourceRepository implements FhirResourceRepository {
         });
   }
 
+  @PreDestroy
+  void close() {
+    executor.close();
+  }
+
   @Override
   public void save(Bundle bundle) {
-    log.debug(
-        "Sending bundle {} with contents {}", bundle, fhirParser.encodeResourceToString(bundle));
+    if (contentHashIndex.isEmpty()) {
+      send(bundle);
+      return;
+    }
+
+    // concurrent saves of the same resource could otherwise be sent in a different order than
+    // their content hashes are recorded, so the index would hold the content which was overwritten
+    var locks = locksOf(bundle);
+    locks.forEach(Lock::lock);
+    try {
+      var changes = detectChanges(bundle, contentHashIndex.get());
+      if (changes.bundle().getEntry().isEmpty()) {
+        log.debug("Skipping bundle {} since none of its resources changed", bundle);
+        SKIPPED_BUNDLES_COUNTER.increment();
+        return;
+      }
+
+      send(changes.bundle());
+      contentHashIndex.get().update(changes.contentHashes(), changes.deletedKeys());
+    } finally {
+      locks.reversed().forEach(Lock::unlock);
+    }
+  }
+
+  /**
+   * Returns the locks guarding the resources of the bundle, in the order they need to be acquired
+   * in to avoid deadlocks.
+   */
+  private List<Lock> locksOf(Bundle bundle) {
+    var stripes = new TreeSet<Integer>();
+    for (var entry : bundle.getEntry()) {
+      var resourceKey = resourceKeyOf(entry);
+      if (resourceKey != null) {
+        var key = ContentHashIndex.keyOf(resourceKey);
+        stripes.add(Long.hashCode(key) & (RESOURCE_LOCK_STRIPES - 1));
+      }
+    }
+    return stripes.stream().map(stripe -> resourceLocks[stripe]).toList();
+  }
+
+  private void send(Bundle bundle) {
+    var chunks = split(bundle);
+    if (chunks.size() > 1) {
+      var response = transactInParallel(bundle, chunks);
+      if (log.isDebugEnabled()) {
+        log.debug(
+            "Response for bundle {} with contents {}",
+            bundle,
+            fhirParser.encodeResourceToString(response));
+      }
+      return;
+    }
+
+    // sends the encoding of the bundle which is reused for the other stores and the response
+    var encoded = EncodedResources.encode(fhirContext, bundle).json();
+    log.debug("Sending bundle {} with contents {}", bundle, encoded);
+
+    var response =
+        retryTemplate.execute(context -> client.transaction().withBundle(encoded).execute());
+
+    log.debug("Response for bundle {} with contents {}", bundle, response);
+  }
+
+  /**
+   * The bundle to send, which lacks the unchanged entries, along with the updates to the content
+   * hash index once it was sent.
+   */
+  record Changes(Bundle bundle, Map<Long, Long> contentHashes, Set<Long> deletedKeys) {}
+
+  /**
+   * Leaves out the PUT entries whose resource was last sent with the same content. Only entries
+   * updating a resource by its {@code Type/id} are considered, and none whose full URL is a
+   * placeholder that other entries may reference. If no entry is left out, the bundle itself is
+   * returned, so its cached encoding is reused.
+   */
+  Changes detectChanges(Bundle bundle, ContentHashIndex index) {
+    var kept = new ArrayList<BundleEntryComponent>(bundle.getEntry().size());
+    var contentHashes = new LinkedHashMap<Long, Long>();
+    var deletedKeys = new LinkedHashSet<Long>();
+
+    for (var entry : bundle.getEntry()) {
+      var resourceKey = resourceKeyOf(entry);
+      if (resourceKey == null) {
+        kept.add(entry);
+        continue;
+      }
+
+      var key = ContentHashIndex.keyOf(resourceKey);
+      if (entry.getRequest().getMethod() == HTTPVerb.DELETE) {
+        deletedKeys.add(key);
+        contentHashes.remove(key);
+        kept.add(entry);
+        continue;
+      }
+
+      var json = EncodedResources.encode(fhirContext, entry.getResource()).json();
+      var contentHash = ContentHashIndex.contentHashOf(json);
+      // an earlier entry of the bundle may have changed or deleted the resource
+      var isChangedInBundle = contentHashes.containsKey(key) || deletedKeys.contains(key);
+      if (!isChangedInBundle && index.isUnchanged(key, contentHash)) {
+        SKIPPED_WRITES_COUNTER.increment();
+        continue;
+      }
+      contentHashes.put(key, contentHash);
+      deletedKeys.remove(key);
+      kept.add(entry);
+    }
+
+    if (kept.size() == bundle.getEntry().size()) {
+      return new Changes(bundle, contentHashes, deletedKeys);
+    }
+
+    var changed = new Bundle().setType(bundle.getType());
+    changed.setId(bundle.getId());
+    kept.forEach(changed::addEntry);
+    return new Changes(changed, contentHashes, deletedKeys);
+  }
+
+  /**
+   * Returns the {@code Type/id} of the resource updated or deleted by the entry, or null if the
+   * entry does anything else.
+   */
+  private static @Nullable String resourceKeyOf(BundleEntryComponent entry) {
+    var request = entry.getRequest();
+    var isUpdate =
+        request.getMethod() == HTTPVerb.PUT
+            && entry.hasResource()
+            && !(entry.hasFullUrl() && entry.getFullUrl().startsWith("urn:"));
+    if ((!isUpdate && request.getMethod() != HTTPVerb.DELETE)
+        || !request.hasUrl()
+        || request.getUrl().contains("?")) {
+      return null;
+    }
+
+    var id = new IdType(request.getUrl());
+    if (!id.hasResourceType() || !id.hasIdPart()) {
+      return null;
+    }
+    return id.toUnqualifiedVersionless().getValue();
+  }
+
+  private Bundle transact(Bundle bundle) {
+    return retryTemplate.execute(context -> client.transaction().withBundle(bundle).execute());
+  }
+
+  /**
+   * Sends the chunks of a bundle at the same time, but at most {@code maxConcurrency} of them. Each
+   * chunk is retried on its own. The entries of the chunk responses are merged into a single
+   * response in the order of the original entries.
+   */
+  private Bundle transactInParallel(Bundle bundle, List<Bundle> chunks) {
+    log.debug("Sending bundle {} in {} chunks", bundle, chunks.size());
+
+    var concurrencyLimit = new Semaphore(Math.max(1, chunkingConfig.maxConcurrency()));
+    var mdcContext = MDC.getCopyOfContextMap();
+
+    var futures = new ArrayList<Future<Bundle>>(chunks.size());
+    for (var chunk : chunks) {
+      futures.add(
+          executor.submit(
+              () -> {
+                concurrencyLimit.acquire();
+                try {
+                  if (mdcContext != null) {
+                    MDC.setContextMap(mdcContext);
+                  }
+                  return transact(chunk);
+                } finally {
+                  MDC.clear();
+                  concurrencyLimit.release();
+                }
+              }));
+    }
 
     var response =
-        retryTemplate.execute(context -> client.transaction().withBundle(bundle).execute());
+        new Bundle()
+            .setType(
+                bundle.getType() == BundleType.BATCH
+                    ? BundleType.BATCHRESPONSE
+                    : BundleType.TRANSACTIONRESPONSE);
+    try {
+      for (var future : futures) {
+        future.get().getEntry().forEach(response::addEntry);
+      }
+    } catch (InterruptedException exc) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while sending bundle chunks", exc);
+    } catch (ExecutionException exc) {
+      futures.forEach(future -> future.cancel(true));
+      if (exc.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException("Failed to send bundle chunks", exc.getCause());
+    }
+    return response;
+  }
+
+  /**
+   * Splits batch bundles, and transaction bundles whose entries don't reference each other, into
+   * chunks of at most {@code chunkSize} entries. Any other bundle is returned as the only chunk, so
+   * transactions relying on resolving references between their entries stay atomic.
+   */
+  List<Bundle> split(Bundle bundle) {
+    var entries = bundle.getEntry();
+    var chunkSize = chunkingConfig.chunkSize();
+    if (!chunkingConfig.enabled()
+        || chunkSize < 1
+        || entries.size() <= chunkSize
+        || (bundle.getType() != BundleType.BATCH && bundle.getType() != BundleType.TRANSACTION)
+        || (bundle.getType() == BundleType.TRANSACTION && hasInternalReferences(entries))) {
+      return List.of(bundle);
+    }
+
+    var chunks = new ArrayList<Bundle>();
+    for (var start = 0; start < entries.size(); start += chunkSize) {
+      var chunk = new Bundle().setType(bundle.getType());
+      entries.subList(start, Math.min(start + chunkSize, entries.size())).forEach(chunk::addEntry);
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private boolean hasInternalReferences(List<BundleEntryComponent> entries) {
+    var entryIds = new HashSet<String>();
+    for (var entry : entries) {
+      if (entry.hasFullUrl()) {
+        entryIds.add(normalize(entry.getFullUrl()));
+      }
+      if (entry.hasRequest() && entry.getRequest().hasUrl()) {
+        entryIds.add(normalize(entry.getRequest().getUrl()));
+      }
+      if (entry.hasResource() && entry.getResource().getIdElement().hasIdPart()) {
+        entryIds.add(normalize(entry.getResource().getIdElement().getValue()));
+      }
+    }
+
+    return entries.stream()
+        .filter(BundleEntryComponent::hasResource)
+        .flatMap(
+            entry ->
+                terser
+                    .getAllPopulatedChildElementsOfType(entry.getResource(), Reference.class)
+                    .stream())
+        .anyMatch(reference -> isInternalReference(reference, entryIds));
+  }
+
+  private static boolean isInternalReference(Reference reference, Set<String> entryIds) {
+    if (!reference.hasReference()) {
+      return false;
+    }
+    var value = reference.getReference();
+    // conditional references are resolved by the server within the transaction
+    return value.contains("?") || entryIds.contains(normalize(value));
+  }
 
-    log.debug(
-        "Response for bundle {} with contents {}",
-        fhirParser.encodeResourceToString(bundle),
-        fhirParser.encodeResourceToString(response));
+  /** Reduces absolute and versioned URLs to the {@code Type/id} form of relative references. */
+  private static String normalize(String reference) {
+    if (reference.startsWith("urn:") || reference.startsWith("#")) {
+      return reference;
+    }
+    var id = new IdType(reference);
+    if (!id.hasResourceType() || !id.hasIdPart()) {
+      return reference;
+    }
+    return id.toUnqualifiedVersionless().getValue();
   }
 }
@@ -3,24 +3,50 @@ package org.miracum.etl.fhirgateway.stores;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.jspecify.annotations.Nullable;
+import org.miracum.etl.fhirgateway.batching.MicroBatcher;
+import org.miracum.etl.fhirgateway.config.PostgresConfig;
+import org.miracum.etl.fhirgateway.config.PostgresConfig.InsertMode;
+import org.miracum.etl.fhirgateway.serialization.EncodedResources;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @Component
 @ConditionalOnExpression("${services.psql.enabled}")
@@ -31,7 +57,15 @@ public class PostgresFhirResourceRepository implements FhirResourceRepository {
           .minimumExpectedValue(Duration.ofMillis(10))
           .maximumExpectedValue(Duration.ofSeconds(5))
           .publishPercentileHistogram()
-          .tags("operation", "insert")
+          .tags("operation", "insert", "mode", "batch")
+          .register(Metrics.globalRegistry);
+  private static final Timer COPY_INSERT_DURATION_TIMER =
+      Timer.builder("fhirgateway.postgres.operation.duration")
+          .description("Time taken to store all resources from a FHIR bundle in the database")
+          .minimumExpectedValue(Duration.ofMillis(10))
+          .maximumExpectedValue(Duration.ofSeconds(5))
+          .publishPercentileHistogram()
+          .tags("operation", "insert", "mode", "copy")
           .register(Metrics.globalRegistry);
   private static final Timer DELETE_DURATION_TIMER =
       Timer.builder("fhirgateway.postgres.operation.duration")
@@ -39,27 +73,104 @@ public class PostgresFhirResourceRepository implements FhirResourceRepository {
           .minimumExpectedValue(Duration.ofMillis(10))
           .maximumExpectedValue(Duration.ofSeconds(5))
           .publishPercentileHistogram()
-          .tags("operation", "delete")
+          .tags("operation", "delete", "mode", "batch")
+          .register(Metrics.globalRegistry);
+
+  private static final Counter SKIPPED_WRITES_COUNTER =
+      Counter.builder("fhirgateway.postgres.writes.skipped.total")
+          .description(
+              "Number of resources that were not written because their content did not change")
+          .register(Metrics.globalRegistry);
+  private static final Counter UNCOUNTED_WRITES_COUNTER =
+      Counter.builder("fhirgateway.postgres.writes.uncounted.total")
+          .description(
+              "Number of resources upserted without the driver reporting whether a row changed,"
+                  + " so they are missing from the skipped writes")
           .register(Metrics.globalRegistry);
 
   private static final Logger log = LoggerFactory.getLogger(PostgresFhirResourceRepository.class);
 
-  private final IParser fhirParser;
+  // the staging table only lives for the duration of the database session and is emptied on
+  // every commit, so it never needs to be cleaned up explicitly and is not WAL-logged.
+  private static final String CREATE_STAGING_TABLE_STATEMENT =
+      "CREATE TEMPORARY TABLE IF NOT EXISTS resources_staging "
+          + "(seq integer NOT NULL, fhir_id varchar(64) NOT NULL, type varchar(64) NOT NULL, "
+          + "data jsonb NOT NULL, content_hash varchar(64) NOT NULL) ON COMMIT DELETE ROWS";
+  private static final String COPY_STATEMENT =
+      "COPY resources_staging (seq, fhir_id, type, data, content_hash) FROM STDIN (FORMAT text)";
+  // rows whose content did not change are left untouched, so neither the data nor the
+  // last_updated_at timestamp is rewritten. Soft-deleted rows are always restored.
+  private static final String UPSERT_CONFLICT_CLAUSE =
+      "ON CONFLICT (fhir_id, type) "
+          + "DO UPDATE set data = EXCLUDED.data, content_hash = EXCLUDED.content_hash, "
+          + "last_updated_at = NOW(), is_deleted = false "
+          + "WHERE resources.content_hash IS DISTINCT FROM EXCLUDED.content_hash "
+          + "OR resources.is_deleted";
+  private static final String INSERT_STATEMENT =
+      "INSERT INTO resources (fhir_id, type, data, content_hash) "
+          + "VALUES (?, ?, ?::json, ?) "
+          + UPSERT_CONFLICT_CLAUSE;
+  // a single INSERT ... ON CONFLICT may not affect the same row twice, so only the last
+  // occurrence of each resource within the bundle is merged.
+  private static final String MERGE_STATEMENT =
+      "INSERT INTO resources (fhir_id, type, data, content_hash) "
+          + "SELECT DISTINCT ON (fhir_id, type) fhir_id, type, data, content_hash "
+          + "FROM resources_staging "
+          + "ORDER BY fhir_id, type, seq DESC "
+          + UPSERT_CONFLICT_CLAUSE;
+
+  private final FhirContext fhirContext;
   private final JdbcTemplate dataSinkTemplate;
   private final RetryTemplate retryTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final InsertMode insertMode;
+  private final Optional<MicroBatcher<PendingWrite>> writeBehind;
+  private final Duration writeBehindTimeout;
 
   @Autowired
   public PostgresFhirResourceRepository(
       FhirContext fhirContext,
       JdbcTemplate dataSinkTemplate,
-      @Qualifier("databaseRetryTemplate") RetryTemplate retryTemplate) {
-    this.fhirParser = fhirContext.newJsonParser();
+      @Qualifier("databaseRetryTemplate") RetryTemplate retryTemplate,
+      PlatformTransactionManager transactionManager,
+      PostgresConfig config) {
+    this.fhirContext = fhirContext;
     this.dataSinkTemplate = dataSinkTemplate;
     this.retryTemplate = retryTemplate;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.insertMode = Objects.requireNonNullElse(config.insertMode(), InsertMode.BATCH);
+
+    var writeBehindConfig = config.writeBehind();
+    if (writeBehindConfig != null && writeBehindConfig.enabled()) {
+      this.writeBehind =
+          Optional.of(
+              new MicroBatcher<>(
+                  "postgres",
+                  writeBehindConfig.maxBatchSize(),
+                  writeBehindConfig.linger(),
+                  writeBehindConfig.queueCapacity(),
+                  this::flushWrites));
+      this.writeBehindTimeout = writeBehindConfig.flushTimeout();
+    } else {
+      this.writeBehind = Optional.empty();
+      this.writeBehindTimeout = Duration.ZERO;
+    }
+  }
+
+  @PreDestroy
+  void close() throws InterruptedException {
+    if (writeBehind.isPresent()) {
+      writeBehind.get().close();
+    }
   }
 
   @Override
   public void save(Bundle bundle) {
+    if (writeBehind.isPresent()) {
+      saveWriteBehind(writeBehind.get(), bundle);
+      return;
+    }
+
     var insertedCount = insertResources(bundle);
     var deletedCount = deleteResources(bundle);
 
@@ -69,37 +180,354 @@ public class PostgresFhirResourceRepository implements FhirResourceRepository {
         kv("deletedCount", deletedCount));
   }
 
+  /**
+   * Stores resources taken from records as they are, without encoding them again. Deletes are
+   * applied after all other writes, just like for a bundle.
+   */
+  public void saveRaw(List<RawResource> resources) {
+    var failure = new AtomicReference<RuntimeException>();
+    var writes = new ArrayList<PendingWrite>(resources.size());
+    for (var resource : resources) {
+      var json = resource.json();
+      if (resource.method() == HTTPVerb.DELETE || json == null) {
+        writes.add(new PendingWrite(resource.type(), resource.id(), null, failure));
+      } else {
+        var row = ResourceRow.of(resource.id(), resource.type(), json);
+        writes.add(new PendingWrite(row.type(), row.fhirId(), row, failure));
+      }
+    }
+
+    if (writeBehind.isPresent()) {
+      submitWriteBehind(writeBehind.get(), writes, failure);
+      return;
+    }
+
+    var rows = new ArrayList<ResourceRow>();
+    var deleteValues = new ArrayList<Object[]>();
+    for (var write : writes) {
+      var row = write.row();
+      if (row != null) {
+        rows.add(row);
+      } else {
+        deleteValues.add(new Object[] {write.type(), write.fhirId()});
+      }
+    }
+
+    var insertedCount = insertRows(rows);
+    var deletedCount = deleteRows(deleteValues);
+
+    log.debug(
+        "processed raw resources, {}, {}",
+        kv("insertedCount", insertedCount),
+        kv("deletedCount", deletedCount));
+  }
+
+  /** Whether the writes of many bundles are gathered and stored together. */
+  public boolean isWritingBehind() {
+    return writeBehind.isPresent();
+  }
+
+  /**
+   * Hands the bundle's writes to the write-behind buffer without waiting for the batch containing
+   * them to be committed, so they are gathered with the writes of the bundles saved meanwhile.
+   */
+  @Override
+  public CompletableFuture<Void> saveAsync(Bundle bundle) {
+    if (writeBehind.isEmpty()) {
+      return FhirResourceRepository.super.saveAsync(bundle);
+    }
+
+    var failure = new AtomicReference<RuntimeException>();
+    var writes = pendingWritesOf(bundle, failure);
+    if (writes.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<Void> flushed;
+    try {
+      flushed = writeBehind.get().submit(writes);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while submitting the bundle", exc);
+    }
+
+    return flushed
+        .orTimeout(writeBehindTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .thenRun(
+            () -> {
+              var exc = failure.get();
+              if (exc != null) {
+                throw exc;
+              }
+            });
+  }
+
+  /**
+   * Hands the bundle's writes to the write-behind buffer and blocks until the batch containing
+   * them was committed, so the bundle is only acknowledged once it has been persisted.
+   */
+  private void saveWriteBehind(MicroBatcher<PendingWrite> batcher, Bundle bundle) {
+    var failure = new AtomicReference<RuntimeException>();
+    submitWriteBehind(batcher, pendingWritesOf(bundle, failure), failure);
+  }
+
+  private List<PendingWrite> pendingWritesOf(
+      Bundle bundle, AtomicReference<RuntimeException> failure) {
+    var writes = new ArrayList<PendingWrite>(bundle.getEntry().size());
+    for (var entry : bundle.getEntry()) {
+      var request = entry.getRequest();
+      if (request.getMethod() == HTTPVerb.DELETE) {
+        var typeAndId = request.getUrl().split("/");
+        writes.add(new PendingWrite(typeAndId[0], typeAndId[1], null, failure));
+      } else {
+        var resource = entry.getResource();
+        var row =
+            ResourceRow.of(
+                resource.getIdElement().getIdPart(),
+                resource.fhirType(),
+                EncodedResources.encode(fhirContext, resource).json());
+        writes.add(new PendingWrite(row.type(), row.fhirId(), row, failure));
+      }
+    }
+    return writes;
+  }
+
+  /**
+   * Waits for the writes to be flushed. {@code failure} is set if the batch they were flushed with
+   * failed and storing them on their own failed as well. Gives up after the configured flush
+   * timeout, in which case the writes may still be stored later.
+   */
+  private void submitWriteBehind(
+      MicroBatcher<PendingWrite> batcher,
+      List<PendingWrite> writes,
+      AtomicReference<RuntimeException> failure) {
+    if (writes.isEmpty()) {
+      return;
+    }
+
+    try {
+      batcher.submit(writes).get(writeBehindTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException exc) {
+      throw new IllegalStateException(
+          "Timed out after " + writeBehindTimeout + " waiting for the bundle to be stored", exc);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the bundle to be stored", exc);
+    } catch (ExecutionException exc) {
+      if (exc.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException("Failed to store the bundle", exc.getCause());
+    }
+
+    var exc = failure.get();
+    if (exc != null) {
+      throw exc;
+    }
+  }
+
+  /**
+   * Stores the writes gathered from several bundles. If that fails, the writes of each bundle are
+   * stored on their own, so a single bundle which can't be stored only fails its own caller.
+   */
+  private void flushWrites(List<PendingWrite> writes) {
+    try {
+      applyWrites(writes);
+    } catch (RuntimeException exc) {
+      var bundles =
+          writes.stream()
+              .collect(
+                  Collectors.groupingBy(
+                      PendingWrite::failure, LinkedHashMap::new, Collectors.toList()));
+      if (bundles.size() == 1) {
+        throw exc;
+      }
+
+      log.warn(
+          "Storing the writes gathered from {} failed. Falling back to storing each bundle.",
+          kv("bundleCount", bundles.size()),
+          exc);
+      for (var bundle : bundles.entrySet()) {
+        try {
+          applyWrites(bundle.getValue());
+        } catch (RuntimeException bundleExc) {
+          bundle.getKey().set(bundleExc);
+        }
+      }
+    }
+  }
+
+  private void applyWrites(List<PendingWrite> writes) {
+    var coalesced = coalesce(writes);
+    var insertedCount = insertRows(coalesced.rows());
+    var deletedCount = deleteRows(coalesced.deleteValues());
+
+    log.debug(
+        "flushed {} gathered from bundles, {}, {}",
+        kv("writeCount", writes.size()),
+        kv("insertedCount", insertedCount),
+        kv("deletedCount", deletedCount));
+  }
+
+  /**
+   * Merges the writes into the upserts and soft deletes to apply, in that order. Only the last
+   * upsert of each resource is kept, and a resource whose last write is a delete is soft deleted
+   * after that upsert, just as if the writes had been applied one after the other.
+   */
+  static CoalescedWrites coalesce(List<PendingWrite> writes) {
+    var rows = new LinkedHashMap<String, ResourceRow>();
+    var deletes = new LinkedHashMap<String, PendingWrite>();
+    for (var write : writes) {
+      var key = write.type() + "/" + write.fhirId();
+      var row = write.row();
+      if (row != null) {
+        rows.put(key, row);
+        deletes.remove(key);
+      } else {
+        deletes.put(key, write);
+      }
+    }
+
+    var deleteValues =
+        deletes.values().stream()
+            .map(write -> new Object[] {write.type(), write.fhirId()})
+            .collect(Collectors.toCollection(ArrayList::new));
+    return new CoalescedWrites(new ArrayList<>(rows.values()), deleteValues);
+  }
+
   private int insertResources(Bundle bundle) {
-    var insertValues =
+    var rows =
         bundle.getEntry().stream()
             // all but delete operations should result in persisting the included resource
             // ignoring HTTP patch for now.
             .filter(e -> e.getRequest().getMethod() != HTTPVerb.DELETE)
             .map(BundleEntryComponent::getResource)
-            .sorted(Comparator.comparing(r -> r.getIdElement().getIdPart()))
             .map(
                 resource ->
-                    new Object[] {
-                      resource.getIdElement().getIdPart(),
-                      resource.fhirType(),
-                      fhirParser.encodeResourceToString(resource)
-                    })
-            .collect(Collectors.toCollection(ArrayList::new));
+                    ResourceRow.of(
+                        resource.getIdElement().getIdPart(),
+                        resource.fhirType(),
+                        EncodedResources.encode(fhirContext, resource).json()))
+            .toList();
+
+    return insertRows(rows);
+  }
+
+  private int insertRows(List<ResourceRow> unsortedRows) {
+    if (unsortedRows.isEmpty()) {
+      return 0;
+    }
+
+    var rows = unsortedRows.stream().sorted(Comparator.comparing(ResourceRow::fhirId)).toList();
+
+    if (insertMode == InsertMode.COPY) {
+      // duplicates within the bundle are merged into a single row
+      var expectedCount =
+          rows.stream().map(row -> row.type() + "/" + row.fhirId()).distinct().count();
+      COPY_INSERT_DURATION_TIMER.record(
+          () -> {
+            var merged = retryTemplate.execute(context -> copyResources(rows));
+            SKIPPED_WRITES_COUNTER.increment(Math.max(0, expectedCount - merged));
+          });
+    } else {
+      var insertValues =
+          rows.stream()
+              .map(row -> new Object[] {row.fhirId(), row.type(), row.data(), row.contentHash()})
+              .collect(Collectors.toCollection(ArrayList::new));
 
-    if (!insertValues.isEmpty()) {
       INSERT_DURATION_TIMER.record(
-          () ->
-              retryTemplate.execute(
-                  (context) ->
-                      dataSinkTemplate.batchUpdate(
-                          "INSERT INTO resources (fhir_id, type, data)"
-                              + "VALUES (?, ?, ?::json)"
-                              + "ON CONFLICT (fhir_id, type)"
-                              + "DO UPDATE set data = EXCLUDED.data, last_updated_at = NOW(), is_deleted = false",
-                          insertValues)));
+          () -> {
+            var updateCounts =
+                retryTemplate.execute(
+                    (context) -> dataSinkTemplate.batchUpdate(INSERT_STATEMENT, insertValues));
+            // the driver reports SUCCESS_NO_INFO instead of a row count when it rewrites batched
+            // inserts, which doesn't tell whether the content was unchanged
+            SKIPPED_WRITES_COUNTER.increment(
+                Arrays.stream(updateCounts).filter(count -> count == 0).count());
+            UNCOUNTED_WRITES_COUNTER.increment(
+                Arrays.stream(updateCounts)
+                    .filter(count -> count == Statement.SUCCESS_NO_INFO)
+                    .count());
+          });
+    }
+
+    return rows.size();
+  }
+
+  /**
+   * Streams the rows into the session-local staging table and merges them into the resources
+   * table within a single transaction.
+   *
+   * @return the number of inserted or updated rows
+   */
+  private int copyResources(List<ResourceRow> rows) {
+    var merged =
+        transactionTemplate.execute(
+            status ->
+                dataSinkTemplate.execute(
+                    (ConnectionCallback<Integer>) connection -> copyAndMerge(connection, rows)));
+    return Objects.requireNonNullElse(merged, 0);
+  }
+
+  private static int copyAndMerge(Connection connection, List<ResourceRow> rows)
+      throws SQLException {
+    try (var statement = connection.createStatement()) {
+      statement.execute(CREATE_STAGING_TABLE_STATEMENT);
     }
 
-    return insertValues.size();
+    var copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STATEMENT);
+    try {
+      for (var i = 0; i < rows.size(); i++) {
+        var bytes = toCopyLine(i, rows.get(i)).getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+      }
+      copyIn.endCopy();
+    } finally {
+      if (copyIn.isActive()) {
+        cancelCopy(copyIn);
+      }
+    }
+
+    try (var statement = connection.createStatement()) {
+      return statement.executeUpdate(MERGE_STATEMENT);
+    }
+  }
+
+  private static void cancelCopy(CopyIn copyIn) {
+    try {
+      copyIn.cancelCopy();
+    } catch (SQLException exc) {
+      log.warn("Failed to cancel the active COPY operation", exc);
+    }
+  }
+
+  /** Formats a row as a single line of PostgreSQL's COPY text format. */
+  static String toCopyLine(int seq, ResourceRow row) {
+    return seq
+        + "\t"
+        + escapeCopyText(row.fhirId())
+        + "\t"
+        + escapeCopyText(row.type())
+        + "\t"
+        + escapeCopyText(row.data())
+        + "\t"
+        + row.contentHash()
+        + "\n";
+  }
+
+  static String escapeCopyText(String value) {
+    var escaped = new StringBuilder(value.length() + 16);
+    for (var i = 0; i < value.length(); i++) {
+      var c = value.charAt(i);
+      switch (c) {
+        case '\\' -> escaped.append("\\\\");
+        case '\t' -> escaped.append("\\t");
+        case '\n' -> escaped.append("\\n");
+        case '\r' -> escaped.append("\\r");
+        default -> escaped.append(c);
+      }
+    }
+    return escaped.toString();
   }
 
   private int deleteResources(Bundle bundle) {
@@ -110,6 +538,10 @@ public class PostgresFhirResourceRepository implements FhirResourceRepository {
             .map(request -> (Object[]) request.getUrl().split("/"))
             .collect(Collectors.toCollection(ArrayList::new));
 
+    return deleteRows(deleteValues);
+  }
+
+  private int deleteRows(List<Object[]> deleteValues) {
     if (!deleteValues.isEmpty()) {
       DELETE_DURATION_TIMER.record(
           () ->
@@ -124,4 +556,22 @@ public class PostgresFhirResourceRepository implements FhirResourceRepository {
 
     return deleteValues.size();
   }
+
+  /**
+   * A pending upsert of {@code row}, or a soft delete if {@code row} is null. All writes of a
+   * bundle share the same {@code failure}.
+   */
+  record PendingWrite(
+      String type,
+      String fhirId,
+      @Nullable ResourceRow row,
+      AtomicReference<RuntimeException> failure) {}
+
+  record CoalescedWrites(List<ResourceRow> rows, List<Object[]> deleteValues) {}
+
+  record ResourceRow(String fhirId, String type, String data, String contentHash) {
+    static ResourceRow of(String fhirId, String type, String data) {
+      return new ResourceRow(fhirId, type, data, DigestUtils.sha256Hex(data));
+    }
+  }
 }
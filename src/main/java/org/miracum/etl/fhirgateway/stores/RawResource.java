@@ -0,0 +1,15 @@
+package org.miracum.etl.fhirgateway.stores;
+
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A resource write taken from a record without parsing the resource.
+ *
+ * @param json the resource as it was received, or null for a {@link HTTPVerb#DELETE}
+ */
+public record RawResource(String type, String id, HTTPVerb method, @Nullable String json) {
+  public String key() {
+    return type + "/" + id;
+  }
+}
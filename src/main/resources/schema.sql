@@ -7,9 +7,13 @@ CREATE TABLE IF NOT EXISTS resources
     created_at      timestamp   NOT NULL DEFAULT NOW(),
     last_updated_at timestamp   NOT NULL DEFAULT NOW(),
     is_deleted      boolean     NOT NULL DEFAULT FALSE,
+    content_hash    varchar(64),
     CONSTRAINT fhir_id_unique UNIQUE (fhir_id, type)
 );
 
+-- added after the initial release, so tables created by earlier versions need to be migrated
+ALTER TABLE resources ADD COLUMN IF NOT EXISTS content_hash varchar(64);
+
 CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS resource_id_idx ON resources (id);
 CREATE INDEX IF NOT EXISTS resource_type_idx ON resources (type);
 CREATE INDEX IF NOT EXISTS last_updated_at_idx ON resources (last_updated_at DESC);
@@ -0,0 +1,127 @@
+package org.miracum.etl.fhirgateway.batching;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class MicroBatcherTest {
+
+  @Test
+  void submit_reachingMaxBatchSize_flushesAllItemsInOneBatch() throws Exception {
+    var flushed = new CopyOnWriteArrayList<List<String>>();
+    try (var batcher =
+        new MicroBatcher<String>("test", 3, Duration.ofMinutes(1), 10, flushed::add)) {
+      var first = batcher.submit(List.of("a", "b"));
+      var second = batcher.submit(List.of("c"));
+
+      second.get(5, TimeUnit.SECONDS);
+      assertThat(first).isCompleted();
+    }
+
+    assertThat(flushed).containsExactly(List.of("a", "b", "c"));
+  }
+
+  @Test
+  void submit_belowMaxBatchSize_flushesAfterLinger() throws Exception {
+    var flushed = new CopyOnWriteArrayList<List<String>>();
+    try (var batcher =
+        new MicroBatcher<String>("test", 100, Duration.ofMillis(20), 10, flushed::add)) {
+      batcher.submit(List.of("a")).get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(flushed).containsExactly(List.of("a"));
+  }
+
+  @Test
+  void submit_withFailingFlush_completesFutureExceptionally() throws Exception {
+    try (var batcher =
+        new MicroBatcher<String>(
+            "test",
+            1,
+            Duration.ofMillis(20),
+            10,
+            items -> {
+              throw new IllegalStateException("database unavailable");
+            })) {
+      var future = batcher.submit(List.of("a"));
+
+      assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+          .isInstanceOf(ExecutionException.class)
+          .hasRootCauseMessage("database unavailable");
+    }
+  }
+
+  @Test
+  void submit_withFlushThrowingError_failsFutureAndKeepsFlushing() throws Exception {
+    var flushed = new CopyOnWriteArrayList<List<String>>();
+    try (var batcher =
+        new MicroBatcher<String>(
+            "test",
+            1,
+            Duration.ofMillis(20),
+            10,
+            items -> {
+              if (items.contains("a")) {
+                throw new OutOfMemoryError("no memory left");
+              }
+              flushed.add(items);
+            })) {
+      var failed = batcher.submit(List.of("a"));
+
+      assertThatThrownBy(() -> failed.get(5, TimeUnit.SECONDS))
+          .isInstanceOf(ExecutionException.class)
+          .hasRootCauseInstanceOf(OutOfMemoryError.class);
+
+      batcher.submit(List.of("b")).get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(flushed).containsExactly(List.of("b"));
+  }
+
+  @Test
+  void close_withPendingItems_flushesThemFirst() throws Exception {
+    var flushed = new CopyOnWriteArrayList<List<String>>();
+    var batcher = new MicroBatcher<String>("test", 100, Duration.ofSeconds(1), 10, flushed::add);
+    var future = batcher.submit(List.of("a"));
+
+    batcher.close();
+
+    assertThat(future).isCompleted();
+    assertThat(flushed).containsExactly(List.of("a"));
+  }
+
+  @Test
+  void submit_withConcurrentFlushes_flushesSeveralBatchesAtTheSameTime() throws Exception {
+    // each flush only returns once the other one has started as well
+    var started = new CountDownLatch(2);
+    try (var batcher =
+        new MicroBatcher<String>(
+            "test",
+            1,
+            Duration.ofMillis(20),
+            10,
+            2,
+            items -> {
+              started.countDown();
+              try {
+                assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+              } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(exc);
+              }
+            })) {
+      var first = batcher.submit(List.of("a"));
+      var second = batcher.submit(List.of("b"));
+
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.Async;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.BulkImport;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.ReturnPreference;
+import org.miracum.etl.fhirgateway.controllers.AsyncRequestExecutor.Job;
+import org.miracum.etl.fhirgateway.controllers.AsyncRequestExecutor.Status;
+import org.springframework.util.unit.DataSize;
+
+class AsyncRequestExecutorTest {
+
+  private final AsyncRequestExecutor executor =
+      new AsyncRequestExecutor(
+          new FhirApiConfig(
+              DataSize.ofMegabytes(1),
+              new BulkImport(10, 1, 10),
+              new Async(true, 1, 1, Duration.ofMinutes(1), 10),
+              ReturnPreference.REPRESENTATION));
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    executor.close();
+  }
+
+  private Job awaitCompletion(String jobId) throws InterruptedException {
+    var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (System.nanoTime() < deadline) {
+      var job = executor.getJob(jobId).orElseThrow();
+      if (job.status() == Status.COMPLETED || job.status() == Status.FAILED) {
+        return job;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("Job " + jobId + " did not complete in time");
+  }
+
+  @Test
+  void submit_shouldCompleteJobWithSummaryOfEntries() throws InterruptedException {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    var patient = new Patient();
+    patient.setId("Patient/1");
+    bundle.addEntry().setResource(patient).getRequest().setMethod(HTTPVerb.PUT);
+
+    var jobId = executor.submit(() -> bundle).orElseThrow();
+
+    var job = awaitCompletion(jobId);
+    assertThat(job.status()).isEqualTo(Status.COMPLETED);
+    assertThat(job.result()).isNotNull();
+    assertThat(job.result().getIssueFirstRep().getDiagnostics())
+        .isEqualTo("Processed 1 entry (1 PUT)");
+  }
+
+  @Test
+  void submit_withFailingWork_shouldFailJobWithErrorMessage() throws InterruptedException {
+    var jobId =
+        executor
+            .submit(
+                () -> {
+                  throw new IllegalStateException("downstream unavailable");
+                })
+            .orElseThrow();
+
+    var job = awaitCompletion(jobId);
+    assertThat(job.status()).isEqualTo(Status.FAILED);
+    assertThat(job.errorMessage()).isEqualTo("downstream unavailable");
+  }
+
+  @Test
+  void submit_withFullQueue_shouldReject() throws InterruptedException {
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    executor.submit(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return new Bundle();
+        });
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+    var queued = executor.submit(Bundle::new);
+    var rejected = executor.submit(Bundle::new);
+
+    assertThat(queued).isPresent();
+    assertThat(executor.getJob(queued.get()).orElseThrow().status()).isEqualTo(Status.QUEUED);
+    assertThat(rejected).isEmpty();
+    release.countDown();
+  }
+
+  @Test
+  void submit_withoutRetainedJobs_shouldKeepPendingJobs() throws InterruptedException {
+    var nonRetaining =
+        new AsyncRequestExecutor(
+            new FhirApiConfig(
+                DataSize.ofMegabytes(1),
+                new BulkImport(10, 1, 10),
+                new Async(true, 1, 1, Duration.ofMinutes(1), 0),
+                ReturnPreference.REPRESENTATION));
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    try {
+      var running =
+          nonRetaining
+              .submit(
+                  () -> {
+                    started.countDown();
+                    try {
+                      release.await();
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                    return new Bundle();
+                  })
+              .orElseThrow();
+      assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+      var queued = nonRetaining.submit(Bundle::new).orElseThrow();
+
+      assertThat(nonRetaining.getJob(running).orElseThrow().status()).isEqualTo(Status.RUNNING);
+      assertThat(nonRetaining.getJob(queued).orElseThrow().status()).isEqualTo(Status.QUEUED);
+    } finally {
+      release.countDown();
+      nonRetaining.close();
+    }
+  }
+
+  @Test
+  void getJob_withUnknownId_shouldReturnEmpty() {
+    assertThat(executor.getJob("unknown")).isEmpty();
+  }
+}
@@ -0,0 +1,90 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.Async;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.BulkImport;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.ReturnPreference;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.PayloadTooLargeException;
+
+class FhirResourceHttpMessageConverterTest {
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+  private static final String PATIENT_JSON = "{\"resourceType\":\"Patient\",\"id\":\"123\"}";
+
+  private static FhirResourceHttpMessageConverter createConverter(DataSize maxRequestSize) {
+    var config =
+        new FhirApiConfig(
+            maxRequestSize,
+            new BulkImport(10, 1, 10),
+            new Async(false, 1, 1, Duration.ofMinutes(1), 1),
+            ReturnPreference.REPRESENTATION);
+    return new FhirResourceHttpMessageConverter(FHIR_CONTEXT, config);
+  }
+
+  @Test
+  void read_withResource_parsesItFromTheBody() throws IOException {
+    var converter = createConverter(DataSize.ofKilobytes(1));
+    var input = new MockHttpInputMessage(PATIENT_JSON.getBytes(StandardCharsets.UTF_8));
+
+    var resource = converter.read(Resource.class, input);
+
+    assertThat(resource).isInstanceOf(Patient.class);
+    assertThat(resource.getIdElement().getIdPart()).isEqualTo("123");
+  }
+
+  @Test
+  void canRead_withAnyContentType_isTrueForResources() {
+    var converter = createConverter(DataSize.ofKilobytes(1));
+
+    assertThat(converter.canRead(Resource.class, MediaType.TEXT_PLAIN)).isTrue();
+    assertThat(converter.canRead(Resource.class, MediaType.APPLICATION_OCTET_STREAM)).isTrue();
+    assertThat(converter.canRead(Resource.class, null)).isTrue();
+    assertThat(converter.canRead(String.class, MediaType.APPLICATION_JSON)).isFalse();
+    assertThat(converter.canWrite(Resource.class, MediaType.TEXT_PLAIN)).isFalse();
+  }
+
+  @Test
+  void read_withBodyLargerThanMaxRequestSize_fails() {
+    var converter = createConverter(DataSize.ofBytes(10));
+    var input = new MockHttpInputMessage(PATIENT_JSON.getBytes(StandardCharsets.UTF_8));
+
+    assertThatThrownBy(() -> converter.read(Resource.class, input))
+        .isInstanceOf(PayloadTooLargeException.class);
+  }
+
+  @Test
+  void read_withUnexpectedResourceType_fails() {
+    var converter = createConverter(DataSize.ofKilobytes(1));
+    var input = new MockHttpInputMessage(PATIENT_JSON.getBytes(StandardCharsets.UTF_8));
+
+    assertThatThrownBy(() -> converter.read(Bundle.class, input))
+        .isInstanceOf(HttpMessageNotReadableException.class);
+  }
+
+  @Test
+  void write_withResource_encodesItToTheBody() throws IOException {
+    var converter = createConverter(DataSize.ofKilobytes(1));
+    var output = new MockHttpOutputMessage();
+
+    converter.write(new Patient().setActive(true), MediaType.APPLICATION_JSON, output);
+
+    assertThat(output.getBodyAsString())
+        .isEqualTo("{\"resourceType\":\"Patient\",\"active\":true}");
+  }
+}
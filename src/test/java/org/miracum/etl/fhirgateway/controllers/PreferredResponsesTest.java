@@ -0,0 +1,101 @@
+package org.miracum.etl.fhirgateway.controllers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.ReturnPreference;
+
+class PreferredResponsesTest {
+
+  private static Bundle createBundle() {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    var patient = new Patient();
+    patient.setId("Patient/1");
+    bundle
+        .addEntry()
+        .setResource(patient)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/1");
+    bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Patient/2");
+    var observation = new Observation();
+    observation.setId("Observation/3");
+    bundle
+        .addEntry()
+        .setResource(observation)
+        .getRequest()
+        .setMethod(HTTPVerb.POST)
+        .setUrl("Observation");
+    return bundle;
+  }
+
+  @Test
+  void parse_withReturnToken_shouldReturnRequestedPreference() {
+    assertThat(PreferredResponses.parse("return=minimal")).contains(ReturnPreference.MINIMAL);
+    var quoted = "respond-async, return=\"OperationOutcome\"";
+    assertThat(PreferredResponses.parse(quoted)).contains(ReturnPreference.OPERATION_OUTCOME);
+    assertThat(PreferredResponses.parse("Return=Representation"))
+        .contains(ReturnPreference.REPRESENTATION);
+  }
+
+  @Test
+  void parse_withoutKnownReturnToken_shouldReturnEmpty() {
+    assertThat(PreferredResponses.parse(null)).isEmpty();
+    assertThat(PreferredResponses.parse("respond-async")).isEmpty();
+    assertThat(PreferredResponses.parse("return=everything")).isEmpty();
+  }
+
+  @Test
+  void of_withMinimal_shouldRespondWithoutBody() {
+    var response =
+        PreferredResponses.of(
+            createBundle(), Optional.of(ReturnPreference.MINIMAL), ReturnPreference.REPRESENTATION);
+
+    assertThat(response.getStatusCode().value()).isEqualTo(200);
+    assertThat(response.hasBody()).isFalse();
+  }
+
+  @Test
+  void of_withOperationOutcome_shouldSummarizeEntries() {
+    var response =
+        PreferredResponses.of(
+            createBundle(),
+            Optional.of(ReturnPreference.OPERATION_OUTCOME),
+            ReturnPreference.REPRESENTATION);
+
+    assertThat(response.getBody()).isInstanceOf(OperationOutcome.class);
+    var outcome = (OperationOutcome) response.getBody();
+    assertThat(outcome.getIssueFirstRep().getDiagnostics())
+        .isEqualTo("Processed 3 entries (1 DELETE, 1 POST, 1 PUT)");
+  }
+
+  @Test
+  void of_withRequestedPreference_shouldConfirmItAsApplied() {
+    var response =
+        PreferredResponses.of(
+            createBundle(),
+            Optional.of(ReturnPreference.OPERATION_OUTCOME),
+            ReturnPreference.MINIMAL);
+
+    assertThat(response.getHeaders().get(PreferredResponses.PREFERENCE_APPLIED_HEADER))
+        .containsExactly("return=OperationOutcome");
+  }
+
+  @Test
+  void of_withDefaultPreference_shouldNotClaimAnyAsApplied() {
+    var bundle = createBundle();
+
+    var response = PreferredResponses.of(bundle, Optional.empty(), ReturnPreference.REPRESENTATION);
+
+    assertThat(response.getBody()).isSameAs(bundle);
+    assertThat(response.getHeaders().containsHeader(PreferredResponses.PREFERENCE_APPLIED_HEADER))
+        .isFalse();
+  }
+}
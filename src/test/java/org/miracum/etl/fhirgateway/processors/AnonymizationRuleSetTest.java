@@ -0,0 +1,72 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.Method;
+import org.miracum.etl.fhirgateway.processors.AnonymizationRuleSet.Where;
+
+class AnonymizationRuleSetTest {
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+  @Test
+  void read_withShippedRuleSet_parsesAllRules() throws IOException {
+    var ruleSet = AnonymizationRuleSet.read(Path.of("deploy/anonymization.yaml"), FHIR_CONTEXT);
+
+    assertThat(ruleSet.rules()).hasSize(4).allMatch(rule -> rule.method() == Method.CRYPTO_HASH);
+    assertThat(ruleSet.cryptoHashKey()).isEqualTo("miracum");
+
+    var putUrlRule = ruleSet.rules().get(3);
+    assertThat(putUrlRule.resourceType()).isEqualTo("Bundle");
+    assertThat(putUrlRule.steps()).contains(new Where("method", "PUT"));
+  }
+
+  @Test
+  void parse_withUnsupportedMethod_fails() {
+    var yaml =
+        """
+        fhirPathRules:
+          - path: Patient.birthDate
+            method: generalize
+        """;
+
+    assertThatThrownBy(() -> AnonymizationRuleSet.parse(yaml, FHIR_CONTEXT))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("generalize");
+  }
+
+  @Test
+  void parse_withUnsupportedPathExpression_fails() {
+    var yaml =
+        """
+        fhirPathRules:
+          - path: Patient.name.first()
+            method: redact
+        """;
+
+    assertThatThrownBy(() -> AnonymizationRuleSet.parse(yaml, FHIR_CONTEXT))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("first()");
+  }
+
+  @Test
+  void parse_withPartialRedaction_fails() {
+    var yaml =
+        """
+        fhirPathRules:
+          - path: Patient.birthDate
+            method: redact
+        parameters:
+          enablePartialDatesForRedact: true
+        """;
+
+    assertThatThrownBy(() -> AnonymizationRuleSet.parse(yaml, FHIR_CONTEXT))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("enablePartialDatesForRedact");
+  }
+}
@@ -1,17 +1,38 @@
 package org.miracum.etl.fhirgateway.processors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.kafka.support.KafkaNull;
 import org.springframework.messaging.Message;
@@ -69,4 +90,313 @@ class BaseKafkaProcessorTest {
     assertThat(bundle.getEntry()).hasSize(1);
     assertThat(bundle.getEntryFirstRep().getResource()).isSameAs(patient);
   }
+
+  @Test
+  void processBatch_withSingleResources_mergesThemIntoOneBundle() {
+    var processor = new BaseKafkaProcessor(pipeline, 10) {};
+    when(pipeline.process(any(Bundle.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    var messages = List.of(patientMessage("1"), nullMessage(), patientMessage("2"));
+    var emitted = new ArrayList<Bundle>();
+
+    processor.processBatch(messages, (message, processed) -> emitted.add(processed));
+
+    verify(pipeline, times(1)).process(argThat(bundle -> bundle.getEntry().size() == 2));
+    assertThat(emitted).hasSize(2);
+    assertThat(emitted.get(0).getEntryFirstRep().getResource().getIdElement().getIdPart())
+        .isEqualTo("1");
+    assertThat(emitted.get(1).getEntryFirstRep().getResource().getIdElement().getIdPart())
+        .isEqualTo("2");
+  }
+
+  @Test
+  void processBatch_withMoreRecordsThanMaxBundleSize_splitsIntoSeveralBundles() {
+    var processor = new BaseKafkaProcessor(pipeline, 2) {};
+    when(pipeline.process(any(Bundle.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    var messages =
+        List.of(patientMessage("1"), patientMessage("2"), patientMessage("3"), patientMessage("4"));
+
+    processor.processBatch(messages, (message, processed) -> {});
+
+    verify(pipeline, times(2)).process(argThat(bundle -> bundle.getEntry().size() == 2));
+  }
+
+  @Test
+  void processBatch_withRepeatedResourceId_startsNewBundle() {
+    var processor = new BaseKafkaProcessor(pipeline, 10) {};
+    when(pipeline.process(any(Bundle.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    var messages = List.of(patientMessage("1"), patientMessage("2"), patientMessage("1"));
+
+    processor.processBatch(messages, (message, processed) -> {});
+
+    verify(pipeline).process(argThat(bundle -> bundle.getEntry().size() == 2));
+    verify(pipeline).process(argThat(bundle -> bundle.getEntry().size() == 1));
+  }
+
+  @Test
+  void processBatch_withFailingRecord_throwsWithIndexOfThatRecord() {
+    var processor = new BaseKafkaProcessor(pipeline, 10) {};
+    when(pipeline.process(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              var containsPoisonedRecord =
+                  bundle.getEntry().stream()
+                      .anyMatch(e -> e.getResource().getIdElement().getIdPart().equals("2"));
+              if (containsPoisonedRecord) {
+                throw new IllegalStateException("poisoned");
+              }
+              return bundle;
+            });
+
+    var messages = List.of(patientMessage("1"), patientMessage("2"), patientMessage("3"));
+    var emitted = new ArrayList<Bundle>();
+
+    assertThatThrownBy(
+            () -> processor.processBatch(messages, (message, processed) -> emitted.add(processed)))
+        .isInstanceOfSatisfying(
+            BatchListenerFailedException.class, exc -> assertThat(exc.getIndex()).isEqualTo(1));
+
+    assertThat(emitted).hasSize(1);
+  }
+
+  @Test
+  void processBatch_withDeferredWrites_submitsAllBundlesBeforeWaiting() throws Exception {
+    var processor = new BaseKafkaProcessor(pipeline, 1) {};
+    when(pipeline.defersWrites()).thenReturn(true);
+    var saves = new ConcurrentLinkedQueue<Runnable>();
+    var submitted = new CountDownLatch(3);
+    when(pipeline.processDeferred(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              var saved = new CompletableFuture<Bundle>();
+              saves.add(() -> saved.complete(invocation.getArgument(0)));
+              submitted.countDown();
+              return saved;
+            });
+
+    var messages = List.of(patientMessage("1"), patientMessage("2"), patientMessage("3"));
+    var emitted = new ConcurrentLinkedQueue<Bundle>();
+    var batch =
+        CompletableFuture.runAsync(
+            () -> processor.processBatch(messages, (message, processed) -> emitted.add(processed)));
+
+    // all bundles of the batch are handed to the stores before the first one was saved
+    assertThat(submitted.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(emitted).isEmpty();
+
+    saves.forEach(Runnable::run);
+    batch.get(5, TimeUnit.SECONDS);
+
+    assertThat(emitted).hasSize(3);
+  }
+
+  @Test
+  void processBatch_withDeferredWriteFailing_reprocessesItAndAllFollowingBundles() {
+    var processor = new BaseKafkaProcessor(pipeline, 1) {};
+    when(pipeline.defersWrites()).thenReturn(true);
+    when(pipeline.processDeferred(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              if (bundle.getEntryFirstRep().getResource().getIdElement().getIdPart().equals("2")) {
+                return CompletableFuture.failedFuture(new IllegalStateException("unavailable"));
+              }
+              return CompletableFuture.completedFuture(bundle);
+            });
+    when(pipeline.process(any(Bundle.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    var messages = List.of(patientMessage("1"), patientMessage("2"), patientMessage("3"));
+    var emitted = new ArrayList<Bundle>();
+
+    processor.processBatch(messages, (message, processed) -> emitted.add(processed));
+
+    verify(pipeline, times(2)).process(any(Bundle.class));
+    assertThat(emitted).hasSize(3);
+  }
+
+  @Test
+  void processBatch_withLanes_keepsOrderOfRecordsWithTheSameKey() {
+    var processor = new BaseKafkaProcessor(pipeline, 1, 4) {};
+    when(pipeline.process(any(Bundle.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    var messages = new ArrayList<Message<?>>();
+    for (var i = 0; i < 20; i++) {
+      messages.add(patientMessage(String.valueOf(i % 5), "version-" + i));
+    }
+    var emitted = new ConcurrentLinkedQueue<Message<?>>();
+
+    processor.processBatch(messages, (message, processed) -> emitted.add(message));
+
+    assertThat(emitted).hasSize(20);
+    for (var id = 0; id < 5; id++) {
+      var key = "Patient/" + id;
+      var versions =
+          emitted.stream()
+              .filter(m -> key.equals(m.getHeaders().get(KafkaHeaders.RECEIVED_KEY)))
+              .map(m -> ((Patient) m.getPayload()).getMeta().getVersionId())
+              .toList();
+      var expected =
+          messages.stream()
+              .filter(m -> key.equals(m.getHeaders().get(KafkaHeaders.RECEIVED_KEY)))
+              .map(m -> ((Patient) m.getPayload()).getMeta().getVersionId())
+              .toList();
+      assertThat(versions).containsExactlyElementsOf(expected);
+    }
+  }
+
+  @Test
+  void processBatch_withLanes_throwsWithLowestFailedIndex() {
+    var processor = new BaseKafkaProcessor(pipeline, 10, 4) {};
+    when(pipeline.process(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              var poisonedIds = Set.of("3", "6");
+              var containsPoisonedRecord =
+                  bundle.getEntry().stream()
+                      .map(e -> e.getResource().getIdElement().getIdPart())
+                      .anyMatch(poisonedIds::contains);
+              if (containsPoisonedRecord) {
+                throw new IllegalStateException("poisoned");
+              }
+              return bundle;
+            });
+
+    var messages = new ArrayList<Message<?>>();
+    for (var i = 0; i < 8; i++) {
+      messages.add(patientMessage(String.valueOf(i)));
+    }
+
+    assertThatThrownBy(() -> processor.processBatch(messages, (message, processed) -> {}))
+        .isInstanceOfSatisfying(
+            BatchListenerFailedException.class, exc -> assertThat(exc.getIndex()).isEqualTo(3));
+  }
+
+  @Test
+  void processBatch_withLanesAndUnexpectedException_throwsWithIndexOfUnfinishedRecord() {
+    var retryTopics = mock(RetryTopicPublisher.class);
+    doThrow(new IllegalStateException("Failed to send to the retry topic"))
+        .when(retryTopics)
+        .publish(any(), anyInt(), any());
+    var processor = new BaseKafkaProcessor(pipeline, 1, 4, Optional.of(retryTopics)) {};
+    when(pipeline.process(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              if (bundle.getEntryFirstRep().getResource().getIdElement().getIdPart().equals("5")) {
+                throw new IllegalStateException("poisoned");
+              }
+              return bundle;
+            });
+
+    var messages = new ArrayList<Message<?>>();
+    for (var i = 0; i < 8; i++) {
+      messages.add(patientMessage(String.valueOf(i)));
+    }
+
+    assertThatThrownBy(() -> processor.processBatch(messages, (message, processed) -> {}))
+        .isInstanceOfSatisfying(
+            BatchListenerFailedException.class,
+            exc -> {
+              assertThat(exc.getIndex()).isEqualTo(5);
+              assertThat(exc).hasRootCauseMessage("Failed to send to the retry topic");
+            });
+  }
+
+  @Test
+  void processBatch_withRetryTopics_publishesFailingRecordAndContinues() {
+    var retryTopics = mock(RetryTopicPublisher.class);
+    var processor = new BaseKafkaProcessor(pipeline, 1, 1, Optional.of(retryTopics)) {};
+    when(pipeline.process(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              if (bundle.getEntryFirstRep().getResource().getIdElement().getIdPart().equals("2")) {
+                throw new IllegalStateException("poisoned");
+              }
+              return bundle;
+            });
+
+    var messages = List.of(patientMessage("1"), patientMessage("2"), patientMessage("3"));
+    var emitted = new ArrayList<Bundle>();
+
+    processor.processBatch(messages, (message, processed) -> emitted.add(processed));
+
+    assertThat(emitted).hasSize(2);
+    verify(retryTopics).publish(eq(messages.get(1)), eq(0), any(IllegalStateException.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void processBatch_withRetryTopics_defersNewerRecordsOfPendingKey() {
+    KafkaTemplate<String, Resource> kafkaTemplate = mock(KafkaTemplate.class);
+    when(kafkaTemplate.send(any(ProducerRecord.class)))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    var config =
+        new KafkaRetryTopicsConfig(true, List.of(Duration.ofSeconds(30)), 2, Duration.ofSeconds(1));
+    var publisher = new RetryTopicPublisher(kafkaTemplate, config, "fhir-gateway");
+    var processor = new BaseKafkaProcessor(pipeline, 10, 1, Optional.of(publisher)) {};
+    when(pipeline.process(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              if (bundle.getEntryFirstRep().getResource().getMeta().getVersionId().equals("1")) {
+                throw new IllegalStateException("unavailable");
+              }
+              return bundle;
+            });
+
+    var messages =
+        List.of(
+            withOffset(patientMessage("1", "1"), 10),
+            withOffset(patientMessage("2", "2"), 11),
+            withOffset(patientMessage("1", "2"), 12));
+    var emitted = new ArrayList<Message<?>>();
+
+    processor.processBatch(messages, (message, processed) -> emitted.add(message));
+
+    // the second version of Patient/1 must not be stored before the first one is retried
+    assertThat(emitted).containsExactly(messages.get(1));
+    var captor = org.mockito.ArgumentCaptor.forClass(ProducerRecord.class);
+    verify(kafkaTemplate, times(2)).send(captor.capture());
+    assertThat(captor.getAllValues())
+        .extracting(record -> ((Resource) record.value()).getMeta().getVersionId())
+        .containsExactly("1", "2");
+    assertThat(publisher.isPending(withOffset(patientMessage("1"), 13))).isTrue();
+  }
+
+  private static Message<?> withOffset(Message<?> message, long offset) {
+    return MessageBuilder.fromMessage(message)
+        .setHeader(KafkaHeaders.RECEIVED_PARTITION, 0)
+        .setHeader(KafkaHeaders.OFFSET, offset)
+        .build();
+  }
+
+  private static Message<?> patientMessage(String id, String versionId) {
+    var patient = new Patient();
+    patient.setId("Patient/" + id);
+    patient.getMeta().setVersionId(versionId);
+    return MessageBuilder.withPayload(patient)
+        .setHeader(KafkaHeaders.RECEIVED_TOPIC, "fhir.all")
+        .setHeader(KafkaHeaders.RECEIVED_KEY, "Patient/" + id)
+        .build();
+  }
+
+  private static Message<?> patientMessage(String id) {
+    var patient = new Patient();
+    patient.setId("Patient/" + id);
+    return MessageBuilder.withPayload(patient)
+        .setHeader(KafkaHeaders.RECEIVED_TOPIC, "fhir.all")
+        .setHeader(KafkaHeaders.RECEIVED_KEY, "Patient/" + id)
+        .build();
+  }
+
+  private static Message<?> nullMessage() {
+    return MessageBuilder.withPayload(KafkaNull.INSTANCE)
+        .setHeader(KafkaHeaders.RECEIVED_TOPIC, "fhir.all")
+        .build();
+  }
 }
@@ -0,0 +1,66 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import org.assertj.core.data.Offset;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.etl.fhirgateway.config.EmbeddedLoincConversionConfig;
+
+class EmbeddedLoincConverterTest {
+
+  private static final String HEADER =
+      "loinc,unit,target_loinc,target_unit,factor,offset,display\n";
+
+  @TempDir Path tempDir;
+
+  private static Quantity quantity(String value, String unit) {
+    return new Quantity().setValue(new BigDecimal(value)).setCode(unit);
+  }
+
+  @Test
+  void convert_withFactorAndOffset_appliesBoth() throws IOException {
+    var tableFile = tempDir.resolve("table.csv");
+    Files.writeString(
+        tableFile, HEADER + "8310-5,[degF],8310-5,Cel,0.5555555555555556,-17.77777777777778,\n");
+
+    var converter =
+        new EmbeddedLoincConverter(
+            new EmbeddedLoincConversionConfig(tableFile.toString(), Duration.ofHours(1)));
+
+    var converted = converter.convert("8310-5", quantity("212", "[degF]"));
+
+    assertThat(converted).isPresent();
+    assertThat(converted.get().getUnit()).isEqualTo("Cel");
+    assertThat(converted.get().getValue())
+        .isCloseTo(new BigDecimal("100"), Offset.offset(new BigDecimal("0.000001")));
+    assertThat(converter.convert("8310-5", quantity("212", "K"))).isEmpty();
+  }
+
+  @Test
+  void convert_afterTableFileChanged_usesReloadedTable() throws IOException {
+    var tableFile = tempDir.resolve("table.csv");
+    Files.writeString(tableFile, HEADER + "2345-7,mg/dL,14749-6,mmol/L,0.0555,,Glucose\n");
+
+    var converter =
+        new EmbeddedLoincConverter(
+            new EmbeddedLoincConversionConfig(tableFile.toString(), Duration.ZERO));
+
+    assertThat(converter.convert("2345-7", quantity("100", "mg/dL")).get().getValue())
+        .isEqualByComparingTo("5.55");
+
+    Files.writeString(tableFile, HEADER + "2345-7,mg/dL,14749-6,mmol/L,0.05551,,Glucose\n");
+    Files.setLastModifiedTime(tableFile, FileTime.from(Instant.now().plusSeconds(60)));
+
+    assertThat(converter.convert("2345-7", quantity("100", "mg/dL")).get().getValue())
+        .isEqualByComparingTo("5.551");
+  }
+}
@@ -0,0 +1,135 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+
+class EmbeddedPseudonymizerTest {
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+  private static EmbeddedPseudonymizer createShippedPseudonymizer() throws IOException {
+    return new EmbeddedPseudonymizer(
+        AnonymizationRuleSet.read(Path.of("deploy/anonymization.yaml"), FHIR_CONTEXT));
+  }
+
+  private static void addPutEntry(Bundle bundle, Resource resource, String url) {
+    bundle
+        .addEntry()
+        .setResource(resource)
+        .setFullUrl(url)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl(url);
+  }
+
+  @Test
+  void process_withShippedRules_hashesIdsAndReferencesConsistently() throws IOException {
+    var pseudonymizer = createShippedPseudonymizer();
+
+    var patient = new Patient();
+    patient.setId("123");
+    var observation = new Observation();
+    observation.setId("456");
+    observation.setSubject(new Reference("Patient/123"));
+
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    addPutEntry(bundle, patient, "Patient/123");
+    addPutEntry(bundle, observation, "Observation/456");
+
+    var result = pseudonymizer.process(bundle);
+
+    var hashedPatientId = pseudonymizer.hashIdPart("123");
+    assertThat(hashedPatientId).hasSize(64).isNotEqualTo("123");
+
+    var patientEntry = result.getEntry().get(0);
+    assertThat(patientEntry.getResource().getIdElement().getIdPart()).isEqualTo(hashedPatientId);
+    assertThat(patientEntry.getFullUrl()).isEqualTo("Patient/" + hashedPatientId);
+    assertThat(patientEntry.getRequest().getUrl()).isEqualTo("Patient/" + hashedPatientId);
+
+    var hashedObservation = (Observation) result.getEntry().get(1).getResource();
+    assertThat(hashedObservation.getSubject().getReference())
+        .isEqualTo("Patient/" + hashedPatientId);
+  }
+
+  @Test
+  void hashIdPart_withShippedKey_matchesKnownHmacSha256() throws IOException {
+    // HMAC-SHA256 keyed with 'miracum' computed independently of this implementation. These pin
+    // the embedded pseudonyms, they are not taken from the de-identification service.
+    var hashed123 = "2fd1b893e91245e053e4974e4075bba1d1c07b4ce8f9ff57309feda10bcd17f2";
+    var hashedUuid = "60f034ebebf430ba28c3a560ae180984d4c6876cfd342a0aa3f014327589fc2e";
+    var pseudonymizer = createShippedPseudonymizer();
+
+    assertThat(pseudonymizer.hashIdPart("123")).isEqualTo(hashed123);
+    assertThat(pseudonymizer.hashIdPart("Patient/123")).isEqualTo("Patient/" + hashed123);
+    assertThat(pseudonymizer.hashIdPart("https://fhir.example.org/fhir/Patient/123/_history/2"))
+        .isEqualTo("https://fhir.example.org/fhir/Patient/" + hashed123 + "/_history/2");
+    assertThat(pseudonymizer.hashIdPart("urn:uuid:6f8c1d2e-3a4b-4c5d-8e9f-0a1b2c3d4e5f"))
+        .isEqualTo("urn:uuid:" + hashedUuid);
+  }
+
+  @Test
+  void process_withShippedRules_leavesOriginalBundleUntouched() throws IOException {
+    var pseudonymizer = createShippedPseudonymizer();
+    var patient = new Patient();
+    patient.setId("123");
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    addPutEntry(bundle, patient, "Patient/123");
+
+    pseudonymizer.process(bundle);
+
+    assertThat(bundle.getEntry().getFirst().getFullUrl()).isEqualTo("Patient/123");
+    assertThat(patient.getIdElement().getIdPart()).isEqualTo("123");
+  }
+
+  @Test
+  void process_withRedactAndDateShiftRules_appliesFirstMatchingRuleOnly() {
+    var yaml =
+        """
+        fhirPathRules:
+          - path: Patient.deceased
+            method: keep
+          - path: Patient.name
+            method: redact
+          - path: nodesByType('date')
+            method: dateShift
+          - path: Patient.deceased
+            method: dateShift
+        parameters:
+          dateShiftKey: secret
+        """;
+    var pseudonymizer = new EmbeddedPseudonymizer(AnonymizationRuleSet.parse(yaml, FHIR_CONTEXT));
+
+    var patient = new Patient();
+    patient.setId("123");
+    patient.addName().setFamily("Doe").addGiven("Jane");
+    patient.setBirthDateElement(new DateType("2000-06-15"));
+    patient.setDeceased(new DateTimeType("2020-01-01"));
+    var bundle = new Bundle().setType(BundleType.COLLECTION);
+    bundle.addEntry().setResource(patient);
+
+    var result = (Patient) pseudonymizer.process(bundle).getEntry().getFirst().getResource();
+
+    assertThat(result.getNameFirstRep().getFamily()).isNull();
+    assertThat(result.getNameFirstRep().getGiven()).allMatch(given -> !given.hasValue());
+
+    var shiftedDays =
+        (result.getBirthDate().getTime() - patient.getBirthDate().getTime()) / 86_400_000L;
+    assertThat(shiftedDays).isBetween(-51L, 51L);
+    assertThat(result.getBirthDateElement().getValueAsString()).hasSize("2000-06-15".length());
+
+    assertThat(result.getDeceasedDateTimeType().getValueAsString()).isEqualTo("2020-01-01");
+  }
+}
@@ -0,0 +1,93 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.PseudonymizerCoalescingConfig;
+import org.springframework.retry.support.RetryTemplate;
+
+class FhirPseudonymizerTest {
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+  private static Bundle bundle(String id) {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.setId(id);
+    return bundle;
+  }
+
+  @Test
+  void process_withOneCoalescedBundleFailing_failsOnlyThatBundle() throws Exception {
+    // both bundles are flushed together once the second one arrives
+    var config = new PseudonymizerCoalescingConfig(true, 2, Duration.ofSeconds(10), 10, 1);
+    var pseudonymizer =
+        new FhirPseudonymizer(
+            FHIR_CONTEXT,
+            "http://pseudonymizer/fhir",
+            RetryTemplate.builder().maxAttempts(1).build(),
+            config) {
+          @Override
+          Bundle deIdentify(Bundle bundle) {
+            if (bundle.getType() == BundleType.COLLECTION || bundle.getId().equals("failing")) {
+              throw new IllegalStateException("Rejected " + bundle.getId());
+            }
+            return bundle(bundle.getId() + "-deidentified");
+          }
+        };
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var succeeding =
+          CompletableFuture.supplyAsync(() -> pseudonymizer.process(bundle("ok")), executor);
+      var failing =
+          CompletableFuture.supplyAsync(() -> pseudonymizer.process(bundle("failing")), executor);
+
+      assertThat(succeeding.get(5, TimeUnit.SECONDS).getId()).isEqualTo("ok-deidentified");
+      assertThat(failing)
+          .failsWithin(Duration.ofSeconds(5))
+          .withThrowableThat()
+          .havingRootCause()
+          .isInstanceOf(IllegalStateException.class)
+          .withMessage("Rejected failing");
+    } finally {
+      pseudonymizer.close();
+    }
+  }
+
+  @Test
+  void process_withCoalescedCollectionFailing_fallsBackToEachBundle() throws Exception {
+    var config = new PseudonymizerCoalescingConfig(true, 2, Duration.ofSeconds(10), 10, 1);
+    var pseudonymizer =
+        new FhirPseudonymizer(
+            FHIR_CONTEXT,
+            "http://pseudonymizer/fhir",
+            RetryTemplate.builder().maxAttempts(1).build(),
+            config) {
+          @Override
+          Bundle deIdentify(Bundle bundle) {
+            if (bundle.getType() == BundleType.COLLECTION) {
+              throw new IllegalStateException("Too large");
+            }
+            return bundle(bundle.getId() + "-deidentified");
+          }
+        };
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var first =
+          CompletableFuture.supplyAsync(() -> pseudonymizer.process(bundle("first")), executor);
+      var second =
+          CompletableFuture.supplyAsync(() -> pseudonymizer.process(bundle("second")), executor);
+
+      assertThat(first.get(5, TimeUnit.SECONDS).getId()).isEqualTo("first-deidentified");
+      assertThat(second.get(5, TimeUnit.SECONDS).getId()).isEqualTo("second-deidentified");
+    } finally {
+      pseudonymizer.close();
+    }
+  }
+}
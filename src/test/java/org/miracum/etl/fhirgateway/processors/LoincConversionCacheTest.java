@@ -0,0 +1,94 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.etl.fhirgateway.config.LoincConversionCacheConfig;
+import org.miracum.etl.fhirgateway.models.loinc.LoincConversion;
+
+class LoincConversionCacheTest {
+
+  @TempDir Path tempDir;
+
+  private static LoincConversionCacheConfig config(String warmupFile) {
+    return new LoincConversionCacheConfig(true, 100, Duration.ofHours(1), warmupFile);
+  }
+
+  private static Quantity quantity(String value, String unit) {
+    return new Quantity().setValue(new BigDecimal(value)).setCode(unit).setUnit(unit);
+  }
+
+  private static LoincConversion glucose(String value) {
+    return new LoincConversion()
+        .setLoinc("14749-6")
+        .setUnit("mmol/L")
+        .setValue(new BigDecimal(value))
+        .setDisplay("Glucose");
+  }
+
+  @Test
+  void convert_afterPutsAgreeingOnFactor_appliesDerivedFactor() throws IOException {
+    var cache = new LoincConversionCache(config(""));
+
+    cache.put("2345-7", quantity("100", "mg/dL"), glucose("5.55"));
+    assertThat(cache.convert("2345-7", quantity("200", "mg/dL"))).isEmpty();
+    cache.put("2345-7", quantity("20", "mg/dL"), glucose("1.11"));
+
+    var converted = cache.convert("2345-7", quantity("200", "mg/dL"));
+
+    assertThat(converted).isPresent();
+    assertThat(converted.get().getLoinc()).isEqualTo("14749-6");
+    assertThat(converted.get().getUnit()).isEqualTo("mmol/L");
+    assertThat(converted.get().getDisplay()).isEqualTo("Glucose");
+    assertThat(converted.get().getValue()).isEqualByComparingTo("11.1");
+  }
+
+  @Test
+  void put_withRoundedResults_isNotCached() throws IOException {
+    var cache = new LoincConversionCache(config(""));
+
+    cache.put("2345-7", quantity("100", "mg/dL"), glucose("5.55"));
+    cache.put("2345-7", quantity("100", "mg/dL"), glucose("5.55"));
+    cache.put("2345-7", quantity("101", "mg/dL"), glucose("5.61"));
+
+    assertThat(cache.convert("2345-7", quantity("200", "mg/dL"))).isEmpty();
+  }
+
+  @Test
+  void put_withOffsetBasedUnit_isNotCached() throws IOException {
+    var cache = new LoincConversionCache(config(""));
+    var response =
+        new LoincConversion().setLoinc("8310-5").setUnit("Cel").setValue(new BigDecimal("37"));
+
+    cache.put("8310-5", quantity("98.6", "[degF]"), response);
+
+    assertThat(cache.convert("8310-5", quantity("98.6", "[degF]"))).isEmpty();
+  }
+
+  @Test
+  void constructor_withWarmupFile_loadsConversions() throws IOException {
+    var warmupFile = tempDir.resolve("conversions.csv");
+    Files.writeString(
+        warmupFile,
+        """
+        loinc,unit,target_loinc,target_unit,factor,display
+        # comment lines are ignored
+        2345-7,mg/dL,14749-6,mmol/L,0.0555,"Glucose [Moles/volume] in Serum, Plasma"
+        """);
+
+    var cache = new LoincConversionCache(config(warmupFile.toString()));
+
+    var converted = cache.convert("2345-7", quantity("100", "mg/dL"));
+    assertThat(converted).isPresent();
+    assertThat(converted.get().getValue()).isEqualByComparingTo("5.55");
+    assertThat(converted.get().getDisplay()).isEqualTo("Glucose [Moles/volume] in Serum, Plasma");
+    assertThat(cache.convert("2345-7", quantity("100", "mmol/L"))).isEmpty();
+  }
+}
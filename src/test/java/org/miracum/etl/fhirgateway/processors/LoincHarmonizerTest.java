@@ -0,0 +1,187 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.miracum.etl.fhirgateway.FhirSystemsConfig;
+import org.miracum.etl.fhirgateway.config.ParallelHarmonizationConfig;
+import org.miracum.etl.fhirgateway.models.loinc.LoincConversion;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+
+@ExtendWith(MockitoExtension.class)
+class LoincHarmonizerTest {
+
+  private static final String LOINC_SYSTEM = "http://loinc.org";
+
+  @Mock private RestTemplate restTemplate;
+
+  private LoincHarmonizer harmonizer;
+
+  @BeforeEach
+  void setUp() {
+    harmonizer = createHarmonizer(true, new ParallelHarmonizationConfig(false, 1, 1));
+  }
+
+  private LoincHarmonizer createHarmonizer(
+      boolean isBulkEnabled, ParallelHarmonizationConfig parallelConfig) {
+    return new LoincHarmonizer(
+        restTemplate,
+        URI.create("http://loinc-converter/api/v1"),
+        new FhirSystemsConfig().setLoinc(LOINC_SYSTEM),
+        false,
+        isBulkEnabled,
+        RetryTemplate.builder().maxAttempts(1).build(),
+        Optional.empty(),
+        Optional.empty(),
+        parallelConfig);
+  }
+
+  private static Bundle bundleWithObservations(int count) {
+    var bundle = new Bundle();
+    for (var i = 0; i < count; i++) {
+      var observation = new Observation();
+      observation.setId("Observation/" + i);
+      observation.getCode().addCoding().setSystem(LOINC_SYSTEM).setCode("2345-7");
+      observation.setValue(
+          new Quantity().setValue(new BigDecimal("100")).setCode("mg/dL").setUnit("mg/dL"));
+      observation
+          .addReferenceRange()
+          .setLow(new Quantity().setValue(new BigDecimal("70")).setCode("mg/dL"));
+      bundle.addEntry().setResource(observation);
+    }
+    return bundle;
+  }
+
+  private static LoincConversion converted(String id, String value) {
+    return new LoincConversion()
+        .setId(id)
+        .setLoinc("14749-6")
+        .setUnit("mmol/L")
+        .setValue(new BigDecimal(value));
+  }
+
+  @Test
+  void process_withBundle_convertsAllQuantitiesUsingSingleRequest() {
+    when(restTemplate.postForObject(anyString(), any(), eq(LoincConversion[].class)))
+        .thenReturn(
+            new LoincConversion[] {
+              converted("0", "5.55"), converted("1", "3.89"), converted("2", "5.55"),
+            });
+
+    var bundle = bundleWithObservations(2);
+
+    harmonizer.process(bundle);
+
+    verify(restTemplate, times(1)).postForObject(anyString(), any(), eq(LoincConversion[].class));
+
+    var first = (Observation) bundle.getEntry().get(0).getResource();
+    assertThat(first.getValueQuantity().getValue()).isEqualByComparingTo("5.55");
+    assertThat(first.getValueQuantity().getCode()).isEqualTo("mmol/L");
+    assertThat(first.getReferenceRangeFirstRep().getLow().getValue()).isEqualByComparingTo("3.89");
+    assertThat(first.getCode().getCodingFirstRep().getCode()).isEqualTo("14749-6");
+
+    // the second observation's reference range wasn't part of the response, so it stays as-is
+    var second = (Observation) bundle.getEntry().get(1).getResource();
+    assertThat(second.getValueQuantity().getValue()).isEqualByComparingTo("5.55");
+    assertThat(second.getReferenceRangeFirstRep().getLow().getValue()).isEqualByComparingTo("70");
+  }
+
+  @Test
+  void process_withBulkNotSupported_fallsBackToSingleRequests() {
+    when(restTemplate.postForObject(anyString(), any(), eq(LoincConversion[].class)))
+        .thenThrow(new HttpClientErrorException(HttpStatus.METHOD_NOT_ALLOWED));
+    when(restTemplate.getForObject(anyString(), eq(LoincConversion.class), anyMap()))
+        .thenReturn(converted(null, "5.55"));
+
+    harmonizer.process(bundleWithObservations(2));
+    harmonizer.process(bundleWithObservations(2));
+
+    // bulk conversion is only attempted once
+    verify(restTemplate, times(1)).postForObject(anyString(), any(), eq(LoincConversion[].class));
+    verify(restTemplate, times(8))
+        .getForObject(anyString(), eq(LoincConversion.class), anyMap());
+  }
+
+  @Test
+  void process_withBulkRequestRejected_fallsBackToSingleRequestsForThatBundle() {
+    when(restTemplate.postForObject(anyString(), any(), eq(LoincConversion[].class)))
+        .thenThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+    when(restTemplate.getForObject(anyString(), eq(LoincConversion.class), anyMap()))
+        .thenReturn(converted(null, "5.55"));
+
+    var bundle = bundleWithObservations(2);
+    harmonizer.process(bundle);
+    harmonizer.process(bundleWithObservations(2));
+
+    // bulk conversion is still attempted for the next bundle
+    verify(restTemplate, times(2)).postForObject(anyString(), any(), eq(LoincConversion[].class));
+    verify(restTemplate, times(8))
+        .getForObject(anyString(), eq(LoincConversion.class), anyMap());
+    var first = (Observation) bundle.getEntry().get(0).getResource();
+    assertThat(first.getValueQuantity().getValue()).isEqualByComparingTo("5.55");
+  }
+
+  @Test
+  void process_withBulkRequestFailingOnServer_throwsWithoutSingleRequests() {
+    when(restTemplate.postForObject(anyString(), any(), eq(LoincConversion[].class)))
+        .thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+
+    assertThatThrownBy(() -> harmonizer.process(bundleWithObservations(2)))
+        .isInstanceOf(HttpServerErrorException.class);
+
+    verify(restTemplate, never()).getForObject(anyString(), eq(LoincConversion.class), anyMap());
+  }
+
+  @Test
+  void process_withSingleObservation_usesSingleRequest() {
+    when(restTemplate.getForObject(anyString(), eq(LoincConversion.class), anyMap()))
+        .thenReturn(converted(null, "5.55"));
+
+    harmonizer.process(bundleWithObservations(1));
+
+    verify(restTemplate, times(2))
+        .getForObject(anyString(), eq(LoincConversion.class), anyMap());
+  }
+
+  @Test
+  void process_inParallel_preservesEntryOrder() {
+    var parallelHarmonizer = createHarmonizer(false, new ParallelHarmonizationConfig(true, 4, 8));
+    when(restTemplate.getForObject(anyString(), eq(LoincConversion.class), anyMap()))
+        .thenReturn(converted(null, "5.55"));
+
+    var bundle = bundleWithObservations(10);
+
+    parallelHarmonizer.process(bundle);
+
+    verify(restTemplate, times(20))
+        .getForObject(anyString(), eq(LoincConversion.class), anyMap());
+    for (var i = 0; i < 10; i++) {
+      var observation = (Observation) bundle.getEntry().get(i).getResource();
+      assertThat(observation.getIdElement().getIdPart()).isEqualTo(String.valueOf(i));
+      assertThat(observation.getValueQuantity().getCode()).isEqualTo("mmol/L");
+    }
+  }
+}
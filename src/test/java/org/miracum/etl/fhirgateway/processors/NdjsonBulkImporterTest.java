@@ -0,0 +1,192 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.Async;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.BulkImport;
+import org.miracum.etl.fhirgateway.config.FhirApiConfig.ReturnPreference;
+import org.springframework.util.unit.DataSize;
+
+class NdjsonBulkImporterTest {
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  private final ResourcePipeline pipeline = mock(ResourcePipeline.class);
+  private final ConcurrentLinkedQueue<Bundle> processed = new ConcurrentLinkedQueue<>();
+
+  @BeforeEach
+  void setUp() {
+    when(pipeline.process(any()))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              processed.add(bundle);
+              return bundle;
+            });
+  }
+
+  private static NdjsonBulkImporter createImporter(
+      ResourcePipeline pipeline, int bundleSize, int maxConcurrency) {
+    var config =
+        new FhirApiConfig(
+            DataSize.ofMegabytes(1),
+            new BulkImport(bundleSize, maxConcurrency, 10),
+            new Async(false, 1, 1, Duration.ofMinutes(1), 1),
+            ReturnPreference.REPRESENTATION);
+    return new NdjsonBulkImporter(FHIR_CONTEXT, pipeline, Optional.empty(), config);
+  }
+
+  private static String patient(String id) {
+    return "{\"resourceType\":\"Patient\",\"id\":\"" + id + "\"}";
+  }
+
+  @Test
+  void importNdjson_withMoreResourcesThanBundleSize_shouldSplitIntoTransactionBundles()
+      throws Exception {
+    var ndjson = String.join("\n", patient("1"), patient("2"), "", patient("3")) + "\n";
+
+    var outcome = createImporter(pipeline, 2, 1).importNdjson(new StringReader(ndjson));
+
+    assertThat(processed).hasSize(2);
+    assertThat(processed)
+        .allSatisfy(bundle -> assertThat(bundle.getType()).isEqualTo(BundleType.TRANSACTION));
+    assertThat(processed.stream().mapToInt(bundle -> bundle.getEntry().size()).sum()).isEqualTo(3);
+    assertThat(processed.peek().getEntryFirstRep().getRequest().getUrl()).isEqualTo("Patient/1");
+    assertThat(outcome.getIssue()).hasSize(1);
+    assertThat(outcome.getIssueFirstRep().getSeverity()).isEqualTo(IssueSeverity.INFORMATION);
+    assertThat(outcome.getIssueFirstRep().getDiagnostics()).contains("imported 3", "failed 0");
+  }
+
+  @Test
+  void importNdjson_withSameResourceTwice_shouldNotPutBothIntoOneBundle() throws Exception {
+    var ndjson = String.join("\n", patient("1"), patient("1"));
+
+    createImporter(pipeline, 10, 1).importNdjson(new StringReader(ndjson));
+
+    assertThat(processed).hasSize(2);
+  }
+
+  @Test
+  void importNdjson_withInvalidLines_shouldReportThemByLineNumber() throws Exception {
+    var ndjson = String.join("\n", patient("1"), "{not json", "{\"resourceType\":\"Patient\"}");
+
+    var outcome = createImporter(pipeline, 10, 1).importNdjson(new StringReader(ndjson));
+
+    assertThat(processed).hasSize(1);
+    assertThat(outcome.getIssue()).hasSize(3);
+    assertThat(outcome.getIssue().get(1).getSeverity()).isEqualTo(IssueSeverity.ERROR);
+    assertThat(outcome.getIssue().get(1).getDiagnostics()).startsWith("Line 2: ");
+    assertThat(outcome.getIssue().get(2).getDiagnostics()).startsWith("Line 3: ");
+  }
+
+  @Test
+  void importNdjson_withFailingBundle_shouldReportAllOfItsLines() throws Exception {
+    var failingPipeline = mock(ResourcePipeline.class);
+    when(failingPipeline.process(any())).thenThrow(new IllegalStateException("store failed"));
+    var ndjson = String.join("\n", patient("1"), patient("2"));
+
+    var outcome = createImporter(failingPipeline, 10, 1).importNdjson(new StringReader(ndjson));
+
+    assertThat(outcome.getIssueFirstRep().getSeverity()).isEqualTo(IssueSeverity.WARNING);
+    assertThat(outcome.getIssue().subList(1, 3))
+        .extracting(issue -> issue.getDiagnostics())
+        .containsExactly("Line 1: store failed", "Line 2: store failed");
+  }
+
+  @Test
+  void importNdjson_shouldProcessAtMostMaxConcurrencyBundlesAtOnce() throws Exception {
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var slowPipeline = mock(ResourcePipeline.class);
+    when(slowPipeline.process(any()))
+        .thenAnswer(
+            invocation -> {
+              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+              Thread.sleep(20);
+              running.decrementAndGet();
+              return invocation.getArgument(0);
+            });
+    var lines = List.of(patient("1"), patient("2"), patient("3"), patient("4"), patient("5"));
+
+    var outcome =
+        createImporter(slowPipeline, 1, 2).importNdjson(new StringReader(String.join("\n", lines)));
+
+    assertThat(maxRunning.get()).isLessThanOrEqualTo(2);
+    assertThat(outcome.getIssueFirstRep().getDiagnostics()).contains("imported 5");
+  }
+
+  @Test
+  void importNdjson_withSameResourceInConcurrentBundles_shouldProcessThemInLineOrder()
+      throws Exception {
+    var completed = new ConcurrentLinkedQueue<String>();
+    var slowPipeline = mock(ResourcePipeline.class);
+    when(slowPipeline.process(any()))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              var patient = (Patient) bundle.getEntryFirstRep().getResource();
+              // the first version would finish last if both were processed at the same time
+              if (patient.getGender() == AdministrativeGender.MALE) {
+                Thread.sleep(100);
+              }
+              completed.add(patient.getIdPart() + ":" + patient.getGender().toCode());
+              return bundle;
+            });
+    var lines =
+        List.of(
+            "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"male\"}",
+            "{\"resourceType\":\"Patient\",\"id\":\"2\",\"gender\":\"other\"}",
+            "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"female\"}");
+
+    createImporter(slowPipeline, 1, 4).importNdjson(new StringReader(String.join("\n", lines)));
+
+    assertThat(completed).containsSubsequence("1:male", "1:female");
+  }
+
+  @Test
+  void importNdjson_withBundleChangingEarlierResourceLine_shouldProcessThemInLineOrder()
+      throws Exception {
+    var completed = new ConcurrentLinkedQueue<String>();
+    var trackingPipeline = mock(ResourcePipeline.class);
+    when(trackingPipeline.process(any()))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              for (var entry : bundle.getEntry()) {
+                var patient = (Patient) entry.getResource();
+                completed.add(patient.getIdPart() + ":" + patient.getGender().toCode());
+              }
+              return bundle;
+            });
+    var lines =
+        List.of(
+            "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"male\"}",
+            "{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[{\"resource\":"
+                + "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"female\"},"
+                + "\"request\":{\"method\":\"PUT\",\"url\":\"Patient/1\"}}]}");
+
+    // the first line would otherwise wait in the unsubmitted bundle until the end of the input
+    createImporter(trackingPipeline, 10, 4)
+        .importNdjson(new StringReader(String.join("\n", lines)));
+
+    assertThat(completed).containsExactly("1:male", "1:female");
+  }
+}
@@ -0,0 +1,67 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.stores.RawResource;
+
+class RawResourceScannerTest {
+
+  private static byte[] bytes(String json) {
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void scan_withSingleResource_shouldKeepJsonAsIs() {
+    var json = "{\"id\":\"1\",\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Müller\"}]}";
+
+    var resources = RawResourceScanner.scan(bytes(json));
+
+    assertThat(resources).containsExactly(new RawResource("Patient", "1", HTTPVerb.PUT, json));
+  }
+
+  @Test
+  void scan_withNonBundleEntryElement_shouldNotTreatAsBundle() {
+    var json =
+        "{\"resourceType\":\"List\",\"id\":\"l\",\"entry\":[{\"item\":{\"reference\":\"a\"}}]}";
+
+    var resources = RawResourceScanner.scan(bytes(json));
+
+    assertThat(resources).containsExactly(new RawResource("List", "l", HTTPVerb.PUT, json));
+  }
+
+  @Test
+  void scan_withBundle_shouldReturnEntryResourcesAndDeletes() {
+    var patient =
+        "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"tag\":[{\"code\":\"ä\"}]}}";
+    var json =
+        "{\"entry\":[{\"fullUrl\":\"Patient/1\",\"resource\":"
+            + patient
+            + ",\"request\":{\"method\":\"PUT\",\"url\":\"Patient/1\"}},"
+            + "{\"request\":{\"url\":\"Observation/2\",\"method\":\"DELETE\"}}],"
+            + "\"resourceType\":\"Bundle\",\"type\":\"transaction\"}";
+
+    var resources = RawResourceScanner.scan(bytes(json));
+
+    assertThat(resources)
+        .containsExactly(
+            new RawResource("Patient", "1", HTTPVerb.PUT, patient),
+            new RawResource("Observation", "2", HTTPVerb.DELETE, null));
+  }
+
+  @Test
+  void scan_withoutId_shouldThrow() {
+    assertThatThrownBy(() -> RawResourceScanner.scan(bytes("{\"resourceType\":\"Patient\"}")))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("id");
+  }
+
+  @Test
+  void scan_withInvalidJson_shouldThrow() {
+    assertThatThrownBy(() -> RawResourceScanner.scan(bytes("{\"resourceType\":")))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
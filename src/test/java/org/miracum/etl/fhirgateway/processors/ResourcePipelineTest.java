@@ -0,0 +1,296 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.ConcurrentStoresConfig;
+import org.miracum.etl.fhirgateway.config.PipelineConfig;
+import org.miracum.etl.fhirgateway.config.PipelineConfig.Pipelining;
+import org.miracum.etl.fhirgateway.stores.FhirServerResourceRepository;
+import org.miracum.etl.fhirgateway.stores.PostgresFhirResourceRepository;
+
+class ResourcePipelineTest {
+
+  private static final List<String> STAGE_ORDER = List.of("pseudonymizer", "loinc-harmonizer");
+
+  private final FhirServerResourceRepository fhirStore = mock(FhirServerResourceRepository.class);
+  private final PostgresFhirResourceRepository psqlStore =
+      mock(PostgresFhirResourceRepository.class);
+
+  private ResourcePipeline createPipeline(boolean concurrent, Duration timeout) {
+    return new ResourcePipeline(
+        Optional.of(fhirStore),
+        Optional.of(psqlStore),
+        List.of(),
+        new PipelineConfig(STAGE_ORDER, new Pipelining(false, 1, 1)),
+        new ConcurrentStoresConfig(concurrent, timeout));
+  }
+
+  private ResourcePipeline createPipeline(List<ResourceProcessor> processors) {
+    return new ResourcePipeline(
+        Optional.empty(),
+        Optional.of(psqlStore),
+        processors,
+        new PipelineConfig(STAGE_ORDER, new Pipelining(false, 1, 1)),
+        new ConcurrentStoresConfig(false, Duration.ofSeconds(10)));
+  }
+
+  private ResourcePipeline createPipelinedPipeline(List<ResourceProcessor> processors) {
+    return new ResourcePipeline(
+        Optional.empty(),
+        Optional.of(psqlStore),
+        processors,
+        new PipelineConfig(STAGE_ORDER, new Pipelining(true, 2, 4)),
+        new ConcurrentStoresConfig(false, Duration.ofSeconds(10)));
+  }
+
+  private static ResourceProcessor createStage(
+      String name, Set<ResourceType> resourceTypes, List<String> invocations) {
+    return new ResourceProcessor() {
+      @Override
+      public String name() {
+        return name;
+      }
+
+      @Override
+      public Set<ResourceType> resourceTypes() {
+        return resourceTypes;
+      }
+
+      @Override
+      public Bundle process(Bundle bundle) {
+        invocations.add(name);
+        return bundle;
+      }
+    };
+  }
+
+  private static Bundle createBundle() {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.setId("bundle-1");
+    bundle.addEntry().setResource(new Patient().setId("1"));
+    return bundle;
+  }
+
+  @Test
+  void process_withConcurrentStores_writesToAllStoresAtTheSameTime() {
+    // each store only returns once the other one has started as well
+    var started = new CountDownLatch(2);
+    doAnswer(
+            invocation -> {
+              started.countDown();
+              assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+              return null;
+            })
+        .when(fhirStore)
+        .save(any());
+    doAnswer(
+            invocation -> {
+              started.countDown();
+              assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+              return null;
+            })
+        .when(psqlStore)
+        .save(any());
+
+    var pipeline = createPipeline(true, Duration.ofSeconds(10));
+    var bundle = createBundle();
+
+    pipeline.process(bundle);
+
+    verify(fhirStore).save(bundle);
+    verify(psqlStore).save(bundle);
+  }
+
+  @Test
+  void process_withConcurrentStoresAndOneFailing_waitsForAllAndRethrows() {
+    doThrow(new IllegalStateException("fhir server unavailable")).when(fhirStore).save(any());
+
+    var pipeline = createPipeline(true, Duration.ofSeconds(10));
+    var bundle = createBundle();
+
+    assertThatThrownBy(() -> pipeline.process(bundle))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("fhir server unavailable");
+    verify(psqlStore).save(bundle);
+  }
+
+  @Test
+  void process_withConcurrentStoresExceedingTimeout_fails() {
+    doAnswer(
+            invocation -> {
+              Thread.sleep(Duration.ofSeconds(5));
+              return null;
+            })
+        .when(psqlStore)
+        .save(any());
+
+    var pipeline = createPipeline(true, Duration.ofMillis(50));
+
+    assertThatThrownBy(() -> pipeline.process(createBundle()))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("postgres");
+  }
+
+  @Test
+  void process_withConcurrentStoresWithoutTimeout_waitsForSlowStore() {
+    doAnswer(
+            invocation -> {
+              Thread.sleep(Duration.ofMillis(200));
+              return null;
+            })
+        .when(psqlStore)
+        .save(any());
+
+    var pipeline = createPipeline(true, Duration.ZERO);
+    var bundle = createBundle();
+
+    pipeline.process(bundle);
+
+    verify(fhirStore).save(bundle);
+    verify(psqlStore).save(bundle);
+  }
+
+  @Test
+  void process_withStages_runsThemInConfiguredOrder() {
+    var invocations = new ArrayList<String>();
+    var pipeline =
+        createPipeline(
+            List.of(
+                createStage("loinc-harmonizer", Set.of(), invocations),
+                createStage("pseudonymizer", Set.of(), invocations)));
+
+    pipeline.process(createBundle());
+
+    assertThat(invocations).containsExactly("pseudonymizer", "loinc-harmonizer");
+  }
+
+  @Test
+  void process_withoutMatchingEntries_skipsStage() {
+    var invocations = new ArrayList<String>();
+    var pipeline =
+        createPipeline(
+            List.of(
+                createStage("pseudonymizer", Set.of(), invocations),
+                createStage("loinc-harmonizer", Set.of(ResourceType.Observation), invocations)));
+
+    pipeline.process(createBundle());
+
+    assertThat(invocations).containsExactly("pseudonymizer");
+  }
+
+  @Test
+  void pipelinedRun_savesBundlesInSubmissionOrder() throws Exception {
+    // the first bundle takes longest to pseudonymize, so it finishes that stage last
+    var stage =
+        new ResourceProcessor() {
+          @Override
+          public String name() {
+            return "pseudonymizer";
+          }
+
+          @Override
+          public Bundle process(Bundle bundle) {
+            try {
+              Thread.sleep("bundle-0".equals(bundle.getId()) ? 200 : 10);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return bundle;
+          }
+        };
+    var saved = new ConcurrentLinkedQueue<String>();
+    doAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              saved.add(bundle.getId());
+              return null;
+            })
+        .when(psqlStore)
+        .save(any());
+
+    var pipeline = createPipelinedPipeline(List.of(stage));
+    try {
+      var run = pipeline.newPipelinedRun();
+      var futures = new ArrayList<CompletableFuture<Bundle>>();
+      for (var i = 0; i < 3; i++) {
+        var bundle = createBundle();
+        bundle.setId("bundle-" + i);
+        futures.add(run.submit(bundle));
+      }
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+      assertThat(saved).containsExactly("bundle-0", "bundle-1", "bundle-2");
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  @Test
+  void pipelinedRun_withFailingBundle_doesNotSaveFollowingOnes() throws Exception {
+    var stage =
+        new ResourceProcessor() {
+          @Override
+          public String name() {
+            return "pseudonymizer";
+          }
+
+          @Override
+          public Bundle process(Bundle bundle) {
+            if ("bundle-1".equals(bundle.getId())) {
+              throw new IllegalStateException("pseudonymizer unavailable");
+            }
+            return bundle;
+          }
+        };
+
+    var pipeline = createPipelinedPipeline(List.of(stage));
+    try {
+      var run = pipeline.newPipelinedRun();
+      var futures = new ArrayList<CompletableFuture<Bundle>>();
+      for (var i = 0; i < 3; i++) {
+        var bundle = createBundle();
+        bundle.setId("bundle-" + i);
+        futures.add(run.submit(bundle));
+      }
+
+      assertThat(futures.get(0).get(5, TimeUnit.SECONDS).getId()).isEqualTo("bundle-0");
+      assertThatThrownBy(() -> futures.get(1).get(5, TimeUnit.SECONDS))
+          .hasRootCauseMessage("pseudonymizer unavailable");
+      assertThatThrownBy(() -> futures.get(2).get(5, TimeUnit.SECONDS))
+          .hasRootCauseInstanceOf(IllegalStateException.class);
+      verify(psqlStore, times(1)).save(any());
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  @Test
+  void constructor_withStageMissingFromStageOrder_fails() {
+    var stages = List.of(createStage("unknown", Set.of(), new ArrayList<>()));
+
+    assertThatThrownBy(() -> createPipeline(stages))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("unknown");
+  }
+}
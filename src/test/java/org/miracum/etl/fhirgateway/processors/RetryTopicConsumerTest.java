@@ -0,0 +1,111 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.KafkaMessageListenerContainer;
+import org.springframework.util.backoff.BackOffExecution;
+
+class RetryTopicConsumerTest {
+
+  private static final String RETRY_TOPIC = "fhir.all.retry-0";
+
+  private final BaseKafkaProcessor processor = mock(BaseKafkaProcessor.class);
+  private final RetryTopicPublisher publisher = mock(RetryTopicPublisher.class);
+
+  @SuppressWarnings("unchecked")
+  private RetryTopicConsumer createConsumer(int concurrency) {
+    var config =
+        new KafkaRetryTopicsConfig(true, List.of(Duration.ofSeconds(30)), 2, Duration.ofSeconds(1));
+    return new RetryTopicConsumer(
+        processor,
+        publisher,
+        mock(ConsumerFactory.class),
+        mock(KafkaAdmin.class),
+        config,
+        "fhir.all",
+        "fhir-gateway",
+        concurrency);
+  }
+
+  private static ConsumerRecord<String, Resource> record(int partition, long offset) {
+    var record =
+        new ConsumerRecord<String, Resource>(
+            RETRY_TOPIC, partition, offset, "Patient/1", new Patient().setId("Patient/1"));
+    record
+        .headers()
+        .add(RetryTopicPublisher.ORIGINAL_TOPIC_HEADER, "fhir.all".getBytes(StandardCharsets.UTF_8))
+        .add(RetryTopicPublisher.DUE_AT_HEADER, "0".getBytes(StandardCharsets.UTF_8));
+    return record;
+  }
+
+  @Test
+  void constructor_withConcurrentConsumers_refusesToStart() {
+    assertThatThrownBy(() -> createConsumer(2))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("single consumer");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void handle_withPublishFailing_seeksBackToFirstUnhandledRecords() {
+    var retryConsumer = createConsumer(1);
+    when(publisher.lockOf(any())).thenReturn(new Object());
+    when(publisher.isOldestPending(any())).thenReturn(true);
+    doThrow(new IllegalStateException("unavailable")).when(processor).reprocess(any());
+    doNothing()
+        .doThrow(new IllegalStateException("broker unavailable"))
+        .when(publisher)
+        .publish(any(), anyInt(), any());
+    Consumer<String, Resource> consumer = mock(Consumer.class);
+
+    assertThatThrownBy(
+            () ->
+                retryConsumer.handle(
+                    mock(KafkaMessageListenerContainer.class),
+                    0,
+                    List.of(record(0, 5), record(0, 6), record(1, 3)),
+                    consumer))
+        .hasMessage("broker unavailable");
+
+    // the first record was published to the next level, the others are polled again
+    verify(consumer)
+        .commitSync(Map.of(new TopicPartition(RETRY_TOPIC, 0), new OffsetAndMetadata(6)));
+    verify(consumer).seek(new TopicPartition(RETRY_TOPIC, 0), 6);
+    verify(consumer).seek(new TopicPartition(RETRY_TOPIC, 1), 3);
+  }
+
+  @Test
+  void retryErrorHandler_neverSkipsRecords() {
+    var handler = new RetryTopicConsumer.RetryErrorHandler(RetryTopicConsumer.retryBackOff());
+    assertThat(handler.seeksAfterHandling()).isTrue();
+
+    var execution = RetryTopicConsumer.retryBackOff().start();
+    for (var i = 0; i < 1000; i++) {
+      assertThat(execution.nextBackOff())
+          .isNotEqualTo(BackOffExecution.STOP)
+          .isLessThanOrEqualTo(30_000);
+    }
+  }
+}
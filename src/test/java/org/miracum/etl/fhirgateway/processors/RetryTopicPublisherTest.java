@@ -0,0 +1,159 @@
+package org.miracum.etl.fhirgateway.processors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.miracum.etl.fhirgateway.config.KafkaRetryTopicsConfig;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+class RetryTopicPublisherTest {
+
+  private static final Instant NOW = Instant.parse("2024-01-01T00:00:00Z");
+
+  @SuppressWarnings("unchecked")
+  private final KafkaTemplate<String, Resource> kafkaTemplate = mock(KafkaTemplate.class);
+
+  private RetryTopicPublisher publisher;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    when(kafkaTemplate.send(any(ProducerRecord.class)))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    var config =
+        new KafkaRetryTopicsConfig(
+            true, List.of(Duration.ofSeconds(30), Duration.ofMinutes(5)), 2, Duration.ofSeconds(1));
+    publisher =
+        new RetryTopicPublisher(
+            kafkaTemplate, config, "fhir-gateway", Clock.fixed(NOW, ZoneOffset.UTC));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ProducerRecord<String, Resource> captureRecord() {
+    var captor = ArgumentCaptor.forClass(ProducerRecord.class);
+    verify(kafkaTemplate).send(captor.capture());
+    return captor.getValue();
+  }
+
+  private static String header(ProducerRecord<String, Resource> record, String name) {
+    return new String(record.headers().lastHeader(name).value(), StandardCharsets.UTF_8);
+  }
+
+  private static Message<?> message(String topic) {
+    return MessageBuilder.withPayload(new Patient().setId("Patient/1"))
+        .setHeader(KafkaHeaders.RECEIVED_TOPIC, topic)
+        .setHeader(KafkaHeaders.RECEIVED_KEY, "Patient/1")
+        .build();
+  }
+
+  @Test
+  void publish_withFirstLevel_sendsToFirstRetryTopicWithDueTime() {
+    publisher.publish(message("fhir.all"), 0, new IllegalStateException("unavailable"));
+
+    var record = captureRecord();
+    assertThat(record.topic()).isEqualTo("fhir.all.retry-0");
+    assertThat(record.key()).isEqualTo("Patient/1");
+    assertThat(header(record, RetryTopicPublisher.ORIGINAL_TOPIC_HEADER)).isEqualTo("fhir.all");
+    assertThat(header(record, RetryTopicPublisher.ERROR_HEADER)).isEqualTo("unavailable");
+    assertThat(header(record, RetryTopicPublisher.DUE_AT_HEADER))
+        .isEqualTo(Long.toString(NOW.plusSeconds(30).toEpochMilli()));
+  }
+
+  @Test
+  void publish_fromRetryTopic_keepsOriginalTopic() {
+    var message =
+        MessageBuilder.fromMessage(message("fhir.all.retry-0"))
+            .setHeader(RetryTopicPublisher.ORIGINAL_TOPIC_HEADER, "fhir.all")
+            .build();
+
+    publisher.publish(message, 1, new IllegalStateException("unavailable"));
+
+    assertThat(captureRecord().topic()).isEqualTo("fhir.all.retry-1");
+  }
+
+  private static Message<?> message(String topic, long offset) {
+    return MessageBuilder.fromMessage(message(topic))
+        .setHeader(KafkaHeaders.RECEIVED_PARTITION, 0)
+        .setHeader(KafkaHeaders.OFFSET, offset)
+        .build();
+  }
+
+  private static Message<?> retried(Message<?> message) {
+    return MessageBuilder.fromMessage(message)
+        .setHeader(RetryTopicPublisher.ORIGINAL_TOPIC_HEADER, "fhir.all")
+        .build();
+  }
+
+  @Test
+  void publish_fromInputTopic_keepsKeyPendingUntilReleased() {
+    var failed = message("fhir.all", 10);
+    publisher.publish(failed, 0, new IllegalStateException("unavailable"));
+
+    assertThat(header(captureRecord(), RetryTopicPublisher.ORIGINAL_OFFSET_HEADER)).isEqualTo("10");
+    assertThat(publisher.isPending(message("fhir.all", 11))).isTrue();
+
+    publisher.release(retried(failed));
+
+    assertThat(publisher.isPending(message("fhir.all", 11))).isFalse();
+  }
+
+  @Test
+  void isOldestPending_withEarlierRecordOfKeyWaiting_isFalse() {
+    var failed = message("fhir.all", 10);
+    publisher.publish(failed, 0, new IllegalStateException("unavailable"));
+    var deferred = message("fhir.all", 11);
+    publisher.defer(deferred);
+
+    assertThat(publisher.isOldestPending(retried(failed))).isTrue();
+    assertThat(publisher.isOldestPending(retried(deferred))).isFalse();
+
+    publisher.release(retried(failed));
+
+    assertThat(publisher.isOldestPending(retried(deferred))).isTrue();
+  }
+
+  @Test
+  void track_withRestoredRecord_keepsKeyPending() {
+    publisher.track(retried(message("fhir.all.retry-1", 10)));
+
+    assertThat(publisher.isPending(message("fhir.all", 11))).isTrue();
+  }
+
+  @Test
+  void publish_fromRetryTopicToDlq_releasesKey() {
+    var failed = message("fhir.all", 10);
+    publisher.publish(failed, 0, new IllegalStateException("unavailable"));
+
+    publisher.publish(retried(failed), 2, new IllegalStateException("unavailable"));
+
+    assertThat(publisher.isPending(message("fhir.all", 11))).isFalse();
+  }
+
+  @Test
+  void publish_afterLastLevel_sendsToDlq() {
+    publisher.publish(message("fhir.all"), 2, new IllegalStateException("unavailable"));
+
+    var record = captureRecord();
+    assertThat(record.topic()).isEqualTo("error.fhir.all.fhir-gateway");
+    assertThat(record.headers().lastHeader(RetryTopicPublisher.DUE_AT_HEADER)).isNull();
+  }
+}
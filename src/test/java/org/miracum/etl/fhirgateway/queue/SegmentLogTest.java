@@ -0,0 +1,138 @@
+package org.miracum.etl.fhirgateway.queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentLogTest {
+  @TempDir Path directory;
+
+  private SegmentLog open(long segmentSizeBytes) throws IOException {
+    return new SegmentLog(directory, segmentSizeBytes, synced -> {}, compacted -> {});
+  }
+
+  private static byte[] bytes(String payload) {
+    return payload.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String consume(SegmentLog log) throws IOException {
+    var entry = log.next();
+    assertThat(entry).isNotNull();
+    log.commit(entry);
+    return new String(entry.payload(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void next_shouldReturnRecordsInOrderUntilCommitted() throws IOException {
+    try (var log = open(1024)) {
+      log.append(bytes("first"));
+      log.append(bytes("second"));
+
+      var entry = log.next();
+      assertThat(entry).isNotNull();
+      assertThat(log.next()).extracting(SegmentLog.Entry::offset).isEqualTo(entry.offset());
+
+      assertThat(consume(log)).isEqualTo("first");
+      assertThat(consume(log)).isEqualTo("second");
+      assertThat(log.next()).isNull();
+      assertThat(log.getBacklogRecords()).isZero();
+      assertThat(log.getBacklogBytes()).isZero();
+    }
+  }
+
+  @Test
+  void open_afterClose_shouldResumeAfterLastCommittedRecord() throws IOException {
+    try (var log = open(1024)) {
+      log.append(bytes("first"));
+      log.append(bytes("second"));
+      log.append(bytes("third"));
+      consume(log);
+    }
+
+    try (var log = open(1024)) {
+      assertThat(log.getBacklogRecords()).isEqualTo(2);
+      assertThat(consume(log)).isEqualTo("second");
+      assertThat(consume(log)).isEqualTo("third");
+    }
+  }
+
+  @Test
+  void next_afterSegmentConsumed_shouldDeleteSegment() throws IOException {
+    var compacted = new AtomicLong();
+    try (var log = new SegmentLog(directory, 32, synced -> {}, compacted::addAndGet)) {
+      for (var i = 0; i < 4; i++) {
+        log.append(bytes("record-" + i + "-of-the-log"));
+      }
+      assertThat(log.getSegmentCount()).isEqualTo(4);
+
+      for (var i = 0; i < 4; i++) {
+        assertThat(consume(log)).isEqualTo("record-" + i + "-of-the-log");
+      }
+      assertThat(log.next()).isNull();
+
+      assertThat(log.getSegmentCount()).isEqualTo(1);
+      assertThat(compacted).hasValue(3);
+    }
+    try (var files = Files.list(directory)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".segment"))).hasSize(1);
+    }
+  }
+
+  @Test
+  void open_withPartiallyWrittenRecord_shouldDiscardIt() throws IOException {
+    try (var log = open(1024)) {
+      log.append(bytes("complete"));
+    }
+    try (var files = Files.list(directory)) {
+      var segment = files.filter(file -> file.toString().endsWith(".segment")).findFirst();
+      assertThat(segment).isPresent();
+      // the header of a record of 50 bytes, followed by only part of its payload
+      var tornRecord = new byte[] {0, 0, 0, 50, 1, 2, 3, 4, 5};
+      Files.write(segment.get(), tornRecord, StandardOpenOption.APPEND);
+    }
+
+    try (var log = open(1024)) {
+      assertThat(log.getBacklogRecords()).isEqualTo(1);
+      log.append(bytes("appended"));
+
+      assertThat(consume(log)).isEqualTo("complete");
+      assertThat(consume(log)).isEqualTo("appended");
+    }
+  }
+
+  @Test
+  void append_concurrently_shouldSyncAllRecords() throws Exception {
+    var synced = new AtomicLong();
+    try (var log = new SegmentLog(directory, 4096, synced::addAndGet, compacted -> {})) {
+      var threads = new Thread[4];
+      for (var t = 0; t < threads.length; t++) {
+        var thread = t;
+        threads[t] =
+            Thread.ofPlatform()
+                .start(
+                    () -> {
+                      for (var i = 0; i < 50; i++) {
+                        try {
+                          log.append(bytes(thread + "-" + i));
+                        } catch (IOException exc) {
+                          throw new IllegalStateException(exc);
+                        }
+                      }
+                    });
+      }
+      for (var thread : threads) {
+        thread.join();
+      }
+
+      assertThat(synced).hasValue(200);
+      assertThat(log.getBacklogRecords()).isEqualTo(200);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package org.miracum.etl.fhirgateway.queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.resilience.UpstreamRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+class WriteAheadQueueTest {
+
+  @Test
+  void isPermanent_withRejectedBundle_isTrue() {
+    assertThat(WriteAheadQueue.isPermanent(new InvalidRequestException("invalid"))).isTrue();
+    assertThat(WriteAheadQueue.isPermanent(new ResourceVersionConflictException("conflict")))
+        .isTrue();
+    assertThat(WriteAheadQueue.isPermanent(new DataFormatException("malformed"))).isTrue();
+    assertThat(
+            WriteAheadQueue.isPermanent(
+                new IllegalStateException(
+                    "wrapped", new HttpClientErrorException(HttpStatus.UNPROCESSABLE_ENTITY))))
+        .isTrue();
+    assertThat(
+            WriteAheadQueue.isPermanent(
+                new IllegalStateException("wrapped", new SQLException("violation", "23505"))))
+        .isTrue();
+  }
+
+  @Test
+  void isPermanent_withTransientFailure_isFalse() {
+    assertThat(WriteAheadQueue.isPermanent(new InternalErrorException("failed"))).isFalse();
+    assertThat(WriteAheadQueue.isPermanent(new FhirClientConnectionException("unreachable")))
+        .isFalse();
+    assertThat(WriteAheadQueue.isPermanent(new ResourceAccessException("timeout"))).isFalse();
+    assertThat(
+            WriteAheadQueue.isPermanent(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS)))
+        .isFalse();
+    assertThat(
+            WriteAheadQueue.isPermanent(
+                new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE)))
+        .isFalse();
+    assertThat(
+            WriteAheadQueue.isPermanent(
+                new UncheckedIOException(new UpstreamRejectedException("circuit open"))))
+        .isFalse();
+    assertThat(
+            WriteAheadQueue.isPermanent(
+                new IllegalStateException("wrapped", new SQLException("gone", "08006"))))
+        .isFalse();
+  }
+}
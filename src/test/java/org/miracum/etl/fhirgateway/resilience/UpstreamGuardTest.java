@@ -0,0 +1,99 @@
+package org.miracum.etl.fhirgateway.resilience;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.config.UpstreamLimitsConfig;
+import org.miracum.etl.fhirgateway.config.UpstreamLimitsConfig.CircuitBreaker;
+import org.miracum.etl.fhirgateway.resilience.UpstreamGuard.CircuitState;
+
+class UpstreamGuardTest {
+
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final UpstreamGuard guard =
+      new UpstreamGuard(
+          "test:80",
+          new UpstreamLimitsConfig(
+              true,
+              2,
+              1,
+              4,
+              0.5,
+              Duration.ofSeconds(1),
+              new CircuitBreaker(3, Duration.ofSeconds(10))),
+          nanoTime::get);
+
+  @Test
+  void acquire_withLimitReached_shouldReject() throws Exception {
+    guard.acquire();
+    guard.acquire();
+
+    assertThatThrownBy(guard::acquire)
+        .isInstanceOf(UpstreamRejectedException.class)
+        .hasMessageContaining("limit");
+  }
+
+  @Test
+  void release_withFastSuccess_shouldIncreaseLimit() throws Exception {
+    guard.release(guard.acquire(), true);
+
+    assertThat(guard.getLimit()).isEqualTo(2.5);
+    assertThat(guard.getInFlight()).isZero();
+  }
+
+  @Test
+  void release_withSlowSuccess_shouldDecreaseLimit() throws Exception {
+    var permit = guard.acquire();
+    nanoTime.addAndGet(Duration.ofSeconds(2).toNanos());
+
+    guard.release(permit, true);
+
+    assertThat(guard.getLimit()).isEqualTo(1);
+    assertThat(guard.getState()).isEqualTo(CircuitState.CLOSED);
+  }
+
+  @Test
+  void release_withConsecutiveFailures_shouldOpenCircuit() throws Exception {
+    for (var i = 0; i < 3; i++) {
+      guard.release(guard.acquire(), false);
+    }
+
+    assertThat(guard.getState()).isEqualTo(CircuitState.OPEN);
+    assertThatThrownBy(guard::acquire)
+        .isInstanceOf(UpstreamRejectedException.class)
+        .hasMessageContaining("circuit breaker");
+  }
+
+  @Test
+  void acquire_afterOpenDuration_shouldLetSingleProbeThrough() throws Exception {
+    for (var i = 0; i < 3; i++) {
+      guard.release(guard.acquire(), false);
+    }
+    nanoTime.addAndGet(Duration.ofSeconds(10).toNanos());
+
+    var probe = guard.acquire();
+
+    assertThat(guard.getState()).isEqualTo(CircuitState.HALF_OPEN);
+    assertThatThrownBy(guard::acquire).isInstanceOf(UpstreamRejectedException.class);
+
+    guard.release(probe, true);
+
+    assertThat(guard.getState()).isEqualTo(CircuitState.CLOSED);
+  }
+
+  @Test
+  void release_withFailedProbe_shouldReopenCircuit() throws Exception {
+    for (var i = 0; i < 3; i++) {
+      guard.release(guard.acquire(), false);
+    }
+    nanoTime.addAndGet(Duration.ofSeconds(10).toNanos());
+
+    guard.release(guard.acquire(), false);
+
+    assertThat(guard.getState()).isEqualTo(CircuitState.OPEN);
+    assertThatThrownBy(guard::acquire).isInstanceOf(UpstreamRejectedException.class);
+  }
+}
@@ -0,0 +1,53 @@
+package org.miracum.etl.fhirgateway.serialization;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+class EncodedResourcesTest {
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private static Bundle createBundle(Patient patient) {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.addEntry().setResource(patient);
+    return bundle;
+  }
+
+  @Test
+  void encode_calledTwice_shouldReuseEncoding() {
+    var patient = new Patient();
+    patient.setId("1");
+
+    var first = EncodedResources.encode(fhirContext, patient);
+    var second = EncodedResources.encode(fhirContext, patient);
+
+    assertThat(second).isSameAs(first);
+    assertThat(first.json()).isEqualTo(fhirContext.newJsonParser().encodeResourceToString(patient));
+    assertThat(first.bytes()).isEqualTo(first.json().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void cached_withoutEncoding_shouldReturnEmpty() {
+    assertThat(EncodedResources.cached(new Patient())).isEmpty();
+  }
+
+  @Test
+  void invalidate_shouldDropEncodingsOfBundleAndEntries() {
+    var patient = new Patient();
+    patient.setId("1");
+    var bundle = createBundle(patient);
+    EncodedResources.encode(fhirContext, bundle);
+    EncodedResources.encode(fhirContext, patient);
+
+    EncodedResources.invalidate(bundle);
+    patient.setActive(true);
+
+    assertThat(EncodedResources.cached(bundle)).isEmpty();
+    assertThat(EncodedResources.encode(fhirContext, patient).json()).contains("\"active\":true");
+  }
+}
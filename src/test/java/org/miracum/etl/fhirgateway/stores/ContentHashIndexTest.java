@@ -0,0 +1,80 @@
+package org.miracum.etl.fhirgateway.stores;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ContentHashIndexTest {
+  @TempDir Path directory;
+
+  private Path file() {
+    return directory.resolve("content-hashes");
+  }
+
+  @Test
+  void isUnchanged_shouldCompareWithLastUpdate() throws IOException {
+    var key = ContentHashIndex.keyOf("Patient/1");
+    try (var index = new ContentHashIndex(file())) {
+      assertThat(index.isUnchanged(key, 42)).isFalse();
+
+      index.update(Map.of(key, 42L), Set.of());
+      assertThat(index.isUnchanged(key, 42)).isTrue();
+
+      index.update(Map.of(key, 43L), Set.of());
+      assertThat(index.isUnchanged(key, 42)).isFalse();
+      assertThat(index.size()).isEqualTo(1);
+
+      index.update(Map.of(), Set.of(key));
+      assertThat(index.isUnchanged(key, 43)).isFalse();
+      assertThat(index.size()).isZero();
+    }
+  }
+
+  @Test
+  void open_afterClose_shouldRestoreHashes() throws IOException {
+    var hashes = new HashMap<Long, Long>();
+    for (var i = 0; i < 5_000; i++) {
+      hashes.put(ContentHashIndex.keyOf("Patient/" + i), ContentHashIndex.contentHashOf("" + i));
+    }
+    var deleted = ContentHashIndex.keyOf("Patient/0");
+    try (var index = new ContentHashIndex(file())) {
+      index.update(hashes, Set.of());
+      index.update(Map.of(), Set.of(deleted));
+    }
+
+    try (var index = new ContentHashIndex(file())) {
+      assertThat(index.size()).isEqualTo(4_999);
+      assertThat(index.isUnchanged(deleted, hashes.get(deleted))).isFalse();
+      var key = ContentHashIndex.keyOf("Patient/4999");
+      assertThat(index.isUnchanged(key, hashes.get(key))).isTrue();
+    }
+  }
+
+  @Test
+  void open_withPartiallyWrittenRecord_shouldDropIt() throws IOException {
+    var key = ContentHashIndex.keyOf("Patient/1");
+    try (var index = new ContentHashIndex(file())) {
+      index.update(Map.of(key, 42L), Set.of());
+    }
+    Files.write(file(), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+    var other = ContentHashIndex.keyOf("Patient/2");
+    try (var index = new ContentHashIndex(file())) {
+      index.update(Map.of(other, 43L), Set.of());
+    }
+
+    try (var index = new ContentHashIndex(file())) {
+      assertThat(index.isUnchanged(key, 42)).isTrue();
+      assertThat(index.isUnchanged(other, 43)).isTrue();
+      assertThat(Files.size(file())).isEqualTo(32);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package org.miracum.etl.fhirgateway.stores;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.etl.fhirgateway.config.FhirServerChunkingConfig;
+import org.springframework.retry.support.RetryTemplate;
+
+class FhirServerResourceRepositoryTest {
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private final IGenericClient client = mock(IGenericClient.class);
+
+  @TempDir Path directory;
+
+  private FhirServerResourceRepository createRepository(boolean isChunkingEnabled) {
+    return new FhirServerResourceRepository(
+        fhirContext,
+        client,
+        new RetryTemplate(),
+        new FhirServerChunkingConfig(isChunkingEnabled, 2, 2),
+        Optional.empty());
+  }
+
+  private static Bundle createBundle(BundleType type, Resource... resources) {
+    var bundle = new Bundle().setType(type);
+    for (var resource : resources) {
+      var id = resource.getIdElement().toUnqualifiedVersionless().getValue();
+      bundle
+          .addEntry()
+          .setFullUrl(id)
+          .setResource(resource)
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl(id);
+    }
+    return bundle;
+  }
+
+  private static Patient patient(String id) {
+    var patient = new Patient();
+    patient.setId("Patient/" + id);
+    return patient;
+  }
+
+  private static Observation observation(String id, String subject) {
+    var observation = new Observation();
+    observation.setId("Observation/" + id);
+    observation.setSubject(new Reference(subject));
+    return observation;
+  }
+
+  @Test
+  void split_withLargeBatch_shouldSplitIntoChunks() {
+    var bundle =
+        createBundle(BundleType.BATCH, patient("1"), patient("2"), patient("3"), patient("4"));
+
+    var chunks = createRepository(true).split(bundle);
+
+    assertThat(chunks).hasSize(2);
+    assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.getEntry()).hasSize(2));
+    assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.getType()).isEqualTo(BundleType.BATCH));
+  }
+
+  @Test
+  void split_withTransactionWithoutInternalReferences_shouldSplitIntoChunks() {
+    var bundle =
+        createBundle(
+            BundleType.TRANSACTION,
+            patient("1"),
+            observation("1", "Patient/other"),
+            patient("2"));
+
+    var chunks = createRepository(true).split(bundle);
+
+    assertThat(chunks).hasSize(2);
+    assertThat(chunks.get(1).getEntryFirstRep().getResource().getIdElement().getIdPart())
+        .isEqualTo("2");
+  }
+
+  @Test
+  void split_withTransactionWithInternalReferences_shouldKeepBundleWhole() {
+    var bundle =
+        createBundle(
+            BundleType.TRANSACTION, patient("1"), patient("2"), observation("1", "Patient/1"));
+
+    var chunks = createRepository(true).split(bundle);
+
+    assertThat(chunks).containsExactly(bundle);
+  }
+
+  @Test
+  void split_withChunkingDisabled_shouldKeepBundleWhole() {
+    var bundle = createBundle(BundleType.BATCH, patient("1"), patient("2"), patient("3"));
+
+    var chunks = createRepository(false).split(bundle);
+
+    assertThat(chunks).containsExactly(bundle);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void save_withLargeBatch_shouldSendEachChunk() {
+    var transaction = mock(ITransaction.class);
+    var typed = mock(ITransactionTyped.class);
+    when(client.transaction()).thenReturn(transaction);
+    when(transaction.withBundle(any(Bundle.class))).thenReturn(typed);
+    when(typed.execute()).thenReturn(new Bundle().setType(BundleType.BATCHRESPONSE));
+
+    createRepository(true)
+        .save(
+            createBundle(
+                BundleType.BATCH, patient("1"), patient("2"), patient("3"), patient("4")));
+
+    verify(transaction, times(2)).withBundle(any(Bundle.class));
+  }
+
+  @Test
+  void detectChanges_withUnchangedResource_shouldLeaveOutEntry() throws IOException {
+    var unchanged = patient("1");
+    var json = fhirContext.newJsonParser().encodeResourceToString(unchanged);
+    var key = ContentHashIndex.keyOf("Patient/1");
+    try (var index = new ContentHashIndex(directory.resolve("index"))) {
+      index.update(Map.of(key, ContentHashIndex.contentHashOf(json)), Set.of());
+      var changed = patient("2");
+      changed.setActive(true);
+      var bundle = createBundle(BundleType.TRANSACTION, unchanged, changed);
+
+      var changes = createRepository(false).detectChanges(bundle, index);
+
+      assertThat(changes.bundle().getEntry())
+          .extracting(entry -> entry.getRequest().getUrl())
+          .containsExactly("Patient/2");
+      assertThat(changes.contentHashes()).containsOnlyKeys(ContentHashIndex.keyOf("Patient/2"));
+      assertThat(bundle.getEntry()).hasSize(2);
+    }
+  }
+
+  @Test
+  void detectChanges_withDeletedResource_shouldSendUpdateAgain() throws IOException {
+    var resource = patient("1");
+    var json = fhirContext.newJsonParser().encodeResourceToString(resource);
+    var key = ContentHashIndex.keyOf("Patient/1");
+    try (var index = new ContentHashIndex(directory.resolve("index"))) {
+      index.update(Map.of(key, ContentHashIndex.contentHashOf(json)), Set.of());
+      var bundle = new Bundle().setType(BundleType.BATCH);
+      bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Patient/1");
+
+      var changes = createRepository(false).detectChanges(bundle, index);
+      index.update(changes.contentHashes(), changes.deletedKeys());
+
+      assertThat(changes.bundle()).isSameAs(bundle);
+      assertThat(changes.deletedKeys()).containsExactly(key);
+      assertThat(index.isUnchanged(key, ContentHashIndex.contentHashOf(json))).isFalse();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void save_withConcurrentSavesOfSameResource_shouldRecordLastSentContent() throws Exception {
+    var transaction = mock(ITransaction.class);
+    var typed = mock(ITransactionTyped.class);
+    var sent = new ConcurrentLinkedQueue<String>();
+    var inFlight = new AtomicInteger();
+    var maxInFlight = new AtomicInteger();
+    var firstSending = new CountDownLatch(1);
+    when(client.transaction()).thenReturn(transaction);
+    when(transaction.withBundle(any(String.class)))
+        .thenAnswer(
+            invocation -> {
+              sent.add(invocation.getArgument(0));
+              return typed;
+            });
+    when(typed.execute())
+        .thenAnswer(
+            invocation -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              firstSending.countDown();
+              Thread.sleep(100);
+              inFlight.decrementAndGet();
+              return new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+            });
+
+    var first = patient("1").setActive(true);
+    var second = patient("1").setActive(false);
+    try (var index = new ContentHashIndex(directory.resolve("index"));
+        var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var repository =
+          new FhirServerResourceRepository(
+              fhirContext,
+              client,
+              new RetryTemplate(),
+              new FhirServerChunkingConfig(false, 2, 2),
+              Optional.of(index));
+
+      var firstSave =
+          executor.submit(() -> repository.save(createBundle(BundleType.TRANSACTION, first)));
+      firstSending.await();
+      var secondSave =
+          executor.submit(() -> repository.save(createBundle(BundleType.TRANSACTION, second)));
+      firstSave.get();
+      secondSave.get();
+
+      assertThat(maxInFlight).hasValue(1);
+      assertThat(sent).hasSize(2);
+      assertThat(sent.stream().toList().getLast()).contains("\"active\":false");
+      var json = fhirContext.newJsonParser().encodeResourceToString(second);
+      var key = ContentHashIndex.keyOf("Patient/1");
+      assertThat(index.isUnchanged(key, ContentHashIndex.contentHashOf(json))).isTrue();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.miracum.etl.fhirgateway.stores;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.miracum.etl.fhirgateway.stores.PostgresFhirResourceRepository.PendingWrite;
+import org.miracum.etl.fhirgateway.stores.PostgresFhirResourceRepository.ResourceRow;
+
+class PostgresFhirResourceRepositoryTest {
+
+  @Test
+  void toCopyLine_withSpecialCharacters_escapesThemForTheTextFormat() {
+    var row =
+        new ResourceRow(
+            "obs-1",
+            "Observation",
+            "{\"note\":\"line\\nbreak\",\"raw\":\"a\tb\r\nc\"}",
+            "abc123");
+
+    var line = PostgresFhirResourceRepository.toCopyLine(7, row);
+
+    assertThat(line)
+        .isEqualTo(
+            "7\tobs-1\tObservation\t{\"note\":\"line\\\\nbreak\",\"raw\":\"a\\tb\\r\\nc\"}"
+                + "\tabc123\n");
+  }
+
+  @Test
+  void of_withSameContent_computesSameHash() {
+    var first = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\"}");
+    var second = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\"}");
+    var changed = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\",\"active\":true}");
+
+    assertThat(first.contentHash()).hasSize(64).isEqualTo(second.contentHash());
+    assertThat(changed.contentHash()).isNotEqualTo(first.contentHash());
+  }
+
+  @Test
+  void escapeCopyText_withoutSpecialCharacters_returnsInputUnchanged() {
+    assertThat(PostgresFhirResourceRepository.escapeCopyText("Patient/123"))
+        .isEqualTo("Patient/123");
+  }
+
+  @Test
+  void coalesce_withPutThenDelete_appliesUpsertBeforeDelete() {
+    var row = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\"}");
+    var first = new AtomicReference<RuntimeException>();
+    var second = new AtomicReference<RuntimeException>();
+
+    var coalesced =
+        PostgresFhirResourceRepository.coalesce(
+            List.of(
+                new PendingWrite("Patient", "1", row, first),
+                new PendingWrite("Patient", "1", null, second)));
+
+    assertThat(coalesced.rows()).containsExactly(row);
+    assertThat(coalesced.deleteValues()).containsExactly(new Object[] {"Patient", "1"});
+  }
+
+  @Test
+  void coalesce_withDeleteThenPut_onlyAppliesUpsert() {
+    var row = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\"}");
+    var updated = ResourceRow.of("1", "Patient", "{\"resourceType\":\"Patient\",\"active\":true}");
+    var failure = new AtomicReference<RuntimeException>();
+
+    var coalesced =
+        PostgresFhirResourceRepository.coalesce(
+            List.of(
+                new PendingWrite("Patient", "1", row, failure),
+                new PendingWrite("Patient", "1", null, failure),
+                new PendingWrite("Patient", "1", updated, failure)));
+
+    assertThat(coalesced.rows()).containsExactly(updated);
+    assertThat(coalesced.deleteValues()).isEmpty();
+  }
+}